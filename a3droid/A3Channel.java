@@ -1,6 +1,8 @@
 package a3.a3droid;
 
 import java.util.ArrayList;
+import java.util.Random;
+
 import org.alljoyn.bus.BusAttachment;
 import org.alljoyn.bus.BusListener;
 import org.alljoyn.bus.BusObject;
@@ -19,7 +21,8 @@ import android.os.Message;
  * It has the methods to receive broadcast messages and to send messages to the supervisor of the group.
  * 
  * When a node needs to join a group, it creates a channel.
- * The channel start the discovery of the group and waits 2 seconds:
+ * The channel start the discovery of the group and waits for the group name to be found,
+ * or for a timeout derived from the discovery times measured on this node (2 seconds at first):
  * if the group was found, then the channel connects to it,
  * otherwise the channel creates the group and connects to it.
  * If the group name is found, but the Service is not visible,
@@ -69,6 +72,15 @@ public class A3Channel extends Thread implements BusObject, TimerInterface, User
 
 	/** */
 	private boolean discovered;
+
+	/**true if the discovery started and its result wasn't handled yet, false otherwise.*/
+	private boolean discoveryPending;
+
+	/**The time at which the discovery started, in milliseconds.*/
+	private long discoveryStart;
+
+	/**true if the timer of the discovery fired before the group name was found, false otherwise.*/
+	private boolean discoveryTimedOut;
 	
 	/**The thread which handles the received messages.*/
 	private MessageHandler messageHandler;
@@ -78,6 +90,38 @@ public class A3Channel extends Thread implements BusObject, TimerInterface, User
 	
 	/**Indicates if this channel is currently the group supervisor or not.*/
 	private boolean isSupervisor;
+
+	/**The highest election term this channel knows.
+	 * If this channel is the supervisor, it is the term in which it was elected,
+	 * and it is sent to the Service with the messages to the group, in order for the Service to fence off stale supervisors.
+	 */
+	private int supervisorTerm;
+
+	/**The address of the supervisor of the group, or "" if it isn't known.*/
+	private String supervisorId;
+
+	/**The address of the deputy supervisor of the group, or "" if there is none.*/
+	private String deputyId;
+
+	/**If this channel is the deputy, the last copy of the state of the supervisor role it received, otherwise null.*/
+	private String deputyState;
+
+	/**A copy of the state of the supervisor role which arrived before the announcement that this channel is the deputy, or null.
+	 * The copy can take a direct link, so it can overtake the announcement, which is broadcast by the Service.
+	 */
+	private String earlyDeputyState;
+
+	/**The timer of the handoff this channel is waiting for before becoming supervisor, or null if it isn't waiting.*/
+	private Timer handoffTimer;
+
+	/**The last supervisor fitness function value sent to the Service.*/
+	private int lastSentFitness;
+
+	/**The time the last supervisor fitness function value was sent to the Service, in milliseconds.*/
+	private long lastFitnessRefresh;
+
+	/**true if the periodic check of the supervisor fitness function value is scheduled on the callback thread, false otherwise.*/
+	private boolean fitnessCheckScheduled;
 	
 	/**The receiver used to receive unicast messages from the Service.*/
 	private A3UnicastReceiver unicastReceiver;
@@ -125,9 +169,48 @@ public class A3Channel extends Thread implements BusObject, TimerInterface, User
 	private boolean connectedForSystem;
 
 	private boolean firstConnection;
+
+	/**The token issued by the Service to resume the session of this channel, or null if it wasn't issued yet.*/
+	private String sessionToken;
+
+	/**The number of hierarchy changes this channel received, as counted by the Service.*/
+	private int hierarchyVersion;
+
+	/**true if this channel is resuming its session and it didn't receive the new token yet, false otherwise.*/
+	private boolean resuming;
+
+	/**The upper bound of the delay before the first reconnection, in milliseconds.*/
+	private static final int RECONNECT_BASE_DELAY = 250;
+
+	/**The highest upper bound of the delay before a reconnection, in milliseconds.*/
+	private static final int RECONNECT_MAX_DELAY = 8000;
+
+	/**The number of reconnections since this channel last joined the session.*/
+	private int reconnectAttempts;
+
+	/**true if this channel is waiting to reconnect, false otherwise.*/
+	private boolean reconnectPending;
+
+	/**It chooses the delays before the reconnections.*/
+	private Random random;
+
+	/**The instance name of the Service this channel is connected to, or null if it isn't known.*/
+	private String serviceName;
+
+	/**The instance name of the Service to join at the next connection, without discovering the group, or null.*/
+	private String redirectName;
 	
 	/**The descriptor of the group this channel is connected to.*/
 	private GroupDescriptor groupDescriptor;
+
+	/**If this channel is the supervisor, the policy which splits and merges the group depending on its load, otherwise null.*/
+	private ScalingPolicy scalingPolicy;
+
+	/**The consistent hashing ring of the group, which assigns the keys of the work items to its members.*/
+	private HashRing ring;
+
+	/**If this channel is the supervisor, the sessions it keeps open to the followers to send them unicast messages directly.*/
+	private DirectLinks directLinks;
 	
 	/**
 	 * @param a3node The node this channel belongs to.
@@ -146,6 +229,11 @@ public class A3Channel extends Thread implements BusObject, TimerInterface, User
 		discovered = false;
 		inTransitionConditions = false;
 		isSupervisor = false;
+		supervisorTerm = 0;
+		supervisorId = "";
+		deputyId = "";
+		deputyState = null;
+		earlyDeputyState = null;
 		subscriptions = new Subscriptions(this);
 		hierarchy = new Hierarchy(this);
 		queue = new MessageQueue();
@@ -154,7 +242,18 @@ public class A3Channel extends Thread implements BusObject, TimerInterface, User
 		connectedForApplication = false;
 		connectedForSystem = false;
 		firstConnection = true;
+		sessionToken = null;
+		hierarchyVersion = 0;
+		resuming = false;
+		reconnectAttempts = 0;
+		reconnectPending = false;
+		random = new Random();
+		serviceName = null;
+		redirectName = null;
 		this.groupDescriptor = groupDescriptor;
+		scalingPolicy = null;
+		ring = new HashRing();
+		directLinks = new DirectLinks(this);
 		
 		/* Thread that reads the first message in the queue and try to send it to the Service.
 		 * If the transmission fails, the channel reconnects and the message is still available in the queue,
@@ -223,6 +322,19 @@ public class A3Channel extends Thread implements BusObject, TimerInterface, User
 				 */
 				if(name.equals(groupName)){
 					discovered = true;
+
+					/* I don't need to wait for the timeout anymore:
+					 * I stop the timer and I handle the discovery now.
+					 */
+					if(isDiscoveryPending()){
+						node.getDiscoveryEstimator().addSample(System.currentTimeMillis() - discoveryStart);
+						timer.interrupt();
+						timerFired(0);
+					}
+					
+					//The group name was found after the timer fired: the timeout was too short, and the estimate must know it.
+					else if(endLateDiscovery())
+						node.getDiscoveryEstimator().addSample(System.currentTimeMillis() - discoveryStart);
 				}
 			}
 
@@ -238,41 +350,93 @@ public class A3Channel extends Thread implements BusObject, TimerInterface, User
 			return;
 
 		// The discovery and the timer start.
+		synchronized(this){
+			discoveryPending = true;
+			discoveryTimedOut = false;
+			discoveryStart = System.currentTimeMillis();
+		}
+
+		//I was redirected to a Service which surely exists: I join it directly.
+		if(redirectName != null){
+			discovered = true;
+			timerFired(0);
+			return;
+		}
+
+		/* If the node already knows that the group exists, or that it was missing a short time ago,
+		 * I don't need to discover it: I handle the result of the discovery now.
+		 * If I'm reconnecting because the Service wasn't visible, I discover the group again instead.
+		 */
+		GroupDirectory directory = node.getGroupDirectory();
+
+		if(!inTransitionConditions && (directory.exists(groupName) || directory.isMissing(groupName))){
+			discovered = directory.exists(groupName);
+			timerFired(0);
+			return;
+		}
+		timer = new Timer(this, 0, node.getDiscoveryEstimator().getTimeout());
+
 		status = mBus.findAdvertisedName(groupName);
 		if (Status.OK != status)
 			return;
 
 		try{
-			timer = new Timer(this,0);
 			timer.start();
 		} catch (Exception e){}
 	}
 
+	/**
+	 * @return true if the result of the discovery wasn't handled yet, false otherwise.
+	 */
+	private synchronized boolean isDiscoveryPending(){
+		return discoveryPending;
+	}
+
+	/**It marks the result of the discovery as handled.
+	 * The discovery can end both for the timer and for the discovery of the group name:
+	 * only the first of them must be handled.
+	 * 
+	 * @return true if the result of the discovery wasn't handled yet, false otherwise.
+	 */
+	private synchronized boolean endDiscovery(){
+		boolean wasPending = discoveryPending;
+		discoveryPending = false;
+		return wasPending;
+	}
+
+	/**It records that the timer of the discovery fired before the group name was found.*/
+	private synchronized void discoveryTimedOut(){
+		discoveryTimedOut = true;
+	}
+
+	/**
+	 * @return true if the timer of the discovery fired before the group name was found
+	 * and this late discovery wasn't recorded yet, false otherwise.
+	 */
+	private synchronized boolean endLateDiscovery(){
+		boolean wasTimedOut = discoveryTimedOut;
+		discoveryTimedOut = false;
+		return wasTimedOut;
+	}
+
 	/**It is called when the timeout fires and the group name was discovered.
 	 * It lets this channel join the AllJoyn session and connect to the group.
 	 */
 	public void joinSession(){
 		
 		try{
-			short contactPort = Constants.CONTACT_PORT;
-			SessionOpts sessionOpts = new SessionOpts();
-			sessionOpts.transports = SessionOpts.TRANSPORT_ANY + SessionOpts.TRANSPORT_WFD;
 			Mutable.IntegerValue sessionId = new Mutable.IntegerValue();
-
-			Status status = mBus.joinSession(groupName, contactPort, sessionId, sessionOpts, new SessionListener() {
-
-				@Override
-				public void sessionLost(int sessionId, int reason) {
-
-					Message msg = callbackThread.obtainMessage();
-					msg.arg2 = Constants.SESSION_LOST;
-					callbackThread.sendMessage(msg);
-				}
-			});
+			String redirect = redirectName;
+			redirectName = null;
+			Status status = join(sessionId, redirect != null ? redirect : groupName);
 
 			if (status == Status.OK)
 				onSessionJoined(sessionId);
 
+			//The Service I was redirected to isn't reachable: I discover the group as usual.
+			else if(redirect != null)
+				reconnect();
+
 			else{
 				mIsConnected = false;
 
@@ -292,6 +456,79 @@ public class A3Channel extends Thread implements BusObject, TimerInterface, User
 		}catch (Exception ex) {}
 	}
 
+	/**It joins the AllJoyn session of the group.
+	 * @param sessionId The id of the joined session, set if the join succeeds.
+	 * @param name The name of the Service to join: the group name, or the instance name of one of its Services.
+	 * @return The result of the join.
+	 */
+	private Status join(Mutable.IntegerValue sessionId, String name){
+
+		short contactPort = Constants.CONTACT_PORT;
+		SessionOpts sessionOpts = new SessionOpts();
+		sessionOpts.transports = SessionOpts.TRANSPORT_ANY + SessionOpts.TRANSPORT_WFD;
+
+		return mBus.joinSession(name, contactPort, sessionId, sessionOpts, new SessionListener() {
+
+			@Override
+			public void sessionLost(int sessionId, int reason) {
+
+				Message msg = callbackThread.obtainMessage();
+				msg.arg2 = Constants.SESSION_LOST;
+				callbackThread.sendMessage(msg);
+			}
+		});
+	}
+
+	/**It tries to resume the session of this channel after it was lost, without a full reconnection.
+	 * The bus attachment is kept, so my address and my UnicastReceiver don't change,
+	 * the discovery is skipped and my role stays active.
+	 * Instead of the handshake, a single message carries my token, my last known term,
+	 * the number of hierarchy changes I received, my fitness function value and my subscriptions:
+	 * the Service replies with the supervisor, the deputy and a new token,
+	 * which tells me if I missed some hierarchy change.
+	 * @return true if the session was joined again, false if a full reconnection is needed.
+	 */
+	private boolean resumeSession(){
+
+		if(sessionToken == null || mBus == null)
+			return false;
+
+		try{
+			mIsConnected = false;
+			Mutable.IntegerValue sessionId = new Mutable.IntegerValue();
+
+			if(join(sessionId, groupName) != Status.OK)
+				return false;
+
+			mProxyObj =  mBus.getProxyBusObject(groupName, "/SimpleService", sessionId.value,
+					new Class<?>[] { A3ServiceInterface.class });
+			serviceInterface =  mProxyObj.getInterface(A3ServiceInterface.class);
+			mSessionId = sessionId.value;
+
+			String fitness = "-";
+			if(!followerOnly){
+				try{
+					fitness = String.valueOf(fitnessSent(getSupervisorFitnessFunction()));
+				}catch(Exception e){}
+			}
+
+			//"Constants.RESUME token lastKnownTerm hierarchyVersion fitnessValue|- [reason1 reason2 ...]".
+			String request = sessionToken + Constants.A3_SEPARATOR + supervisorTerm +
+					Constants.A3_SEPARATOR + hierarchyVersion + Constants.A3_SEPARATOR + fitness;
+			String mySubscriptions = subscriptions.toString();
+			if(!mySubscriptions.equals(""))
+				request = request + Constants.A3_SEPARATOR + mySubscriptions;
+
+			resuming = true;
+			sendToSupervisor(new A3Message(Constants.RESUME, request));
+			unblock();
+			showOnScreen("Session resumed.");
+			return true;
+		}catch(Exception e){
+			return false;
+		}
+	}
+
 	/**It disconnect this channel from the group and the AllJoyn bus.*/
 	public void disconnect(){
 	
@@ -342,6 +579,10 @@ public class A3Channel extends Thread implements BusObject, TimerInterface, User
 		myId = null;
 		discovered = false;
 		isSupervisor = false;
+		resuming = false;
+		supervisorId = "";
+		ring.clear();
+		directLinks.closeAll();
 	}
 
 	/**
@@ -350,8 +591,35 @@ public class A3Channel extends Thread implements BusObject, TimerInterface, User
 	 */
 	private void reconnect() {
 		// TODO Auto-generated method stub
+		
+		int bound;
+		
+		synchronized(this){
+			if(reconnectPending)
+				return;
+			reconnectPending = true;
+			
+			/* When a Service fails, all the channels of the group reconnect at the same time.
+			 * If they connected at once, they would all create the group and start elections:
+			 * each of them waits for a random time instead, whose upper bound doubles at every attempt.
+			 */
+			bound = RECONNECT_MAX_DELAY;
+			if(reconnectAttempts < 5)
+				bound = Math.min(RECONNECT_BASE_DELAY << reconnectAttempts, RECONNECT_MAX_DELAY);
+			reconnectAttempts ++;
+		}
+		
 		disconnect();
-		connect(getGroupName());
+		new Timer(this, Constants.RECONNECT, random.nextInt(bound)).start();
+	}
+
+	/**It ends the delay before a reconnection.
+	 * @return true if this channel was waiting to reconnect, false otherwise.
+	 */
+	private synchronized boolean endReconnectDelay(){
+		boolean wasPending = reconnectPending;
+		reconnectPending = false;
+		return wasPending;
 	}
 
 	/**
@@ -381,6 +649,10 @@ public class A3Channel extends Thread implements BusObject, TimerInterface, User
 		unicastReceiver = new A3UnicastReceiver(groupName + "._" + id, this);
 		unicastReceiver.connect();
 		
+		synchronized(this){
+			reconnectAttempts = 0;
+		}
+		
 		//I transmit my subscriptions only if I am subscribed to receive something.
 		String message = subscriptions.toString();
 		if(!message.equals("")){
@@ -390,7 +662,13 @@ public class A3Channel extends Thread implements BusObject, TimerInterface, User
 		sendToSupervisor(new A3Message(Constants.GET_HIERARCHY, ""));
 		
 		try {
-			sendToSupervisor(new A3Message(Constants.SUPERVISOR_FITNESS_FUNCTION_REQUEST, ""));
+			/* I tell the Service the last term I know, so that its terms are always higher,
+			 * and my fitness function value, if I can be supervisor, so that I can be the deputy.
+			 */
+			String request = String.valueOf(supervisorTerm);
+			if(!followerOnly)
+				request = request + Constants.A3_SEPARATOR + fitnessSent(getSupervisorFitnessFunction());
+			sendToSupervisor(new A3Message(Constants.SUPERVISOR_FITNESS_FUNCTION_REQUEST, request));
 		} catch (Exception e) {}
 		unblock();
 		showOnScreen("Connected.");
@@ -412,6 +690,8 @@ public class A3Channel extends Thread implements BusObject, TimerInterface, User
 			if(isSupervisor){
 				mBus.unregisterSignalHandlers(supervisorRole);
 				supervisorRole.setActive(false);
+				scalingPolicy = null;
+				directLinks.closeAll();
 			}
 			
 			if(supervisorOnly){
@@ -434,6 +714,122 @@ public class A3Channel extends Thread implements BusObject, TimerInterface, User
 		}catch(Exception e){}
 	}
 
+	/**
+	 * It activates the supervisor role after this channel was elected, and it confirms the activation to the Service.
+	 * @param handedOffState The state handed off by the old supervisor, or null or "" if there is none.
+	 * In this case, the role starts from the copy of the state kept as deputy, if any.
+	 */
+	private void activateSupervisorRole(String handedOffState){
+		
+		//The handed off state is more recent than the copy kept as deputy.
+		if(handedOffState != null && !handedOffState.equals(""))
+			deputyState = handedOffState;
+		
+		becomeSupervisor();
+		
+		//I confirm the Service that I activated my role.
+		if(isSupervisor){
+			sendToSupervisor(new A3Message(Constants.NEW_SUPERVISOR, String.valueOf(supervisorTerm)));
+			startScaling();
+		}
+	}
+
+	/**It asks the Service for its load reports, if the descriptor of the group defines a scaling policy.
+	 * It must be called after the Service knows that this channel is the supervisor.
+	 */
+	private void startScaling(){
+
+		scalingPolicy = groupDescriptor.getScalingPolicy();
+
+		if(scalingPolicy != null){
+			//The load of my role is measured from now on.
+			supervisorRole.getLoad();
+			sendToSupervisor(new A3Message(Constants.LOAD_REPORT, ""));
+		}
+	}
+
+	/**It splits or merges the group, if the scaling policy decides so after a load report of the Service.
+	 * A group is merged into the group it was split from, so groups which weren't split from another one are never merged.
+	 * @param report The report, like "groupSize messageRate queueDepth".
+	 */
+	private void onLoadReport(String report){
+
+		ScalingPolicy policy = scalingPolicy;
+
+		if(!isSupervisor || policy == null)
+			return;
+
+		String[] load = report.split(Constants.A3_SEPARATOR);
+		int groupSize = Integer.valueOf(load[0]);
+
+		switch(policy.onLoadReport(groupSize, Double.valueOf(load[1]), Integer.valueOf(load[2]), supervisorRole.getLoad())){
+
+		case ScalingPolicy.SPLIT:
+			showOnScreen("Group overloaded (" + report + "): splitting it.");
+			split(policy.getNodesToTransfer(groupSize));
+			break;
+
+		case ScalingPolicy.MERGE:
+			String originGroupName = getOriginGroupName();
+			if(originGroupName != null){
+				showOnScreen("Group underloaded (" + report + "): merging it into " + originGroupName + ".");
+				node.merge(originGroupName, getGroupName());
+			}
+			break;
+
+		default: break;
+		}
+	}
+
+	/**
+	 * @return The name of the group this group was split from, which is the name of this group without the suffix "_n",
+	 * or null if this group wasn't split from another group.
+	 */
+	private String getOriginGroupName(){
+
+		String groupName = getGroupName();
+		int separator = groupName.lastIndexOf('_');
+
+		if(separator <= 0)
+			return null;
+		try{
+			Integer.valueOf(groupName.substring(separator + 1));
+			return groupName.substring(0, separator);
+		}catch(Exception e){
+			return null;
+		}
+	}
+	
+	/**It starts waiting for the state handed off by the old supervisor,
+	 * for two round trips in this group.
+	 */
+	private synchronized void startHandoff(){
+		handoffTimer = new Timer(this, Constants.HANDOFF_STATE,
+				2 * node.getRoundTripEstimator(getGroupName()).getTimeout());
+		handoffTimer.start();
+	}
+	
+	/**
+	 * @return true if this channel is waiting for the state handed off by the old supervisor, false otherwise.
+	 */
+	private synchronized boolean isWaitingForHandoff(){
+		return handoffTimer != null;
+	}
+	
+	/**It stops waiting for the state handed off by the old supervisor.
+	 * The wait can end both for the timer and for the arrival of the state:
+	 * only the first of them must be handled.
+	 * 
+	 * @return true if this channel was waiting, false otherwise.
+	 */
+	private synchronized boolean endHandoff(){
+		if(handoffTimer == null)
+			return false;
+		handoffTimer.interrupt();
+		handoffTimer = null;
+		return true;
+	}
+
 	/**
 	 * Called when this channels becomes supervisor.
 	 * It deactivates the follower role (if it is active) and it activates supervisor role.
@@ -453,6 +849,12 @@ public class A3Channel extends Thread implements BusObject, TimerInterface, User
 				node.setWaiting(this);
 			}
 			else{
+				//If I was the deputy, my role starts from the state of the old supervisor.
+				if(deputyState != null){
+					supervisorRole.setReplicatedState(deputyState);
+					deputyState = null;
+				}
+				
 				supervisorRole.setActive(true);
 				activeRole = supervisorRole;
 				new Thread(supervisorRole).start();
@@ -496,29 +898,148 @@ public class A3Channel extends Thread implements BusObject, TimerInterface, User
 	
 		switch(message.reason){
 		case Constants.NEW_SUPERVISOR:
-			//The new supervisor was elected.
+			//The new supervisor was elected: "senderAddress Constants.NEW_SUPERVISOR supervisorId term [oldSupervisorId]".
+			String[] announcement = message.object.split(Constants.A3_SEPARATOR);
 	
-			if(message.object.equals("?")){
+			if(announcement[0].equals("?")){
 				message = new A3Message(Constants.SUPERVISOR_FITNESS_FUNCTION_REPLY, String.valueOf(getSupervisorFitnessFunction()));
 				sendToSupervisor(message);
 			}
 			
 			else{
-				if(message.object.equals(myId)){
-					if(!isSupervisor){
-						becomeSupervisor();
+				//An announcement of an older term comes from a stale Service: I ignore it.
+				int term = Integer.valueOf(announcement[1]);
+				if(term < supervisorTerm)
+					break;
+				supervisorTerm = term;
+				
+				//A copy of the state sent by another supervisor is stale.
+				if(!supervisorId.equals(announcement[0]))
+					earlyDeputyState = null;
+				supervisorId = announcement[0];
+				
+				if(announcement[0].equals(myId)){
+					if(!isSupervisor && !isWaitingForHandoff()){
+						
+						/* The old supervisor is still in the group and it hands the state of its role off to me:
+						 * I activate my role when the state arrives, or after a timeout if it doesn't.
+						 */
+						if(announcement.length > 2)
+							startHandoff();
+						else
+							activateSupervisorRole(null);
 					}
 				}
 				
 				else{
+					endHandoff();
+					
+					//I'm the old supervisor: I hand the state of my role off to the new one, through the Service.
+					if(isSupervisor && announcement.length > 2 && announcement[2].equals(myId)){
+						String state = supervisorRole.getReplicatedState();
+						sendToSupervisor(new A3Message(Constants.HANDOFF_STATE,
+								term + Constants.A3_SEPARATOR + (state == null ? "" : state)));
+					}
+					
 					if(isSupervisor || firstConnection){
 						firstConnection = false;
 						becomeFollower();
 					}
+					
+					//The new supervisor needs to know the links I hold.
+					node.getRouter().advertiseLinks(getGroupName());
 				}
 			}
 			break;
 			
+		case Constants.NEW_DEPUTY:
+			//The new deputy was elected: "senderAddress Constants.NEW_DEPUTY deputyId term".
+			announcement = message.object.split(Constants.A3_SEPARATOR);
+			
+			if(Integer.valueOf(announcement[1]) < supervisorTerm)
+				break;
+			
+			deputyId = announcement[0];
+			
+			if(!deputyId.equals(myId))
+				deputyState = null;
+			
+			//The state sent to me before the announcement is mine, if I'm the deputy.
+			else if(earlyDeputyState != null)
+				deputyState = earlyDeputyState;
+			earlyDeputyState = null;
+			
+			//If I'm the supervisor, the new deputy needs a copy of the state of my role.
+			if(isSupervisor && !deputyId.equals(""))
+				supervisorRole.replicateState();
+			break;
+			
+		case Constants.DEPUTY_STATE:
+			/* "senderAddress Constants.DEPUTY_STATE state": I'm the deputy and I keep the copy of the state.
+			 * If the announcement that I'm the deputy didn't arrive yet, I keep the copy until it arrives.
+			 */
+			if(deputyId.equals(myId))
+				deputyState = message.object;
+			else if(message.senderAddress.equals(supervisorId))
+				earlyDeputyState = message.object;
+			break;
+			
+		case Constants.HANDOFF_STATE:
+			//"senderAddress Constants.HANDOFF_STATE state": the state of the role of the old supervisor.
+			if(endHandoff())
+				activateSupervisorRole(message.object);
+			break;
+			
+		case Constants.DUPLICATE_GROUP:
+			//"senderAddress Constants.DUPLICATE_GROUP survivorInstanceName": my Service merges into its duplicate.
+			showOnScreen("Group duplicated: I move to " + message.object + ".");
+			reconnect();
+			break;
+			
+		case Constants.SESSION_TOKEN:
+			/* "senderAddress Constants.SESSION_TOKEN token hierarchyVersion hierarchyIsFresh [instanceName]".
+			 * If I resumed my session and I missed some hierarchy change, I ask for the hierarchy.
+			 */
+			String[] session = message.object.split(Constants.A3_SEPARATOR);
+			sessionToken = session[0];
+			if(session.length > 3)
+				serviceName = session[3];
+			if(resuming && !Boolean.valueOf(session[2]))
+				sendToSupervisor(new A3Message(Constants.GET_HIERARCHY, ""));
+			resuming = false;
+			hierarchyVersion = Integer.valueOf(session[1]);
+			break;
+			
+		case Constants.LOAD_REPORT:
+			//"senderAddress Constants.LOAD_REPORT groupSize messageRate queueDepth".
+			onLoadReport(message.object);
+			break;
+			
+		case Constants.RING:
+			//"senderAddress Constants.RING ringVersion member1 member2 ...".
+			String[] members = message.object.split(Constants.A3_SEPARATOR);
+			ArrayList<String> ringMembers = new ArrayList<String>();
+			for(int i = 1; i < members.length; i++)
+				ringMembers.add(members[i]);
+			ring.setMembers(ringMembers, Integer.valueOf(members[0]));
+			break;
+			
+		case Constants.RING_DELTA:
+			
+			/* "senderAddress Constants.RING_DELTA ringVersion +address|-address".
+			 * If I missed a change, I ask for all the members, otherwise I tell my role which keys may have moved.
+			 */
+			String[] delta = message.object.split(Constants.A3_SEPARATOR);
+			if(!ring.apply(Integer.valueOf(delta[0]), delta[1].substring(1), delta[1].startsWith("+")))
+				sendToSupervisor(new A3Message(Constants.RING, ""));
+			else if(ring.getVersion() >= 0)
+				inputQueue.enqueue(message);
+			
+			//I don't send messages directly to a channel which left the group.
+			if(delta[1].startsWith("-"))
+				directLinks.close(delta[1].substring(1));
+			break;
+			
 		case Constants.SUBSCRIPTION:
 		case Constants.UNSUBSCRIPTION:
 			subscriptions.onMessage(message);
@@ -527,29 +1048,57 @@ public class A3Channel extends Thread implements BusObject, TimerInterface, User
 		case Constants.HIERARCHY:
 		case Constants.ADD_TO_HIERARCHY:
 		case Constants.REMOVE_FROM_HIERARCHY:
+			if(message.reason != Constants.HIERARCHY)
+				hierarchyVersion ++;
 			hierarchy.onMessage(message);
+			
+			//The links this node holds between my group and the other ones may have changed.
+			if(message.reason == Constants.REMOVE_FROM_HIERARCHY)
+				node.getRouter().withdrawLink(getGroupName(), message.object);
+			else
+				node.getRouter().advertiseLinks(getGroupName());
 			break;
 			
 		case Constants.SUPERVISOR_FITNESS_FUNCTION_REQUEST:
 			if(!followerOnly){
 				//I send the value of my fitness function to the Service, which collects it.
-				message = new A3Message(Constants.SUPERVISOR_FITNESS_FUNCTION_REPLY, String.valueOf(getSupervisorFitnessFunction()));
-				sendToSupervisor(message);
+				message = new A3Message(Constants.SUPERVISOR_FITNESS_FUNCTION_REPLY, String.valueOf(fitnessSent(getSupervisorFitnessFunction())));
+			}
+			else{
+				/* I can't be supervisor, but I reply with an empty value:
+				 * in this way the Service doesn't wait for me until the timeout.
+				 */
+				message = new A3Message(Constants.SUPERVISOR_FITNESS_FUNCTION_REPLY, "");
 			}
+			sendToSupervisor(message);
 			break;
 			
 		case Constants.BOOLEAN_SPLIT_FITNESS_FUNCTION:
+			//"senderAddress Constants.BOOLEAN_SPLIT_FITNESS_FUNCTION [newGroupName [instanceName]]".
 			//If my fitness function equals true, I transfer to the new group.
 			hierarchy.incrementSubgroupsCounter();
+			hierarchyVersion ++;
 			if(!isSupervisor && getBooleanSplitFitnessFunction())
-				node.actualMerge(getGroupName() + "_" + hierarchy.getSubgroupsCounter(), groupName);
+				moveTo(message.object, getGroupName() + "_" + hierarchy.getSubgroupsCounter());
 			break;
 			
 		case Constants.INTEGER_SPLIT_FITNESS_FUNCTION:
-			//I send my integer split fitness function value to the Service.
+			//"senderAddress Constants.INTEGER_SPLIT_FITNESS_FUNCTION numberOfFollowers".
 			hierarchy.incrementSubgroupsCounter();
-			if(!isSupervisor){
-				message = new A3Message(Constants.INTEGER_SPLIT_FITNESS_FUNCTION, String.valueOf(getIntegerSplitFitnessFunction()));
+			hierarchyVersion ++;
+			if(isSupervisor){
+				//I can stop collecting values as soon as all the followers replied.
+				supervisorRole.setExpectedSplitVoters(Integer.valueOf(message.object));
+			}
+			else{
+				//I send my integer split fitness function value to the Service, or an empty value if I don't have it.
+				String value;
+				try{
+					value = String.valueOf(getIntegerSplitFitnessFunction());
+				}catch(Exception e){
+					value = "";
+				}
+				message = new A3Message(Constants.INTEGER_SPLIT_FITNESS_FUNCTION, value);
 				sendToSupervisor(message);
 			}
 			break;
@@ -559,20 +1108,22 @@ public class A3Channel extends Thread implements BusObject, TimerInterface, User
 			 * a new group is created and I get notified of it.
 			 */
 			hierarchy.incrementSubgroupsCounter();
+			hierarchyVersion ++;
 			break;
 			
 		case Constants.MERGE:
-			//"senderAddress Constants.MERGE otherGroupName".
-			node.actualMerge(message.object, getGroupName());
+			//"senderAddress Constants.MERGE otherGroupName [instanceName]".
+			moveTo(message.object, null);
 			break;
 			
 		case Constants.SPLIT:
 			
-			/* I will connect to a group splitted by this group, which has the same roles of this group,
+			/* "senderAddress Constants.SPLIT [newGroupName [instanceName]]".
+			 * I will connect to a group splitted by this group, which has the same roles of this group,
 			 * so I don't need to check for right roles here.
 			 */
 			if(!isSupervisor)
-				node.actualMerge(getGroupName() + "_" + hierarchy.getSubgroupsCounter(), getGroupName());
+				moveTo(message.object, getGroupName() + "_" + hierarchy.getSubgroupsCounter());
 			
 			break;
 		
@@ -592,13 +1143,14 @@ public class A3Channel extends Thread implements BusObject, TimerInterface, User
 			break;
 			
 		case Constants.WAIT_NEW_SUPERVISOR:
-			// "senderAddress Constants.WAIT_NEW_SUPERVISOR groupName supervisorId".
+			// "senderAddress Constants.WAIT_NEW_SUPERVISOR groupName supervisorId term".
 			String[] splittedObject = ((String)message.object).split(Constants.A3_SEPARATOR);
 			
 			A3Channel channel;
 			
 			try{
 				channel = node.getChannel(splittedObject[0]);
+				channel.supervisorTerm = Math.max(channel.supervisorTerm, Integer.valueOf(splittedObject[2]));
 				
 				if(splittedObject[1].equals(myId)){
 					
@@ -610,6 +1162,7 @@ public class A3Channel extends Thread implements BusObject, TimerInterface, User
 						channel.connect(splittedObject[0]);
 						channel.becomeSupervisor();
 						channel.sendToSupervisor(new A3Message(Constants.NEW_SUPERVISOR, ""));
+						channel.startScaling();
 					}
 				}
 				
@@ -627,6 +1180,17 @@ public class A3Channel extends Thread implements BusObject, TimerInterface, User
 			
 			break;
 			
+		case Constants.TASK:
+			
+			/* "senderAddress Constants.TASK taskId reason object".
+			 * I acknowledge it with "Constants.TASK_ACK taskId taskFitness" as soon as it arrives,
+			 * and not when my role takes it: my role may be still executing the task dispatched before it.
+			 */
+			sendToSupervisor(new A3Message(Constants.TASK_ACK, message.object.split(Constants.A3_SEPARATOR, 2)[0] +
+					Constants.A3_SEPARATOR + getTaskFitnessFunction()));
+			inputQueue.enqueue(message);
+			break;
+			
 		case Constants.WAIT_MERGE:
 			// "senderAddress Constants.WAIT_MERGE groupToJoin groupToDestroy".
 			splittedObject = ((String)message.object).split(Constants.A3_SEPARATOR);
@@ -673,7 +1237,9 @@ public class A3Channel extends Thread implements BusObject, TimerInterface, User
 			msg.senderAddress = myId;
 			
 			if (mIsConnected && serviceInterface != null){
+				long sendingTime = System.currentTimeMillis();
 				inServiceView = serviceInterface.sendToSupervisor(msg);
+				node.getChannelEstimator(getGroupName()).addSample(System.currentTimeMillis() - sendingTime);
 	
 				if(!inServiceView){
 					sent = false;
@@ -712,11 +1278,16 @@ public class A3Channel extends Thread implements BusObject, TimerInterface, User
 	public void sendBroadcast(A3Message message){
 		
 		boolean ok = false;
+		int term;
 		
 		if(isSupervisor){
 			message.senderAddress = myId;
 			try{
-				ok = serviceInterface.sendBroadcast(message);
+				ok = serviceInterface.sendBroadcast(message, supervisorTerm);
+				
+				//My term may be old: I retry with the current one before reconnecting.
+				if(!ok && (term = getRefreshedTerm()) >= 0)
+					ok = serviceInterface.sendBroadcast(message, term);
 			}
 			catch(Exception e){}
 			if(!ok)
@@ -727,7 +1298,7 @@ public class A3Channel extends Thread implements BusObject, TimerInterface, User
 	}
 
 	/**
-	 * Sends a message to the Service and, form there, to the specified member of the group.
+	 * Sends a message directly to the specified member of the group, or through the Service if it can't (see DirectLinks).
 	 * Such operation is possible only if this channel is the supervisor.
 	 * If the transmission is unsuccesful, this channel reconnects, and a view update starts.
 	 * @param message The message to send.
@@ -736,11 +1307,17 @@ public class A3Channel extends Thread implements BusObject, TimerInterface, User
 	public void sendUnicast(A3Message message, String receiverAddress){
 	
 		boolean ok = false;
+		int term;
 		
 		if(isSupervisor){
 			message.senderAddress = myId;
 			try{
-				ok = serviceInterface.sendUnicast(message, receiverAddress);
+				ok = directLinks.send(message, receiverAddress, supervisorTerm) ||
+						serviceInterface.sendUnicast(message, receiverAddress, supervisorTerm);
+				
+				//My term may be old: I retry with the current one before reconnecting.
+				if(!ok && (term = getRefreshedTerm()) >= 0)
+					ok = serviceInterface.sendUnicast(message, receiverAddress, term);
 			}
 			catch(Exception e){}
 			if(!ok)
@@ -760,11 +1337,16 @@ public class A3Channel extends Thread implements BusObject, TimerInterface, User
 	public void sendMulticast(A3Message message){
 	
 		boolean ok = false;
+		int term;
 		
 		if(isSupervisor){
 			message.senderAddress = myId;
 			try{
-				ok = serviceInterface.sendMulticast(message);
+				ok = serviceInterface.sendMulticast(message, supervisorTerm);
+				
+				//My term may be old: I retry with the current one before reconnecting.
+				if(!ok && (term = getRefreshedTerm()) >= 0)
+					ok = serviceInterface.sendMulticast(message, term);
 			}
 			catch(Exception e){}
 			if(!ok)
@@ -775,8 +1357,8 @@ public class A3Channel extends Thread implements BusObject, TimerInterface, User
 	}
 
 	/**
-	 * Sends a message to the Service and, form there, to the members of the group specified in "destinations".
-	 * This results in calling "sendUnicast(message, destination)" on the Service for every destination.
+	 * Sends a message to the members of the group specified in "destinations".
+	 * This results in sending the message directly to every destination, or calling "sendUnicast(message, destination)" on the Service.
 	 * Such operation is possible only if this channel is the supervisor.
 	 * If the transmission is unsuccesful, this channel reconnects, and a view update starts.
 	 * @param message The message to send.
@@ -785,11 +1367,18 @@ public class A3Channel extends Thread implements BusObject, TimerInterface, User
 	public void sendMulticast(A3Message message, ArrayList<String> destinations){
 	
 		boolean ok = true;
+		int term;
 		
 		if(isSupervisor){
+			message.senderAddress = myId;
 			for (int i = 0; i < destinations.size() && ok; i ++){
 				try{
-					ok = serviceInterface.sendUnicast(message, destinations.get(i));
+					ok = directLinks.send(message, destinations.get(i), supervisorTerm) ||
+							serviceInterface.sendUnicast(message, destinations.get(i), supervisorTerm);
+					
+					//My term may be old: I retry with the current one before reconnecting.
+					if(!ok && (term = getRefreshedTerm()) >= 0)
+						ok = serviceInterface.sendUnicast(message, destinations.get(i), term);
 				}
 				catch(Exception e){}
 			}
@@ -800,6 +1389,35 @@ public class A3Channel extends Thread implements BusObject, TimerInterface, User
 			showOnScreen("Sending failed: I'm not the supervisor.");
 	}
 
+	/**It is called when the Service refused a message I sent as supervisor.
+	 * The Service raises its term when a channel knows a higher one, and it announces the same supervisor with the new term:
+	 * the messages I send before the announcement reaches me carry the old term, and a retry is enough for them.
+	 * The Service still checks that I'm its supervisor.
+	 * 
+	 * @return The term of the Service, if it is higher than the one I know, otherwise -1.
+	 */
+	private int getRefreshedTerm(){
+		try{
+			int term = serviceInterface.getTerm();
+			if(term > supervisorTerm)
+				return term;
+		}catch(Exception e){}
+		return -1;
+	}
+
+	/**
+	 * Sends a copy of the state of the supervisor role to the deputy supervisor, if there is one.
+	 * Such operation is possible only if this channel is the supervisor.
+	 * @param state The string representation of the state of the supervisor role.
+	 */
+	public void sendToDeputy(String state){
+
+		String deputy = deputyId;
+
+		if(isSupervisor && !deputy.equals(""))
+			sendUnicast(new A3Message(Constants.DEPUTY_STATE, state), deputy);
+	}
+
 	/**
 	 * It adds a new subscription to the list "mySubscriptions" used on the channel
 	 * and notifies it to the Service.
@@ -933,6 +1551,10 @@ public class A3Channel extends Thread implements BusObject, TimerInterface, User
 			mHandler.sendMessage(msg);
 		}
 
+		public void sendMessageDelayed(Message msg, long delay) {
+			mHandler.sendMessageDelayed(msg, delay);
+		}
+
 		@Override
 		protected void onLooperPrepared() {
 			super.onLooperPrepared();
@@ -946,14 +1568,23 @@ public class A3Channel extends Thread implements BusObject, TimerInterface, User
 		
 					case Constants.SESSION_LOST:
 		
-						showOnScreen("Session lost: I reconnect.");
-						reconnect();
+						//If the session can't be resumed, I reconnect.
+						if(!resumeSession()){
+							showOnScreen("Session lost: I reconnect.");
+							reconnect();
+						}
 						
 						break;
 		
 					case Constants.TIMER_FIRED:{
 						if(msg.arg1 == 0){
 							
+							if(!endDiscovery())
+								break;
+							
+							if(!discovered)
+								discoveryTimedOut();
+							
 							mBus.cancelFindAdvertisedName(groupName);
 							
 							/*The group name wasn't found, so I must create the Service.
@@ -962,6 +1593,8 @@ public class A3Channel extends Thread implements BusObject, TimerInterface, User
 							 */
 							if(!discovered){
 								
+								node.getGroupDirectory().setMissing(groupName);
+								
 								if(followerOnly){
 									
 									node.setWaiting(A3Channel.this);
@@ -975,6 +1608,33 @@ public class A3Channel extends Thread implements BusObject, TimerInterface, User
 								joinSession();
 							}catch(Exception e){}
 						}
+						
+						else if(msg.arg1 == Constants.RECONNECT){
+							
+							//I reconnect only if the node still uses this channel.
+							try{
+								if(endReconnectDelay() && node.getChannel(getGroupName()) == A3Channel.this)
+									connect(getGroupName());
+							}catch(Exception e){}
+						}
+						
+						else if(msg.arg1 == Constants.HANDOFF_STATE){
+							
+							//The old supervisor didn't hand its state off in time: my role starts without it.
+							if(endHandoff())
+								activateSupervisorRole(null);
+						}
+						
+						else if(msg.arg1 == Constants.FITNESS_HEARTBEAT){
+							
+							endFitnessCheck();
+
+							//I stop refreshing when nobody uses this channel anymore.
+							if(connectedForApplication || connectedForSystem){
+								refreshFitness();
+								scheduleFitnessCheck();
+							}
+						}
 					}
 					break;	
 					default: break;
@@ -1031,6 +1691,14 @@ public class A3Channel extends Thread implements BusObject, TimerInterface, User
 		return groupDescriptor.getBooleanSplitFitnessFunction();
 	}
 
+	/**
+	 * @return The value of an integer fitness function used to distribute the tasks,
+	 * as defined in the group descriptor class.
+	 */
+	protected int getTaskFitnessFunction(){
+		return groupDescriptor.getTaskFitnessFunction();
+	}
+
 	/**
 	 * @return The value of an integer fitness function used for supervisor election,
 	 * as defined in the group descriptor class.
@@ -1043,6 +1711,58 @@ public class A3Channel extends Thread implements BusObject, TimerInterface, User
 		throw new Exception("Cannot become supervisor.");
 	}
 
+	/**
+	 * It sends the supervisor fitness function value to the Service, which caches it,
+	 * if it changed or if it wasn't sent for a refresh period.
+	 * The value is not sent if this channel can't be supervisor, or if it belongs to the group "wait".
+	 */
+	private void refreshFitness(){
+
+		if(!mIsConnected || followerOnly || getGroupName().equals("wait"))
+			return;
+
+		try{
+			int value = getSupervisorFitnessFunction();
+
+			if(value != lastSentFitness || System.currentTimeMillis() - lastFitnessRefresh >= FitnessTable.REFRESH_PERIOD)
+				sendToSupervisor(new A3Message(Constants.FITNESS_HEARTBEAT, String.valueOf(fitnessSent(value))));
+		}catch(Exception e){}
+	}
+
+	/**It schedules the next check of the supervisor fitness function value on the callback thread,
+	 * unless it is already scheduled or this channel can't be supervisor.
+	 */
+	private synchronized void scheduleFitnessCheck(){
+
+		if(fitnessCheckScheduled || followerOnly)
+			return;
+
+		try{
+			Message msg = callbackThread.obtainMessage();
+			msg.arg1 = Constants.FITNESS_HEARTBEAT;
+			msg.arg2 = Constants.TIMER_FIRED;
+			callbackThread.sendMessageDelayed(msg, FitnessTable.CHECK_PERIOD);
+			fitnessCheckScheduled = true;
+		}catch(Exception e){}
+	}
+
+	/**It marks the scheduled check of the supervisor fitness function value as started.*/
+	private synchronized void endFitnessCheck(){
+		fitnessCheckScheduled = false;
+	}
+
+	/**
+	 * It records that the supervisor fitness function value was sent to the Service,
+	 * so that it isn't sent again in a heartbeat before it changes or before a refresh period.
+	 * @param value The value sent.
+	 * @return The value sent.
+	 */
+	private int fitnessSent(int value){
+		lastSentFitness = value;
+		lastFitnessRefresh = System.currentTimeMillis();
+		return value;
+	}
+
 	/**
 	 * It starts a supervisor election in the group this channel belongs to.
 	 * @param groupName The name of the group in which to start the supervisor election.
@@ -1053,14 +1773,49 @@ public class A3Channel extends Thread implements BusObject, TimerInterface, User
 		sendToSupervisor(message);
 	}
 
+	/**It moves this node from this group to another one.
+	 * 
+	 * @param redirection The string "groupName [instanceName]" which tells the group to join and how to reach it,
+	 * or "" if it isn't known.
+	 * @param defaultGroupName The group to join if "redirection" is "".
+	 */
+	private void moveTo(String redirection, String defaultGroupName){
+		
+		String[] splittedRedirection = redirection.split(Constants.A3_SEPARATOR);
+		
+		if(redirection.equals(""))
+			node.actualMerge(defaultGroupName, getGroupName());
+		else
+			node.actualMerge(splittedRedirection[0], getGroupName(),
+					splittedRedirection.length > 1 ? splittedRedirection[1] : null);
+	}
+
+	/**It sets the Service to join at the next connection, without discovering the group.
+	 * 
+	 * @param instanceName The instance name of the Service.
+	 */
+	public void redirectTo(String instanceName){
+		redirectName = instanceName;
+	}
+
+	/**
+	 * @return The instance name of the Service this channel is connected to, or null if it isn't known.
+	 */
+	public String getServiceName(){
+		return serviceName;
+	}
+
 	/**It sends a message to the Service, in order for it to start a random split operation.
+	 * The Service creates the new group before moving the nodes to it.
 	 * 
 	 * @param nodesToTransfer The number of nodes to translate to the new group.
 	 */
 	public void split(int nodesToTransfer) {
 		// TODO Auto-generated method stub
 		
-		A3Message message = new A3Message(Constants.SPLIT, String.valueOf(nodesToTransfer));
+		//The Service notifies the new group before the split, so the followers will count it.
+		String newGroupName = getGroupName() + "_" + (hierarchy.getSubgroupsCounter() + 1);
+		A3Message message = new A3Message(Constants.SPLIT, nodesToTransfer + Constants.A3_SEPARATOR + newGroupName);
 		sendToSupervisor(message);
 	}
 
@@ -1089,7 +1844,11 @@ public class A3Channel extends Thread implements BusObject, TimerInterface, User
 		// TODO Auto-generated method stub
 		
 		try{
-			A3Message message = new A3Message(Constants.BOOLEAN_SPLIT_FITNESS_FUNCTION, "");
+			/* The followers count the new group twice: when the Service notifies it and when they receive this message.
+			 * The Service creates the new group and tells them how to reach it.
+			 */
+			String newGroupName = getGroupName() + "_" + (hierarchy.getSubgroupsCounter() + 2);
+			A3Message message = new A3Message(Constants.BOOLEAN_SPLIT_FITNESS_FUNCTION, newGroupName);
 			sendBroadcast(message);
 		} catch (Exception e) {
 			throw new Exception(e.getLocalizedMessage());
@@ -1103,6 +1862,8 @@ public class A3Channel extends Thread implements BusObject, TimerInterface, User
 
 	public void setConnectedForApplication(boolean connectedForApplication) {
 		this.connectedForApplication = connectedForApplication;
+		if(connectedForApplication)
+			scheduleFitnessCheck();
 	}
 
 	public boolean isConnectedForSystem() {
@@ -1111,6 +1872,8 @@ public class A3Channel extends Thread implements BusObject, TimerInterface, User
 
 	public void setConnectedForSystem(boolean connectedForSystem) {
 		this.connectedForSystem = connectedForSystem;
+		if(connectedForSystem)
+			scheduleFitnessCheck();
 	}
 	
 	public String getGroupName() {
@@ -1121,12 +1884,57 @@ public class A3Channel extends Thread implements BusObject, TimerInterface, User
 	public Hierarchy getHierarchy(){
 		return hierarchy;
 	}
+
+	public HashRing getRing(){
+		return ring;
+	}
+
+	public DirectLinks getDirectLinks(){
+		return directLinks;
+	}
+
+	/**It is called by my UnicastReceiver when the supervisor sends me a message directly (see DirectLinks).
+	 * The message is accepted only if it comes from the supervisor I know, in its term:
+	 * otherwise the supervisor sends it again through the Service, which fences off stale supervisors.
+	 * 
+	 * @param message The message.
+	 * @param term The term of the supervisor which sent the message.
+	 * @return true if the message was accepted, false otherwise.
+	 */
+	public boolean onDirectUnicast(A3Message message, int term){
+		
+		if(term != supervisorTerm || !message.senderAddress.equals(supervisorId))
+			return false;
+		ReceiveBroadcast(message);
+		return true;
+	}
+
+	/**It is called by my UnicastReceiver when the Service delivers a message to the supervisor role point-to-point.
+	 * 
+	 * @param message The message sent by a follower.
+	 * @return true if the message was passed to the supervisor role, false if I'm not the supervisor.
+	 */
+	public boolean onSupervisorMessage(A3Message message){
+		
+		if(!isSupervisor)
+			return false;
+		supervisorRole.onMessage(message);
+		return true;
+	}
 	
 	public boolean isSupervisor() {
 		// TODO Auto-generated method stub
 		return isSupervisor;
 	}
 
+	public int getSupervisorTerm() {
+		return supervisorTerm;
+	}
+
+	public boolean isDeputy() {
+		return deputyId.equals(myId);
+	}
+
 	public String getChannelId() {
 		// TODO Auto-generated method stub
 		return myId;
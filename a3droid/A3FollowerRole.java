@@ -24,6 +24,14 @@ public abstract class A3FollowerRole extends A3Role{
 		case Constants.STACK_REPLY:
 		case Constants.PEERS_REPLY:
 		case Constants.HIERARCHY_REPLY:
+		case Constants.QUERY:
+		case Constants.MAP_REDUCE:
+		case Constants.ROUTE:
+		case Constants.ROUTE_ADVERTISEMENT:
+		case Constants.SUBTREE_BROADCAST:
+		case Constants.SUBTREE_MESSAGE:
+		case Constants.RING_DELTA:
+		case Constants.TASK:
 			break;
 		default: receiveApplicationMessage(message); break;
 		}
@@ -65,6 +65,29 @@ public class A3Message {
 		case Constants.WAIT_SUPERVISOR_FITNESS_FUNCTION_REQUEST: reasonString = "WAIT_SUPERVISOR_FITNESS_FUNCTION_REQUEST"; break;
 		case Constants.WAIT_NEW_SUPERVISOR: reasonString = "WAIT_NEW_SUPERVISOR"; break;
 		case Constants.SUPERVISOR_FITNESS_FUNCTION_REPLY: reasonString = "SUPERVISOR_FITNESS_FUNCTION_REPLY"; break;
+		case Constants.NEW_DEPUTY: reasonString = "NEW_DEPUTY"; break;
+		case Constants.DEPUTY_STATE: reasonString = "DEPUTY_STATE"; break;
+		case Constants.FITNESS_HEARTBEAT: reasonString = "FITNESS_HEARTBEAT"; break;
+		case Constants.HANDOFF_STATE: reasonString = "HANDOFF_STATE"; break;
+		case Constants.RESUME: reasonString = "RESUME"; break;
+		case Constants.SESSION_TOKEN: reasonString = "SESSION_TOKEN"; break;
+		case Constants.RECONNECT: reasonString = "RECONNECT"; break;
+		case Constants.JOIN_ADMISSION: reasonString = "JOIN_ADMISSION"; break;
+		case Constants.DUPLICATE_GROUP: reasonString = "DUPLICATE_GROUP"; break;
+		case Constants.LOAD_REPORT: reasonString = "LOAD_REPORT"; break;
+		case Constants.ROUTE: reasonString = "ROUTE"; break;
+		case Constants.ROUTE_ADVERTISEMENT: reasonString = "ROUTE_ADVERTISEMENT"; break;
+		case Constants.SUBTREE_BROADCAST: reasonString = "SUBTREE_BROADCAST"; break;
+		case Constants.SUBTREE_MESSAGE: reasonString = "SUBTREE_MESSAGE"; break;
+		case Constants.AGGREGATE: reasonString = "AGGREGATE"; break;
+		case Constants.QUERY: reasonString = "QUERY"; break;
+		case Constants.QUERY_REPLY: reasonString = "QUERY_REPLY"; break;
+		case Constants.RING: reasonString = "RING"; break;
+		case Constants.RING_DELTA: reasonString = "RING_DELTA"; break;
+		case Constants.TASK: reasonString = "TASK"; break;
+		case Constants.TASK_ACK: reasonString = "TASK_ACK"; break;
+		case Constants.TASK_RESULT: reasonString = "TASK_RESULT"; break;
+		case Constants.MAP_REDUCE: reasonString = "MAP_REDUCE"; break;
 		default: reasonString = String.valueOf(reason); break;
 		}
 		return senderAddress + " " + reasonString + " " + object;
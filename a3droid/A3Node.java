@@ -2,6 +2,9 @@ package a3.a3droid;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * This class represent a device, with the roles it can play in each group.
@@ -26,7 +29,7 @@ public class A3Node extends Thread implements UserInterface{
 	 */
 	private static final int CONNECTING = 2;
 
-	/**Channel state that indicates that the channel isn't in the "channels" list,
+	/**Channel state that indicates that the channel isn't in the "channels" map,
 	 * so it must be created.
 	 */
 	private static final int DOES_NOT_EXIST = 3;
@@ -34,26 +37,61 @@ public class A3Node extends Thread implements UserInterface{
 	/**The user interface to interact with.*/
 	private UserInterface ui;
 
-	/**The list of the channels to communicate with the groups this node is connected to.
+	/**The channels to communicate with the groups this node is connected to, by group name.
 	 * There are also channels that are disconnected because they are in "wait" group.
-	 * In such case, a channel to the group "wait" is connected and in this list.*/
-	private ArrayList<A3Channel> channels;
+	 * In such case, a channel to the group "wait" is connected and in this map.
+	 * It is read without locks by the methods which send messages.*/
+	private ConcurrentHashMap<String, A3Channel> channels;
 
-	/**The state of the channels in list "channels".
+	/**The state of the channels in map "channels".
 	 * State can be "WAITING", "CONNECTED", "CONNECTING", "DOES_NOT_EXIST".
+	 * A group is reserved by putting it "CONNECTING", and it is released after its channel is removed from "channels".
 	 */
-	private HashMap<String, Integer> channelsStatus;
+	private ConcurrentHashMap<String, Integer> channelsStatus;
 
-	/**The list of roles this node can assume.
-	 * I suppose that it can't change at runtime.
+	/**The roles this node can assume, resolved when this node is created.
+	 * I suppose that they can't change at runtime.
 	 */
-	private final ArrayList<String> roles;
+	private final RoleRegistry roleRegistry;
 
 	/**The list of the descriptors of the groups that can be present in the system.
 	 * The groups splitted by other groups have their same descriptors.
 	 */
 	private final ArrayList<GroupDescriptor> groupDescriptors;
 
+	/**The index of "groupDescriptors" by group name, also for the groups splitted by other groups.*/
+	private final DescriptorIndex descriptorIndex;
+
+	/**For each group whose channel is connecting, its ongoing connection.
+	 * It is put before the group is reserved in "channelsStatus", and removed when the connection ends.
+	 */
+	private ConcurrentHashMap<String, GroupConnection> pendingConnections;
+
+	/**The hierarchy operations waiting for the reply of a remote step, by the key of the reply they wait for.*/
+	private HashMap<String, HierarchyOperation> pendingOperations;
+
+	/**For each group, the estimate of the round trip times measured in it, used to derive its timeouts.*/
+	private HashMap<String, RoundTripEstimator> roundTripEstimators;
+
+	/**For each group, the estimate of the round trip times of the calls of its channels to its Service.
+	 * It is kept apart, because a call is a single hop, while an election needs a broadcast and all the replies.
+	 */
+	private HashMap<String, RoundTripEstimator> channelEstimators;
+
+	/**The time it took for all the connections started by the last "connectAll(ArrayList, boolean)" to end, in milliseconds.*/
+	private volatile long lastConnectAllTime;
+
+	/**The estimate of the time needed to discover a group on the bus, used to derive the discovery timeout.
+	 * It is the same for all the groups, because it depends on the bus.
+	 */
+	private RoundTripEstimator discoveryEstimator;
+
+	/**The groups which exist in the system, discovered once for all the channels of this node.*/
+	private GroupDirectory groupDirectory;
+
+	/**The router of the messages addressed to the groups this node isn't connected to.*/
+	private Router router;
+
 	/**
 	 * 
 	 * @param ui The user interface to interact with.
@@ -64,22 +102,33 @@ public class A3Node extends Thread implements UserInterface{
 
 		super("node");
 		this.ui = ui;
-		channels = new ArrayList<A3Channel>();
-		channelsStatus = new HashMap<String, Integer>();
+		channels = new ConcurrentHashMap<String, A3Channel>();
+		channelsStatus = new ConcurrentHashMap<String, Integer>();
+		pendingConnections = new ConcurrentHashMap<String, GroupConnection>();
+		pendingOperations = new HashMap<String, HierarchyOperation>();
+		roundTripEstimators = new HashMap<String, RoundTripEstimator>();
+		channelEstimators = new HashMap<String, RoundTripEstimator>();
+		discoveryEstimator = new RoundTripEstimator(250, 10000);
+		lastConnectAllTime = -1;
 		groupDescriptors.add(new WaitGroupDescriptor());
 		this.groupDescriptors = groupDescriptors;
+		descriptorIndex = new DescriptorIndex(groupDescriptors);
 
 		if(roles == null)
 			roles = new ArrayList<String>();
 
 		roles.add(Constants.PACKAGE_NAME + ".WaitSupervisorRole");
 		roles.add(Constants.PACKAGE_NAME + ".WaitFollowerRole");
-		this.roles = roles;
+		roleRegistry = new RoleRegistry(roles, groupDescriptors, ui);
+
+		groupDirectory = new GroupDirectory(ui);
+		groupDirectory.connect();
+		router = new Router(this);
 
 		start();
 	}
 
-	/**Looks for a channel in the "channels" list.
+	/**Looks for a channel in the "channels" map.
 	 * 
 	 * @param groupName The name of the group to communicate with (i.e. to which the channel is connected).
 	 * @return The channel connected to the group "groupName".
@@ -87,39 +136,122 @@ public class A3Node extends Thread implements UserInterface{
 	 */
 	public A3Channel getChannel(String groupName) throws Exception{
 
-		A3Channel channel;
+		A3Channel channel = channels.get(groupName);
+
+		if(channel == null)
+			throw new Exception("NO CHANNEL WITH NAME " + groupName + ".");
+		return channel;
+	}
+
+	/**
+	 * @param groupName The name of a group.
+	 * @return true if this node is connected to the group "groupName" and it plays a role in it, false otherwise.
+	 */
+	public boolean isConnected(String groupName){
+		Integer status = channelsStatus.get(groupName);
+		return status != null && status == CONNECTED && !groupName.equals("wait");
+	}
+
+	/**
+	 * @return The names of the groups this node is connected to and plays a role in, except the group "wait".
+	 */
+	public ArrayList<String> getConnectedGroups(){
+
+		ArrayList<String> connectedGroups = new ArrayList<String>();
+
+		for(Map.Entry<String, Integer> entry : channelsStatus.entrySet()){
+			if(entry.getValue() == CONNECTED && !entry.getKey().equals("wait"))
+				connectedGroups.add(entry.getKey());
+		}
+		return connectedGroups;
+	}
+
+	public Router getRouter(){
+		return router;
+	}
+
+	/**It returns the estimate of the round trip times measured in a group, creating it if needed.
+	 * The Service of the group adds the duration of its elections to it, and the group derives its timeouts from it.
+	 * 
+	 * @param groupName The name of the group.
+	 * @return The estimate of the round trip times of the group "groupName".
+	 */
+	public RoundTripEstimator getRoundTripEstimator(String groupName){
 
-		synchronized(channels){
-			for(int i = 0; i < channels.size(); i++){
-				channel = channels.get(i);
+		synchronized(roundTripEstimators){
+			RoundTripEstimator estimator = roundTripEstimators.get(groupName);
 
-				if(channel.getGroupName().equals(groupName))
-					return channel;
+			if(estimator == null){
+				estimator = new RoundTripEstimator(50, 10000);
+				roundTripEstimators.put(groupName, estimator);
 			}
+			return estimator;
 		}
-		throw new Exception("NO CHANNEL WITH NAME " + groupName + ".");
 	}
 
-	/**Looks for a role in the "roles" list.
+	/**It returns the estimate of the round trip times of the calls of the channels of a group to its Service, creating it if needed.
+	 * Its samples don't reset the backoff of the elections of the group (see "getRoundTripEstimator(String)").
 	 * 
-	 * @param roleId The id of the role to look for.
-	 * @return The role with "roleId" as id.
-	 * @throws Exception No role has "roleId" as id.
+	 * @param groupName The name of the group.
+	 * @return The estimate of the round trip times of the calls to the Service of the group "groupName".
 	 */
-	public A3Role getRole(String roleId) throws Exception{
-		String role;
+	public RoundTripEstimator getChannelEstimator(String groupName){
+
+		synchronized(channelEstimators){
+			RoundTripEstimator estimator = channelEstimators.get(groupName);
 
-		synchronized(roles){
-			for(int i = 0; i < roles.size(); i++){
-				role = roles.get(i);
-				if(role.equals(roleId))
-					return (A3Role) Class.forName(roleId).getConstructor().newInstance();
+			if(estimator == null){
+				estimator = new RoundTripEstimator(50, 10000);
+				channelEstimators.put(groupName, estimator);
 			}
+			return estimator;
+		}
+	}
+
+	/**
+	 * @return The estimate of the time needed to discover a group on the bus.
+	 */
+	public RoundTripEstimator getDiscoveryEstimator(){
+		return discoveryEstimator;
+	}
+
+	/**
+	 * @return The groups which exist in the system, as discovered by this node.
+	 */
+	public GroupDirectory getGroupDirectory(){
+		return groupDirectory;
+	}
+
+	/**
+	 * @return The string representation of the current estimates,
+	 * in the form "{group1=..., group2=...} channels: {group1=..., group2=...} discovery: ...".
+	 */
+	public String getTimeoutEstimates(){
+
+		String groups, channels;
+
+		synchronized(roundTripEstimators){
+			groups = roundTripEstimators.toString();
 		}
-		throw new Exception("NO ROLE WITH NAME " + roleId + ".");
+		synchronized(channelEstimators){
+			channels = channelEstimators.toString();
+		}
+		return groups + " channels: " + channels + " discovery: " + discoveryEstimator;
+	}
+
+	/**Creates a new instance of a role this node can assume.
+	 * 
+	 * @param roleId The id of the role to look for.
+	 * @return A new instance of the role with "roleId" as id.
+	 * @throws Exception No role has "roleId" as id.
+	 */
+	public A3Role getRole(String roleId) throws Exception{
+		return roleRegistry.newRole(roleId);
 	}
 
-	/**Looks for a group descriptor in the "groupDescriptors" list.
+	/**Looks for a group descriptor in the index of the "groupDescriptors" list.
+	 * Groups splitted by main groups have the same descriptor as their main groups
+	 * and their names are extensions of the main group names.
 	 * 
 	 * @param groupName The name of the group whose descriptor is requested.
 	 * @return The descriptor of the group "groupName".
@@ -127,22 +259,12 @@ public class A3Node extends Thread implements UserInterface{
 	 * i.e. the group "groupName" and its subgroups don't exist in the system.
 	 */
 	public GroupDescriptor getGroupDescriptor(String groupName) throws Exception{
-		GroupDescriptor descriptor;
-		String name;
 
-		synchronized(groupDescriptors){
-			for(int i = 0; i < groupDescriptors.size(); i++){
-				descriptor = groupDescriptors.get(i);
-				name = descriptor.getName();
+		GroupDescriptor descriptor = descriptorIndex.get(groupName);
 
-				/* Groups splitted by main groups have the same descriptor as their main groups
-				 * and their names are extensions of the main group names.
-				 */
-				if(groupName.equals(name) || groupName.startsWith(name + "_"))
-					return descriptor;
-			}
-		}
-		throw new Exception("NO GROUP WITH NAME " + groupName + ".");
+		if(descriptor == null)
+			throw new Exception("NO GROUP WITH NAME " + groupName + ".");
+		return descriptor;
 	}
 
 	/**Determines if this node is the supervisor of the specified group.
@@ -173,12 +295,10 @@ public class A3Node extends Thread implements UserInterface{
 
 		try{
 			descriptor = getGroupDescriptor(groupName);
-			getRole(descriptor.getFollowerRoleId());
-			getRole(descriptor.getSupervisorRoleId());
-			return true;
 		}catch(Exception e2){
 			return false;
 		}
+		return roleRegistry.canBeFollower(descriptor) && roleRegistry.canBeSupervisor(descriptor);
 	}
 
 	/**It connects this node to the specified group, if it isn't already connected to it,
@@ -197,118 +317,244 @@ public class A3Node extends Thread implements UserInterface{
 	 */
 	public boolean connect(String groupName, boolean isResultRelevant, boolean forApplication){
 
+		GroupConnection connection = connectAsync(groupName, forApplication);
+
+		//While the channel is connecting, I consider it connected if I don't need to know the result.
+		if(!isResultRelevant && !connection.isDone())
+			return true;
+
+		try{
+			return connection.get();
+		}catch(InterruptedException e){
+			return false;
+		}
+	}
+
+	/**It connects this node to the specified group, if it isn't already connected to it,
+	 * without blocking while the channel discovers and joins the group.
+	 * Every group has its own connection, so this node can connect to many groups at the same time.
+	 * If the channel is already connecting, the ongoing connection is returned.
+	 * 
+	 * @param groupName The name of the group to connect this node to.
+	 * @param forApplication true if the connection is requested by the application,
+	 * false if it is requested by the system.
+	 * @return The connection, which ends with true if the status of the channel becomes "CONNECTED",
+	 * with false if it becomes "WAITING" or if the channel can't be created.
+	 */
+	public GroupConnection connectAsync(String groupName, boolean forApplication){
+		return connectAsync(groupName, forApplication, null);
+	}
+
+	/**It connects this node to the specified group, like "connectAsync(String, boolean)".
+	 * If the channel must be created and the Service of the group is known, the channel joins it directly.
+	 * 
+	 * @param groupName The name of the group to connect this node to.
+	 * @param forApplication true if the connection is requested by the application,
+	 * false if it is requested by the system.
+	 * @param serviceName The instance name of the Service of the group, or null if it isn't known.
+	 * @return The connection to the group.
+	 */
+	private GroupConnection connectAsync(String groupName, boolean forApplication, String serviceName){
+
 		A3Channel channel = null;
 		GroupDescriptor descriptor;
 		A3FollowerRole followerRole = null;
 		A3SupervisorRole supervisorRole = null;
-		int status;
-
-		synchronized(channelsStatus){
-			if(channelsStatus.containsKey(groupName)){
-				status = channelsStatus.get(groupName);
-				try {
-					channel = getChannel(groupName);
-					if(forApplication)
-						channel.setConnectedForApplication(true);
-					else
-						channel.setConnectedForSystem(true);
-				} catch (Exception e) {}
-			}
-			else
-				status = DOES_NOT_EXIST;
-		}
+		GroupConnection connection = new GroupConnection(groupName);
+		GroupConnection pending;
+		Integer status;
 
-		switch(status){
-		case WAITING: return false;
-		case CONNECTED: return true;
-		case CONNECTING: 
-			if(isResultRelevant){
-				synchronized(channelsStatus){
+		connection.requestUsage(forApplication);
 
-					while((status = channelsStatus.get(groupName)) == CONNECTING){
-						try {
-							channelsStatus.wait();
+		/* There is no lock on the registry: I retry while another thread is between two steps
+		 * of reserving a group or of removing a channel, which are short.
+		 */
+		while(true){
+			status = channelsStatus.get(groupName);
 
-						} catch (InterruptedException e) {}
-					}
+			if(status == null){
+				/* I reserve the group, so that a concurrent connection doesn't create another channel.
+				 * The connection is put first, so that who finds the group "CONNECTING" also finds its connection.
+				 */
+				if(pendingConnections.putIfAbsent(groupName, connection) == null){
+					if(channelsStatus.putIfAbsent(groupName, CONNECTING) == null)
+						break;
+					pendingConnections.remove(groupName, connection);
 				}
-				if(status == WAITING)
-					return false;
-				else
-					return true;
+				Thread.yield();
+				continue;
 			}
-			else
-				return true;
-
-		case DOES_NOT_EXIST:
 
-			boolean hasFollowerRole = false, hasSupervisorRole = false, followerOnly = false, supervisorOnly = false;
+			if(status == CONNECTING){
+				pending = pendingConnections.get(groupName);
 
-			try{
-				descriptor = getGroupDescriptor(groupName);
-			}catch(Exception ex){
-				return false;
+				/* If the channel is still being created, its creator will set the usage:
+				 * it reads the usage after putting the channel in "channels", and I look for it after requesting it.
+				 */
+				if(pending != null)
+					pending.requestUsage(forApplication);
+				channel = channels.get(groupName);
+				if(channel != null && !useChannel(groupName, channel, forApplication)){
+					Thread.yield();
+					continue;
+				}
+				return pending != null ? pending : GroupConnection.ended(groupName, false);
 			}
-			
-			try{
+
+			//A channel which has a status but isn't in "channels" anymore is being removed.
+			channel = channels.get(groupName);
+			if(channel != null && useChannel(groupName, channel, forApplication))
+				return GroupConnection.ended(groupName, status == CONNECTED);
+			Thread.yield();
+		}
+
+		boolean hasFollowerRole = false, hasSupervisorRole = false, followerOnly = false, supervisorOnly = false;
+
+		try{
+			descriptor = getGroupDescriptor(groupName);
+		}catch(Exception ex){
+			connectionEnded(groupName, false, true);
+			return connection;
+		}
+
+		//I create only the roles I can play, without trying the other ones.
+		try{
+			if(roleRegistry.canBeFollower(descriptor)){
 				followerRole = (A3FollowerRole) getRole(descriptor.getFollowerRoleId());
 				hasFollowerRole = true;
-			}catch(Exception ex){
-				hasFollowerRole = false;
 			}
-			try{
+		}catch(Exception ex){
+			hasFollowerRole = false;
+		}
+		try{
+			if(roleRegistry.canBeSupervisor(descriptor)){
 				supervisorRole = (A3SupervisorRole) getRole(descriptor.getSupervisorRoleId());
 				hasSupervisorRole = true;
-			}catch(Exception ex){
-				hasSupervisorRole = false;
-			}	
+			}
+		}catch(Exception ex){
+			hasSupervisorRole = false;
+		}	
 
-			if(!(hasFollowerRole || hasSupervisorRole))
-				return false;
-			if(hasFollowerRole && !hasSupervisorRole){
-				followerOnly = true;
-				supervisorOnly = false;
+		if(!(hasFollowerRole || hasSupervisorRole)){
+			connectionEnded(groupName, false, true);
+			return connection;
+		}
+		if(hasFollowerRole && !hasSupervisorRole){
+			followerOnly = true;
+			supervisorOnly = false;
+		}
+		else if(!hasFollowerRole && hasSupervisorRole){
+			followerOnly = false;
+			supervisorOnly = true;
+		}
+
+		try{
+			channel = new A3Channel(this, ui, descriptor);
+			
+			if(hasFollowerRole){
+				followerRole.setChannel(channel);
+				followerRole.setNode(this);
 			}
-			else if(!hasFollowerRole && hasSupervisorRole){
-				followerOnly = false;
-				supervisorOnly = true;
+			if(hasSupervisorRole){
+				supervisorRole.setChannel(channel);
+				supervisorRole.setNode(this);
 			}
 
-			try{
-				channel = new A3Channel(this, ui, descriptor);
+			synchronized(channel){
+				channels.put(groupName, channel);
 
-				if(forApplication)
+				//The usages requested while the channel was being created, including mine.
+				if(connection.isForApplication())
 					channel.setConnectedForApplication(true);
-				else
+				if(connection.isForSystem())
 					channel.setConnectedForSystem(true);
-				
-				if(hasFollowerRole){
-					followerRole.setChannel(channel);
-					followerRole.setNode(this);
-				}
-				if(hasSupervisorRole){
-					supervisorRole.setChannel(channel);
-					supervisorRole.setNode(this);
-				}
+			}
+			showOnScreen("channelsStatus = " + channelsStatus);
 
-				synchronized(channels){
-					channels.add(channel);
-				}
-				synchronized(channelsStatus){
-					channelsStatus.put(groupName, CONNECTING);
-					showOnScreen("channelsStatus = " + channelsStatus);
-				}
+			if(serviceName != null)
+				channel.redirectTo(serviceName);
+
+			channel.connect(groupName, followerRole, supervisorRole, followerOnly, supervisorOnly);
 
-				channel.connect(groupName, followerRole, supervisorRole, followerOnly, supervisorOnly);
+		}catch(Exception ex){
+			if(channel != null)
+				channels.remove(groupName, channel);
+			connectionEnded(groupName, false, true);
+		}
+		return connection;
+	}
 
-				return connect(groupName, isResultRelevant, forApplication);
+	/**It sets a usage flag of a channel, unless the channel is being removed.
+	 * 
+	 * @param groupName The name of the group of the channel.
+	 * @param channel The channel.
+	 * @param forApplication true if the channel is used by the application, false if it is used by the system.
+	 * @return true if the flag was set, false if the channel isn't in the "channels" map anymore.
+	 */
+	private boolean useChannel(String groupName, A3Channel channel, boolean forApplication){
 
-			}catch(Exception ex){
+		synchronized(channel){
+			if(channels.get(groupName) != channel)
 				return false;
-			}
 
+			if(forApplication)
+				channel.setConnectedForApplication(true);
+			else
+				channel.setConnectedForSystem(true);
+			return true;
 		}
-		return false;
+	}
+
+	/**It connects this node to all the specified groups at the same time,
+	 * and it reports how long it took for all the connections to end.
+	 * 
+	 * @param groupNames The names of the groups to connect this node to.
+	 * @param forApplication true if the connections are requested by the application,
+	 * false if they are requested by the system.
+	 * @return The connections, in the same order of "groupNames".
+	 */
+	public ArrayList<GroupConnection> connectAll(ArrayList<String> groupNames, boolean forApplication){
+
+		final long start = System.currentTimeMillis();
+		final ArrayList<GroupConnection> connections = new ArrayList<GroupConnection>();
+		final AtomicInteger remaining = new AtomicInteger(groupNames.size());
+
+		for(String groupName : groupNames)
+			connections.add(connectAsync(groupName, forApplication));
+
+		for(GroupConnection connection : connections){
+			connection.addListener(new ConnectionInterface() {
+
+				@Override
+				public void connectionEnded(String groupName, boolean connected) {
+
+					if(remaining.decrementAndGet() == 0){
+						int connectedGroups = 0;
+						GroupConnection slowest = null;
+
+						for(GroupConnection connection : connections){
+							if(connection.isConnected())
+								connectedGroups ++;
+							if(slowest == null || connection.getConnectionTime() > slowest.getConnectionTime())
+								slowest = connection;
+						}
+
+						lastConnectAllTime = System.currentTimeMillis() - start;
+						showOnScreen("connectAll: " + connectedGroups + "/" + connections.size() + " groups connected in " +
+								(System.currentTimeMillis() - start) + " ms, slowest " + slowest + ".");
+					}
+				}
+			});
+		}
+		return connections;
+	}
+
+	/**
+	 * @return The time it took for all the connections started by the last "connectAll(ArrayList, boolean)" to end,
+	 * in milliseconds, or -1 if they didn't end yet.
+	 */
+	public long getLastConnectAllTime(){
+		return lastConnectAllTime;
 	}
 
 	/**It disconnects this node from the specified group.
@@ -318,38 +564,63 @@ public class A3Node extends Thread implements UserInterface{
 	 * @param forApplication true if the disconnection is requested by the application,
 	 * false if it is requested by the system.
 	 */
-	public synchronized void disconnect(String groupName, boolean forApplication){
+	public void disconnect(String groupName, boolean forApplication){
 
 		A3Channel channel;
+		boolean unused;
 
 		try{
 			channel = getChannel(groupName);
-			if(forApplication)
-				channel.setConnectedForApplication(false);
-			else
-				channel.setConnectedForSystem(false);
+
+			/* The usage flags are changed under the lock on the channel, as in "useChannel(String, A3Channel, boolean)",
+			 * so that a concurrent connection can't use a channel which is being removed.
+			 */
+			synchronized(channel){
+				if(forApplication)
+					channel.setConnectedForApplication(false);
+				else
+					channel.setConnectedForSystem(false);
+				
+				unused = !(channel.isConnectedForApplication() || channel.isConnectedForSystem());
+				if(unused && channels.remove(groupName, channel))
+					channelsStatus.remove(groupName);
+				else
+					unused = false;
+			}
 			showOnScreen(groupName + " usage:\n application: " + channel.isConnectedForApplication() +
 					"\n system: " + channel.isConnectedForSystem());
-			if(!(channel.isConnectedForApplication() || channel.isConnectedForSystem())){
+
+			//Disconnecting from the bus can take time, so I don't hold any lock meanwhile.
+			if(unused){
+				router.withdrawLinks(channel);
 				channel.disconnect();
-				channels.remove(channel);
-				channelsStatus.remove(groupName);
+				connectionEnded(groupName, false);
 				disconnectWaitChannel();
 			}
 		}
 		catch(Exception e){}
 	}
 
-	private void disconnectWaitChannel() {
-		// TODO Auto-generated method stub
-
-		boolean noWaitChannels;
+	/**It disconnects this node from all its groups, both for the application and for the system,
+	 * and it stops discovering the groups.
+	 * The node must not be used after it.
+	 */
+	public void close(){
 
-		synchronized(channelsStatus){
-			noWaitChannels = !channelsStatus.containsValue(WAITING);
+		for(String groupName : new ArrayList<String>(channels.keySet())){
+			if(!groupName.equals("wait")){
+				disconnect(groupName, true);
+				disconnect(groupName, false);
+			}
 		}
+		disconnect("wait", false);
+		groupDirectory.close();
+	}
 
-		if(noWaitChannels)
+	private void disconnectWaitChannel() {
+		// TODO Auto-generated method stub
+
+		if(!channelsStatus.containsValue(WAITING))
 			disconnect("wait", false);
 
 		showOnScreen("channelsStatus = " + channelsStatus);
@@ -382,6 +653,31 @@ public class A3Node extends Thread implements UserInterface{
 		}catch(Exception e){}
 	}
 
+	/**It sends a message to the supervisor of the specified group, also if this node isn't connected to it.
+	 * In such case, the message is routed through the hierarchy, using the channels this node already has:
+	 * this node doesn't join the group.
+	 * 
+	 * @param message The message to be sent.
+	 * @param groupName The name of the group whose supervisor to send the message to.
+	 * @return false if the message can't be routed, because this node isn't connected to any group, true otherwise.
+	 */
+	public boolean sendToGroup(A3Message message, String groupName){
+		return router.send(message, groupName);
+	}
+
+	/**It sends a message to all the members of the specified group and of all the groups below it in the hierarchy,
+	 * also if this node isn't connected to it (see "sendToGroup(A3Message, String)").
+	 * The message is pushed once through each link between a group and its children,
+	 * and a node which belongs to more than one of such groups receives it only once.
+	 * 
+	 * @param message The message to be sent.
+	 * @param groupName The name of the group at the top of the subtree.
+	 * @return false if the message can't be routed to the group, because this node isn't connected to any group, true otherwise.
+	 */
+	public boolean sendToSubtree(A3Message message, String groupName){
+		return router.sendToSubtree(message, groupName);
+	}
+
 	/**It sends a message to all the members of the specified group.
 	 * 
 	 * @param message The message to be sent.
@@ -473,26 +769,33 @@ public class A3Node extends Thread implements UserInterface{
 	 * this method creates a hierarchical relationship between the specified groups.
 	 * This happens by connecting this node to the parent group
 	 * and by adding the latter to the hierarchy of the child group.
-	 * 
+	 * It doesn't block while this node connects to the parent group.
+	 *
 	 * @param parentGroupName The name of the parent group.
 	 * @param childGroupName The name of the son group.
-	 * @return true, if "parentGroupName" became parent of "childGroupName", false otherwise.
+	 * @return The operation, which is successful if "parentGroupName" became parent of "childGroupName".
 	 */
-	public boolean actualStack(String parentGroupName, String childGroupName) {
+	public HierarchyOperation actualStack(final String parentGroupName, final String childGroupName) {
 		// TODO Auto-generated method stub
 
-		boolean result = connect(parentGroupName, true, false);
-		A3Message message;
+		final HierarchyOperation operation = new HierarchyOperation(this,
+				"actualStack(" + parentGroupName + ", " + childGroupName + ")");
 
-		if(result){
-			message = new A3Message(Constants.ADD_TO_HIERARCHY, parentGroupName);
-			sendBroadcast(message, childGroupName);
-		}
+		operation.addCompensation(disconnection(parentGroupName));
+		connectAsync(parentGroupName, false).addListener(new ConnectionInterface() {
 
-		else
-			disconnect(parentGroupName, false);
+			@Override
+			public void connectionEnded(String groupName, boolean connected) {
 
-		return result;
+				if(connected){
+					sendBroadcast(new A3Message(Constants.ADD_TO_HIERARCHY, parentGroupName), childGroupName);
+					operation.succeed();
+				}
+				else
+					operation.fail();
+			}
+		});
+		return operation;
 	}
 
 	/**
@@ -506,38 +809,61 @@ public class A3Node extends Thread implements UserInterface{
 	 * and sends it the order to execute "actualStack(parentGroupName, childGroupName)".
 	 * The success or the failure of the stack operation
 	 * is notified by method "stackReply(String, String, boolean)".
-	 * 
+	 *
 	 * @param parentGroupName The name of the parent group.
 	 * @param childGroupName The name of the son group.
+	 * @return The ongoing operation.
 	 */
-	public void stack(String parentGroupName, String childGroupName) {
+	public HierarchyOperation stack(final String parentGroupName, final String childGroupName) {
 		// TODO Auto-generated method stub
 
+		final HierarchyOperation operation = new HierarchyOperation(this,
+				"stack(" + parentGroupName + ", " + childGroupName + ")");
+		operation.whenDone(disconnection(childGroupName));
+
 		if(!(parentGroupName.equals("") || childGroupName.equals(""))){
 
 			if(isSupervisor(childGroupName)){
-				stackReply(parentGroupName, childGroupName, actualStack(parentGroupName, childGroupName));
+				final HierarchyOperation actualStack = actualStack(parentGroupName, childGroupName);
+
+				actualStack.whenDone(new Runnable() {
+
+					@Override
+					public void run() {
+						operation.complete(actualStack.isSuccessful());
+					}
+				});
 			}
 
 			else{
 				if(isSupervisor(parentGroupName)){
 
-					if(connect(childGroupName, true, false)){
-						A3Message message = new A3Message(Constants.STACK_REQUEST, parentGroupName);
-						sendToSupervisor(message, childGroupName);
-					}
-					else
-						stackReply(parentGroupName, childGroupName, false);
+					connectAsync(childGroupName, false).addListener(new ConnectionInterface() {
+
+						@Override
+						public void connectionEnded(String groupName, boolean connected) {
+
+							if(connected && registerOperation(operationKey(Constants.STACK_REPLY, parentGroupName, childGroupName), operation)){
+								A3Message message = new A3Message(Constants.STACK_REQUEST, parentGroupName);
+								sendToSupervisor(message, childGroupName);
+								operation.awaitReply(getOperationTimeout(childGroupName),
+										order(Constants.REVERSE_STACK, parentGroupName, childGroupName));
+							}
+							else
+								operation.fail();
+						}
+					});
 				}
 
 				else{
-					stackReply(parentGroupName, childGroupName, false);
+					operation.fail();
 				}
 			}
 		}
 		else
-			stackReply(parentGroupName, childGroupName, false);
+			operation.fail();
 
+		return operation;
 	}
 
 	/**
@@ -548,13 +874,16 @@ public class A3Node extends Thread implements UserInterface{
 	 * The supervisor of the other group executes "actualStack(String, String)"
 	 * and notifies the result to this node.
 	 * Here, the method "peersReply(String, String, boolean)" is called (see it for details).
-	 * 
+	 *
 	 * @param groupName1 The name of a group involved in the peers operation.
 	 * @param groupName2 The name of the other group involved in the peers operation.
+	 * @return The ongoing operation.
 	 */
-	public void peers(String groupName1, String groupName2){
-		String myGroupName;
-		String otherGroupName;
+	public HierarchyOperation peers(String groupName1, String groupName2){
+		final String myGroupName;
+		final String otherGroupName;
+		final HierarchyOperation operation = new HierarchyOperation(this,
+				"peers(" + groupName1 + ", " + groupName2 + ")");
 
 		if(!(groupName1.equals("") || groupName2.equals(""))){
 
@@ -568,21 +897,32 @@ public class A3Node extends Thread implements UserInterface{
 					otherGroupName = groupName1;
 				}
 				else{
-					peersReply(groupName1, groupName2, false);
-					return;
+					operation.fail();
+					return operation;
 				}
 			}
-			if(connect(otherGroupName, true, false)){
-				A3Message message = new A3Message(Constants.PEERS_REQUEST, myGroupName);
-				sendToSupervisor(message, otherGroupName);
-			}
-			else{
-				disconnect(otherGroupName, false);
-				peersReply(myGroupName, otherGroupName, false);
-			}
+
+			operation.addCompensation(disconnection(otherGroupName));
+			connectAsync(otherGroupName, false).addListener(new ConnectionInterface() {
+
+				@Override
+				public void connectionEnded(String groupName, boolean connected) {
+
+					if(connected && registerOperation(operationKey(Constants.PEERS_REPLY, otherGroupName, myGroupName), operation)){
+						A3Message message = new A3Message(Constants.PEERS_REQUEST, myGroupName);
+						sendToSupervisor(message, otherGroupName);
+						operation.awaitReply(getOperationTimeout(otherGroupName),
+								order(Constants.REVERSE_STACK, myGroupName, otherGroupName));
+					}
+					else
+						operation.fail();
+				}
+			});
 		}
 		else
-			peersReply(groupName1, groupName2, false);
+			operation.fail();
+
+		return operation;
 	}
 
 	/**
@@ -595,14 +935,17 @@ public class A3Node extends Thread implements UserInterface{
 	 * The other node executes the method "actualStack(String, String)" to connect to the parent group,
 	 * and notifies this node with the result.
 	 * Here, the method "hierarchyReply(String, String, String, boolean)" is called (see it for details).
-	 * 
+	 *
 	 * @param parentName The name of the parent group.
 	 * @param groupName1 The name of a son group involved in the hierarchy operation.
 	 * @param groupName2 The name of the other son group involved in the hierarchy operation.
+	 * @return The ongoing operation.
 	 */
-	public void hierarchy(String parentName, String groupName1, String groupName2){
+	public HierarchyOperation hierarchy(final String parentName, String groupName1, String groupName2){
 
-		String myGroupName, otherGroupName;
+		final String myGroupName, otherGroupName;
+		final HierarchyOperation operation = new HierarchyOperation(this,
+				"hierarchy(" + parentName + ", " + groupName1 + ", " + groupName2 + ")");
 
 		if(!(parentName.equals("") || groupName1.equals("") || groupName2.equals(""))){
 
@@ -616,85 +959,138 @@ public class A3Node extends Thread implements UserInterface{
 					otherGroupName = groupName1;
 				}
 				else{
-					hierarchyReply(parentName, groupName1, groupName2, false);
-					return;
+					operation.fail();
+					return operation;
 				}
 			}
 
-			if(hasRolesForGroup(parentName) && connect(otherGroupName, true, false)){
-				A3Message message = new A3Message(Constants.HIERARCHY_REQUEST,
-						parentName + Constants.A3_SEPARATOR + myGroupName);
-				sendToSupervisor(message, otherGroupName);
-			}
-			else{
-				disconnect(otherGroupName, false);
-				hierarchyReply(parentName, groupName1, groupName2, false);
+			operation.whenDone(disconnection(otherGroupName));
+
+			if(!hasRolesForGroup(parentName)){
+				operation.fail();
+				return operation;
 			}
+
+			connectAsync(otherGroupName, false).addListener(new ConnectionInterface() {
+
+				@Override
+				public void connectionEnded(String groupName, boolean connected) {
+
+					if(connected && registerOperation(operationKey(Constants.HIERARCHY_REPLY, parentName, myGroupName, otherGroupName), operation)){
+						A3Message message = new A3Message(Constants.HIERARCHY_REQUEST,
+								parentName + Constants.A3_SEPARATOR + myGroupName);
+						sendToSupervisor(message, otherGroupName);
+						operation.awaitReply(getOperationTimeout(otherGroupName),
+								order(Constants.REVERSE_STACK, parentName, otherGroupName));
+					}
+					else
+						operation.fail();
+				}
+			});
 		}
 		else
-			hierarchyReply(parentName, groupName1, groupName2, false);
+			operation.fail();
+
+		return operation;
 	}
 
 	/**
 	 * It disconnects this node from the group "oldGroupName" and connects it to the group "newGroupName",
 	 * if it has the right roles.
-	 * 
+	 *
 	 * @param newGroupName The name of the group to connect to.
 	 * @param oldGroupName The name of the group to disconnect from.
 	 */
 	public void actualMerge(String newGroupName, String oldGroupName) {
 		// TODO Auto-generated method stub
+		actualMerge(newGroupName, oldGroupName, null);
+	}
+
+	/**It moves this node from a group to another one, whose Service is known.
+	 * The channel to the new group joins such Service directly, without discovering the group.
+	 * 
+	 * @param newGroupName The name of the group to join.
+	 * @param oldGroupName The name of the group to leave.
+	 * @param serviceName The instance name of the Service of the group to join, or null if it isn't known.
+	 */
+	public void actualMerge(String newGroupName, String oldGroupName, String serviceName) {
 		disconnect(oldGroupName, true);
-		connect(newGroupName, false, true);
+		connectAsync(newGroupName, true, serviceName);
+	}
+
+	/**
+	 * @param groupName The name of a group this node is connected to.
+	 * @return The string "groupName [instanceName]", which tells the channels of other groups how to reach the Service of "groupName".
+	 */
+	private String getRedirection(String groupName){
+		try{
+			String serviceName = getChannel(groupName).getServiceName();
+			if(serviceName != null)
+				return groupName + Constants.A3_SEPARATOR + serviceName;
+		}catch(Exception e){}
+		return groupName;
 	}
 
 	/**
 	 * It transfers the nodes in group "groupName2" to group "groupName1" and destroys group "groupName2".
 	 * The nodes which don't have the right roles to connect to "groupName1"
 	 * won't be there after this operation.
-	 * 
+	 *
 	 * @param groupName1 The name of the group in which to transfer the nodes in group "groupName2".
 	 * @param groupName2 The group which nodes are transfered in "groupName1". It is destroyed.
+	 * @return The ongoing operation.
 	 */
-	public void merge(String groupName1, String groupName2) {
+	public HierarchyOperation merge(final String groupName1, final String groupName2) {
 		// TODO Auto-generated method stub
 
-		boolean ok = false;
+		final HierarchyOperation operation = new HierarchyOperation(this,
+				"merge(" + groupName1 + ", " + groupName2 + ")");
 
 		if(!(groupName1.equals("") || groupName2.equals(""))){
 
 			if(isSupervisor(groupName1)){
 
-				if(connect(groupName2, true, false)){
-					A3Message message = new A3Message(Constants.MERGE, groupName1);
-					sendToSupervisor(message, groupName2);
-					ok = true;
-					disconnect(groupName2, false);
-				}
-				else
-					disconnect(groupName2, false);
+				operation.whenDone(disconnection(groupName2));
+				connectAsync(groupName2, false).addListener(new ConnectionInterface() {
+
+					@Override
+					public void connectionEnded(String groupName, boolean connected) {
+
+						if(connected){
+							//The channels of "groupName2" join the Service of "groupName1" directly, if I know it.
+							A3Message message = new A3Message(Constants.MERGE, getRedirection(groupName1));
+							sendToSupervisor(message, groupName2);
+							operation.succeed();
+						}
+						else
+							operation.fail();
+					}
+				});
+				return operation;
 			}
 			else{
 				if(isSupervisor(groupName2)){
-					A3Message message = new A3Message(Constants.MERGE, groupName1);
+					A3Message message = new A3Message(Constants.MERGE, getRedirection(groupName1));
 					sendBroadcast(message, groupName2);
-					ok = true;
 					/* I don't need to execute "disconnect(groupName2, false);" here,
 					 * because I will disconnect from group "groupName2"
 					 * when I will receive message "MERGE groupName2".
 					 */
+					operation.succeed();
+					return operation;
 				}
 			}
 		}
 
-		mergeReply(groupName1, groupName2, ok);
+		operation.fail();
+		return operation;
 	}
 
 	/**
 	 * It destroys the hierarchical relationship between the two specified groups,
 	 * by telling all the nodes of the child group to remove the parent group from their hierarchies
 	 * and by disconnecting the channel to the parent group if it isn't connected for other reasons.
-	 * 
+	 *
 	 * @param parentGroupName The name of the group to disconnect from.
 	 * @param childGroupName The name of the group to disconnect from group "parentGroupName".
 	 */
@@ -713,37 +1109,50 @@ public class A3Node extends Thread implements UserInterface{
 	 * If this node is the supervisor of the group "parentGroupName",
 	 * and if it has the right roles to connect to the group "childGroupName",
 	 * this node send the latter the order to execute "actualReverseStack(parentGroupName, childGroupName)".
-	 * Such operation is always possible, so notifying its result is unuseful.
-	 * 
+	 * Such operation is always possible, so the other node doesn't reply.
+	 *
 	 * @param parentGroupName The name of the group to disconnect from.
 	 * @param childGroupName The name of the group to disconnect from group "parentGroupName".
+	 * @return The ongoing operation.
 	 */
-	public void reverseStack(String parentGroupName, String childGroupName){
-		boolean ok = false;
+	public HierarchyOperation reverseStack(final String parentGroupName, final String childGroupName){
+
+		final HierarchyOperation operation = new HierarchyOperation(this,
+				"reverseStack(" + parentGroupName + ", " + childGroupName + ")");
+
 		if(!(parentGroupName.equals("") || childGroupName.equals(""))){
 
 			if(isSupervisor(parentGroupName)){
-				try {
-					ok = connect(childGroupName, true, false);
-					if(ok){
-						A3Message message = new A3Message(Constants.REVERSE_STACK, parentGroupName);
-						sendToSupervisor(message, childGroupName);
-						disconnect(childGroupName, false);
+
+				operation.whenDone(disconnection(childGroupName));
+				connectAsync(childGroupName, false).addListener(new ConnectionInterface() {
+
+					@Override
+					public void connectionEnded(String groupName, boolean connected) {
+
+						if(connected){
+							A3Message message = new A3Message(Constants.REVERSE_STACK, parentGroupName);
+							sendToSupervisor(message, childGroupName);
+							operation.succeed();
+						}
+						else
+							operation.fail();
 					}
-					else
-						disconnect(childGroupName, false);
-				} catch (Exception e) {}
+				});
+				return operation;
 			}
 
 			else{
 
 				if(isSupervisor(childGroupName)){
 					actualReverseStack(parentGroupName, childGroupName);
-					ok = true;
+					operation.succeed();
+					return operation;
 				}
 			}
 		}
-		reverseStackReply(parentGroupName, childGroupName, ok);
+		operation.fail();
+		return operation;
 	}
 
 	/**
@@ -751,14 +1160,16 @@ public class A3Node extends Thread implements UserInterface{
 	 * This is possible only if this node is the supervisor of at least one of the specified groups.
 	 * It sends the other group the order to execute "actualReverseStack(String, String)"
 	 * and calls "actualReverseStack(String, String)" on this node too.
-	 * 
+	 *
 	 * @param groupName1 The name of a group involved in the reverse peers operation.
 	 * @param groupName2 The name of the other group involved in the reverse peers operation.
+	 * @return The ongoing operation.
 	 */
-	public void reversePeers(String groupName1, String groupName2){
+	public HierarchyOperation reversePeers(String groupName1, String groupName2){
 
-		String myGroupName, otherGroupName;
-		boolean ok = false;
+		final String myGroupName, otherGroupName;
+		final HierarchyOperation operation = new HierarchyOperation(this,
+				"reversePeers(" + groupName1 + ", " + groupName2 + ")");
 
 		if(!(groupName1.equals("") || groupName2.equals(""))){
 
@@ -772,21 +1183,32 @@ public class A3Node extends Thread implements UserInterface{
 					otherGroupName = groupName1;
 				}
 				else{
-					reversePeersReply(groupName1, groupName2, ok);
-					return;
+					operation.fail();
+					return operation;
 				}
 			}
 
-			ok = connect(otherGroupName, true, false);
-			if(ok){
-				A3Message message = new A3Message(Constants.REVERSE_STACK, myGroupName);
-				sendToSupervisor(message, otherGroupName);
-				actualReverseStack(otherGroupName, myGroupName);
-			}
-			else
-				disconnect(otherGroupName, false);
+			operation.addCompensation(disconnection(otherGroupName));
+			connectAsync(otherGroupName, false).addListener(new ConnectionInterface() {
+
+				@Override
+				public void connectionEnded(String groupName, boolean connected) {
+
+					if(connected){
+						A3Message message = new A3Message(Constants.REVERSE_STACK, myGroupName);
+						sendToSupervisor(message, otherGroupName);
+						actualReverseStack(otherGroupName, myGroupName);
+						operation.succeed();
+					}
+					else
+						operation.fail();
+				}
+			});
 		}
-		reversePeersReply(groupName1, groupName2, ok);
+		else
+			operation.fail();
+
+		return operation;
 	}
 
 	/**
@@ -796,15 +1218,17 @@ public class A3Node extends Thread implements UserInterface{
 	 * and if it has the right roles to connect to the other one.
 	 * It sends the other group the order to execute "actualReverseStack(String, String)"
 	 * and calls "actualReverseStack(String, String)" on this node too.
-	 * 
+	 *
 	 * @param parentGroupName The name of the parent group involved in the reverse hierarchy operation.
 	 * @param groupName1 The name of a son group involved in the reverse hierarchy operation.
 	 * @param groupName2 The name of the other son group involved in the reverse hierarchy operation.
+	 * @return The ongoing operation.
 	 */
-	public void reverseHierarchy(String parentGroupName, String groupName1, String groupName2){
+	public HierarchyOperation reverseHierarchy(final String parentGroupName, String groupName1, String groupName2){
 
-		String myGroupName, otherGroupName;
-		boolean ok = false;
+		final String myGroupName, otherGroupName;
+		final HierarchyOperation operation = new HierarchyOperation(this,
+				"reverseHierarchy(" + parentGroupName + ", " + groupName1 + ", " + groupName2 + ")");
 
 		if(!(parentGroupName.equals("") || groupName1.equals("") || groupName2.equals(""))){
 
@@ -818,35 +1242,47 @@ public class A3Node extends Thread implements UserInterface{
 					otherGroupName = groupName1;
 				}
 				else{
-					reverseHierarchyReply(parentGroupName, groupName1, groupName2, ok);
-					return;
+					operation.fail();
+					return operation;
 				}
 			}
 
-			ok = connect(otherGroupName, true, false);
-			if(ok){
-				A3Message message = new A3Message(Constants.REVERSE_STACK, parentGroupName);
-				sendToSupervisor(message, otherGroupName);
-				actualReverseStack(parentGroupName, myGroupName);
-				disconnect(otherGroupName, false);
-			}
-			else
-				disconnect(otherGroupName, false);
+			operation.whenDone(disconnection(otherGroupName));
+			connectAsync(otherGroupName, false).addListener(new ConnectionInterface() {
+
+				@Override
+				public void connectionEnded(String groupName, boolean connected) {
+
+					if(connected){
+						A3Message message = new A3Message(Constants.REVERSE_STACK, parentGroupName);
+						sendToSupervisor(message, otherGroupName);
+						actualReverseStack(parentGroupName, myGroupName);
+						operation.succeed();
+					}
+					else
+						operation.fail();
+				}
+			});
 		}
-		reverseHierarchyReply(parentGroupName, groupName1, groupName2, ok);
+		else
+			operation.fail();
+
+		return operation;
 	}
 
 	/**
 	 * It notifies this node with the result of a stack operation.
-	 * 
+	 *
 	 * @param parentGroupName The name of the parent group.
 	 * @param childGroupName The name of the child group.
 	 * @param ok true if the stack operation was successful, false otherwise.
 	 */
 	public void stackReply(String parentGroupName, String childGroupName, boolean ok) {
 		// TODO Auto-generated method stub
-		showOnScreen("stack(" + parentGroupName + ", " + childGroupName + "): " + ok);
-		disconnect(childGroupName, false);
+		HierarchyOperation operation = takeOperation(operationKey(Constants.STACK_REPLY, parentGroupName, childGroupName));
+
+		if(operation != null)
+			operation.complete(ok);
 	}
 
 	/**
@@ -856,36 +1292,40 @@ public class A3Node extends Thread implements UserInterface{
 	 * "actualStack(String, String)" is called on this node.
 	 * Its result is notified.
 	 * "actualStack(String, String)" on the other node is reversed if it failed on this node.
-	 * 
+	 *
 	 * @param parentGroupName The name of the parent group.
 	 * @param childGroupName The name of the child group.
 	 * @param ok true if the stack operation was successful, false otherwise.
 	 */
-	public void peersReply(String parentGroupName, String childGroupName, boolean ok) {
+	public void peersReply(final String parentGroupName, final String childGroupName, boolean ok) {
 		// TODO Auto-generated method stub
 
+		final HierarchyOperation operation = takeOperation(operationKey(Constants.PEERS_REPLY, parentGroupName, childGroupName));
+
+		//The operation already ended because the reply didn't arrive in time, so it was already undone.
+		if(operation == null)
+			return;
+		operation.replyArrived();
+
 		if(ok){
 
+			/*The other node executed a stack operation to connect to me,
+			 * so I don't need to specify to undo a peers operation if I fail.
+			 */
+			operation.addCompensation(order(Constants.REVERSE_STACK, childGroupName, parentGroupName));
+
 			//I can execute this only if I have became supervisor during an ongoing peers negotiation.
-			if(actualStack(parentGroupName, childGroupName)){
-				showOnScreen("peers(" + childGroupName + ", " + parentGroupName + "): " + true);
-				return;
-			}
+			final HierarchyOperation actualStack = actualStack(parentGroupName, childGroupName);
+			actualStack.whenDone(new Runnable() {
 
-			else{
-				/*The other node executed a stack operation to connect to me,
-				 * so I don't need to specify to undo a peers operation.
-				 */
-				A3Message message = new A3Message(Constants.REVERSE_STACK, childGroupName);
-				sendToSupervisor(message, parentGroupName);
-				showOnScreen("peers(" + childGroupName + ", " + parentGroupName + "): " + false);
-				disconnect(parentGroupName, false);
-			}
-		}
-		else{
-			showOnScreen("peers(" + childGroupName + ", " + parentGroupName + "): " + false);
-			disconnect(parentGroupName, false);
+				@Override
+				public void run() {
+					operation.complete(actualStack.isSuccessful());
+				}
+			});
 		}
+		else
+			operation.fail();
 	}
 
 	/**
@@ -895,7 +1335,7 @@ public class A3Node extends Thread implements UserInterface{
 	 * "actualStack(String, String)" is called on this node.
 	 * Its result is notified.
 	 * "actualStack(String, String)" on the other node is reversed if it failed on this node.
-	 * 
+	 *
 	 * @param parentGroupName The name of the parent group.
 	 * @param myGroupName The name of a son group involved in the hierarchy operation.
 	 * @param otherGroupName The name of the other son group involved in the hierarchy operation.
@@ -904,74 +1344,151 @@ public class A3Node extends Thread implements UserInterface{
 	public void hierarchyReply(String parentGroupName, String myGroupName, String otherGroupName, boolean ok) {
 		// TODO Auto-generated method stub
 
+		final HierarchyOperation operation = takeOperation(operationKey(Constants.HIERARCHY_REPLY,
+				parentGroupName, myGroupName, otherGroupName));
+
+		//The operation already ended because the reply didn't arrive in time, so it was already undone.
+		if(operation == null)
+			return;
+		operation.replyArrived();
+
 		if(ok){
 
+			/*The other node executed a stack operation to connect to parent,
+			 * so I don't need to specify to undo a hierarchy operation if I fail.
+			 */
+			operation.addCompensation(order(Constants.REVERSE_STACK, parentGroupName, otherGroupName));
+
 			//I can execute this only if I have became supervisor during an ongoing peers negotiation.
-			if(actualStack(parentGroupName, myGroupName))
-				showOnScreen("hierarchy(" + parentGroupName + ", " + myGroupName + ", " + otherGroupName + "): " + true);
+			final HierarchyOperation actualStack = actualStack(parentGroupName, myGroupName);
+			actualStack.whenDone(new Runnable() {
 
-			else{
-				/*The other node executed a stack operation to connect to parent,
-				 * so I don't need to specify to undo a hierarchy operation.
-				 */
-				A3Message message = new A3Message(Constants.REVERSE_STACK, parentGroupName);
-				sendToSupervisor(message, otherGroupName);
-				showOnScreen("hierarchy(" + parentGroupName + ", " + myGroupName + ", " + otherGroupName + "): " + false);
-			}
+				@Override
+				public void run() {
+					operation.complete(actualStack.isSuccessful());
+				}
+			});
 		}
 		else
-			showOnScreen("hierarchy(" + parentGroupName + ", " + myGroupName + ", " + otherGroupName + "): " + false);
+			operation.fail();
+	}
+
+	/**It ends the ongoing connection to the specified group, if any.
+	 *
+	 * @param groupName The name of the group.
+	 * @param connected true if the status of the channel became "CONNECTED", false otherwise.
+	 */
+	private void connectionEnded(String groupName, boolean connected){
+		connectionEnded(groupName, connected, false);
+	}
+
+	/**It ends the ongoing connection to the specified group, if any.
+	 *
+	 * @param groupName The name of the group.
+	 * @param connected true if the status of the channel became "CONNECTED", false otherwise.
+	 * @param failed true if the channel couldn't be created, so that the group must be released, false otherwise.
+	 */
+	private void connectionEnded(String groupName, boolean connected, boolean failed){
+
+		GroupConnection connection = pendingConnections.remove(groupName);
 
-		disconnect(otherGroupName, false);
+		if(failed)
+			channelsStatus.remove(groupName);
+
+		if(connection != null)
+			connection.complete(connected);
 	}
 
 	/**
-	 * It notifies this node with the result of a merge operation.
-	 * 
-	 * @param groupName1 The name of the group in which nodes in group "groupName2" were transfered.
-	 * @param groupName2 The name of the destroyed group.
-	 * @param ok true if the merge operation was successful, false otherwise.
+	 * @param groupName The name of a group.
+	 * @return The action which disconnects this node from the group "groupName" for the system.
 	 */
-	private void mergeReply(String groupName1, String groupName2, boolean ok) {
-		// TODO Auto-generated method stub
-		showOnScreen("merge(" + groupName1 + ", " + groupName2 + "): " + ok);
+	private Runnable disconnection(final String groupName){
+		return new Runnable() {
+
+			@Override
+			public void run() {
+				disconnect(groupName, false);
+			}
+		};
 	}
 
 	/**
-	 * It notifies this node with the result of a reverse stack operation.
-	 * 
-	 * @param parentGroupName The name of the parent group.
-	 * @param childGroupName The name of the child group.
-	 * @param ok true if the reverse stack operation was successful, false otherwise.
+	 * @param reason The kind of the order.
+	 * @param object The content of the order.
+	 * @param groupName The name of the group whose supervisor to send the order to.
+	 * @return The action which sends the order "reason object" to the supervisor of the group "groupName".
 	 */
-	private void reverseStackReply(String parentGroupName, String childGroupName, boolean ok) {
-		// TODO Auto-generated method stub
-		showOnScreen("reverseStack(" + parentGroupName + ", " + childGroupName + "): " + ok);
+	private Runnable order(final int reason, final String object, final String groupName){
+		return new Runnable() {
+
+			@Override
+			public void run() {
+				sendToSupervisor(new A3Message(reason, object), groupName);
+			}
+		};
 	}
 
 	/**
-	 * It notifies this node with the result of a reverse peers operation.
-	 * 
-	 * @param groupName1 The first group involved in the operation.
-	 * @param groupName2 The second group involved in the operation.
-	 * @param ok true if the reverse peers operation was successful, false otherwise.
+	 * @param groupName The name of the group a remote step is requested to.
+	 * @return The time to wait for the reply of the remote step, in milliseconds.
+	 * The remote node can need to discover and connect to another group, so the discovery time is added to two round trips.
 	 */
-	private void reversePeersReply(String groupName1, String groupName2, boolean ok) {
-		// TODO Auto-generated method stub
-		showOnScreen("reversePeers(" + groupName1 + ", " + groupName2 + "): " + ok);
+	private int getOperationTimeout(String groupName){
+		return 2 * getRoundTripEstimator(groupName).getTimeout() + 2 * discoveryEstimator.getTimeout();
 	}
 
 	/**
-	 * It notifies this node with the result of a reverse hierarchy operation.
-	 * 
-	 * @param parentGroupName The parent group involved in the operation.
-	 * @param groupName1 The first son group involved in the operation.
-	 * @param groupName2 The second son group involved in the operation.
-	 * @param ok true if the reverse hierarchy operation was successful, false otherwise.
+	 * @param reason The kind of the reply that ends the operation.
+	 * @param groupNames The names of the groups involved in the operation, as they are in the reply.
+	 * @return The key of the operation in "pendingOperations", like "reason group1 group2 ...".
 	 */
-	private void reverseHierarchyReply(String parentGroupName, String groupName1, String groupName2, boolean ok) {
-		// TODO Auto-generated method stub
-		showOnScreen("reverseHierarchy(" + parentGroupName + ", " + groupName1 + ", " + groupName2 + "): " + ok);
+	private String operationKey(int reason, String... groupNames){
+		String key = String.valueOf(reason);
+
+		for(String groupName : groupNames)
+			key = key + Constants.A3_SEPARATOR + groupName;
+		return key;
+	}
+
+	/**It stores an operation waiting for a remote reply.
+	 *
+	 * @param key The key of the operation.
+	 * @param operation The operation.
+	 * @return true if the operation was stored, false if the same operation is already waiting for its reply.
+	 */
+	private boolean registerOperation(final String key, HierarchyOperation operation){
+
+		synchronized(pendingOperations){
+			if(pendingOperations.containsKey(key))
+				return false;
+			pendingOperations.put(key, operation);
+		}
+
+		//If the operation ends without its reply (e.g. for the timeout), the reply is not waited for anymore.
+		final HierarchyOperation registered = operation;
+		operation.whenDone(new Runnable() {
+
+			@Override
+			public void run() {
+				synchronized(pendingOperations){
+					if(pendingOperations.get(key) == registered)
+						pendingOperations.remove(key);
+				}
+			}
+		});
+		return true;
+	}
+
+	/**
+	 * @param key The key of the operation.
+	 * @return The operation waiting for the reply with key "key", or null if none is waiting for it.
+	 */
+	private HierarchyOperation takeOperation(String key){
+
+		synchronized(pendingOperations){
+			return pendingOperations.remove(key);
+		}
 	}
 
 	/**It sets to "CONNECTED" the status of the specified channel.
@@ -981,19 +1498,14 @@ public class A3Node extends Thread implements UserInterface{
 	 */
 	public void setConnected(A3Channel a3Channel) {
 		// TODO Auto-generated method stub
-		boolean noWaitChannels;
-
-		synchronized(channelsStatus){
+		if(!setStatus(a3Channel, CONNECTED))
+			return;
 
-			channelsStatus.put(a3Channel.getGroupName(), CONNECTED);
-			showOnScreen("channelsStatus = " + channelsStatus);
-			noWaitChannels = !channelsStatus.containsValue(WAITING);
-
-			channelsStatus.notifyAll();
-
-		}
+		showOnScreen("channelsStatus = " + channelsStatus);
+		connectionEnded(a3Channel.getGroupName(), true);
+		router.advertiseLinks(a3Channel.getGroupName());
 
-		if(noWaitChannels)
+		if(!channelsStatus.containsValue(WAITING))
 			disconnect("wait", false);
 	}
 
@@ -1005,15 +1517,31 @@ public class A3Node extends Thread implements UserInterface{
 	public void setWaiting(A3Channel a3Channel) {
 		// TODO Auto-generated method stub
 
-		synchronized(channelsStatus){
+		if(!setStatus(a3Channel, WAITING))
+			return;
 
-			channelsStatus.put(a3Channel.getGroupName(), WAITING);
-			showOnScreen("channelsStatus = " + channelsStatus);
+		showOnScreen("channelsStatus = " + channelsStatus);
+		connectionEnded(a3Channel.getGroupName(), false);
+		connect("wait", false, false);
+	}
+
+	/**It changes the status of a channel, unless it was disconnected meanwhile.
+	 * 
+	 * @param a3Channel The channel.
+	 * @param status The new status of the channel.
+	 * @return true if the status changed, false if the channel isn't in the "channels" map anymore.
+	 */
+	private boolean setStatus(A3Channel a3Channel, int status){
 
-			channelsStatus.notifyAll();
+		String groupName = a3Channel.getGroupName();
+		Integer oldStatus;
 
-		}
-		connect("wait", false, false);
+		do{
+			oldStatus = channelsStatus.get(groupName);
+			if(oldStatus == null || channels.get(groupName) != a3Channel)
+				return false;
+		}while(!channelsStatus.replace(groupName, oldStatus, status));
+		return true;
 	}
 
 	/**If this node is the supervisor of the group "groupName",
@@ -45,6 +45,13 @@ public abstract class A3Role implements Runnable{
 	protected UserInterface ui;
 
 	private RoleMessageHandler handler;
+
+	/**The time this role spent handling messages since the last call to "getLoad()", in nanoseconds.*/
+	private long busyTime;
+
+	/**The time of the last call to "getLoad()", in nanoseconds.*/
+	private long busySince;
+
 	/**
 	 * Set this role as not active and the id of this role to its class canonical name.
 	 */
@@ -52,6 +59,8 @@ public abstract class A3Role implements Runnable{
 		super();
 		active = false;
 		id = getClass().getCanonicalName();
+		busyTime = 0;
+		busySince = System.nanoTime();
 	}
 
 	/**
@@ -108,6 +117,74 @@ public abstract class A3Role implements Runnable{
 		handler.sendMessage(msg);
 	}
 
+	/**
+	 * @return The fraction of time this role spent handling messages since the last call to this method.
+	 * The time spent in "logic()" isn't counted.
+	 */
+	public synchronized double getLoad(){
+
+		long now = System.nanoTime();
+		double load = (double) busyTime / Math.max(now - busySince, 1);
+
+		busyTime = 0;
+		busySince = now;
+		return Math.min(load, 1);
+	}
+
+	private synchronized void addBusyTime(long time){
+		busyTime = busyTime + time;
+	}
+
+	/**To override in order to answer the queries of the supervisor (see A3SupervisorRole.query(int, String, int, int, int)).
+	 * 
+	 * @param reason The kind of the query.
+	 * @param query The content of the query.
+	 * @return The answer, or null if this role doesn't answer queries of kind "reason" (default implementation).
+	 */
+	public String answerQuery(int reason, String query){
+		return null;
+	}
+
+	/**To override in order to move the work items whose owner changed (see HashRing).
+	 * Only the keys of the channel which joined or left the group change owner:
+	 * the ones it took from the other members, or the ones it left to them.
+	 * 
+	 * @param address The address of the channel which joined or left the group.
+	 * @param joined true if the channel joined the group, false if it left it.
+	 */
+	public void onOwnershipChanged(String address, boolean joined){}
+
+	/**
+	 * @param key The key of a work item.
+	 * @return The address of the member of the group which owns the key, or null if the ring isn't known yet.
+	 */
+	public String getOwner(String key){
+		return channel.getRing().getOwner(key);
+	}
+
+	/**To override in order to execute the tasks the supervisor distributes (see A3SupervisorRole.submitTask(int, String)).
+	 * It is called by the thread of this role, so the next tasks wait for it to return.
+	 * 
+	 * @param reason The kind of the task.
+	 * @param task The content of the task.
+	 * @return The result of the task, or null if this role doesn't execute tasks of kind "reason" (default implementation).
+	 */
+	public String executeTask(int reason, String task){
+		return null;
+	}
+
+	/**To override in order to take part in the map-reduce jobs of the supervisor (see A3SupervisorRole.mapReduce(int, String, String, Combiner, int)).
+	 * It is called by the thread of this role.
+	 * 
+	 * @param mapFunction The id of the map function to execute on the local data.
+	 * @param firstKey The first key of the range to map.
+	 * @param lastKey The last key of the range to map.
+	 * @return The partial result, as an aggregate of the combiner of the job, or null if this role doesn't execute "mapFunction" (default implementation).
+	 */
+	public String map(int mapFunction, String firstKey, String lastKey){
+		return null;
+	}
+
 	public String getId(){
 		return id;
 	}
@@ -163,6 +240,57 @@ public abstract class A3Role implements Runnable{
 			node.hierarchyReply(object[0], object[1], getGroupName(), Boolean.valueOf(object[2]));
 			break;
 
+		case Constants.QUERY:
+		case Constants.MAP_REDUCE:
+			
+			/* "senderAddress Constants.QUERY queryId numberOfMembers reason object"
+			 * or "senderAddress Constants.MAP_REDUCE jobId numberOfMembers mapFunction firstKey lastKey".
+			 * I reply "Constants.QUERY_REPLY queryId true answer", or "Constants.QUERY_REPLY queryId false" if I decline.
+			 */
+			try{
+				object = message.object.split(Constants.A3_SEPARATOR, 3);
+				String answer;
+				
+				if(message.reason == Constants.MAP_REDUCE){
+					String[] job = object[2].split(Constants.A3_SEPARATOR);
+					answer = map(Integer.valueOf(job[0]), job[1], job[2]);
+				}
+				else{
+					String[] query = object[2].split(Constants.A3_SEPARATOR, 2);
+					answer = answerQuery(Integer.valueOf(query[0]), query.length > 1 ? query[1] : "");
+				}
+				channel.sendToSupervisor(new A3Message(Constants.QUERY_REPLY, object[0] + Constants.A3_SEPARATOR +
+						(answer != null) + (answer == null ? "" : Constants.A3_SEPARATOR + answer)));
+			} catch (Exception e) {}
+			break;
+
+		case Constants.ROUTE:
+		case Constants.ROUTE_ADVERTISEMENT:
+		case Constants.SUBTREE_BROADCAST:
+		case Constants.SUBTREE_MESSAGE:
+			node.getRouter().onMessage(message, this);
+			break;
+
+		case Constants.TASK:
+			
+			/* "senderAddress Constants.TASK taskId reason object".
+			 * My channel already acknowledged it, when it arrived:
+			 * I reply "Constants.TASK_RESULT taskId true result", or "Constants.TASK_RESULT taskId false" if I decline it.
+			 */
+			try{
+				object = message.object.split(Constants.A3_SEPARATOR, 3);
+				String result = executeTask(Integer.valueOf(object[1]), object[2]);
+				channel.sendToSupervisor(new A3Message(Constants.TASK_RESULT, object[0] + Constants.A3_SEPARATOR +
+						(result != null) + (result == null ? "" : Constants.A3_SEPARATOR + result)));
+			} catch (Exception e) {}
+			break;
+
+		case Constants.RING_DELTA:
+			//"senderAddress Constants.RING_DELTA ringVersion +address|-address": my channel already applied it to the ring.
+			object = message.object.split(Constants.A3_SEPARATOR);
+			onOwnershipChanged(object[1].substring(1), object[1].startsWith("+"));
+			break;
+
 		default:
 			break;
 		}
@@ -199,7 +327,9 @@ public abstract class A3Role implements Runnable{
 				 */
 				@Override
 				public void handleMessage(Message msg) {
+					long start = System.nanoTime();
 					A3Role.this.handleMessage((A3Message) msg.obj);
+					addBusyTime(System.nanoTime() - start);
 				}
 			};
 		}
@@ -24,30 +24,41 @@ public interface A3ServiceInterface {
 	/**Used by the Service to receive messages directed to all the channels of the group.
 	 * Such messages are sent by supervisor only.
 	 * @param message The message to be sent.
+	 * @param term The election term in which the sender was elected supervisor.
 	 * @return true if the transmission was successful, otherwise false.
 	 * @throws BusException AllJoyn errors.
 	 */
-	@BusMethod(signature = "(sis)", replySignature = "b")
-	public boolean sendBroadcast(A3Message message) throws BusException;
+	@BusMethod(signature = "(sis)i", replySignature = "b")
+	public boolean sendBroadcast(A3Message message, int term) throws BusException;
 	
 	/**Used by the Service to receive messages directed to the channels of the group
 	 * which are subscribed to receive it.
 	 * Such messages are sent by supervisor only.
 	 * @param message The message to be sent.
+	 * @param term The election term in which the sender was elected supervisor.
 	 * @return true if the transmission was successful, otherwise false.
 	 * @throws BusException AllJoyn errors.
 	 */
-	@BusMethod(signature = "(sis)", replySignature = "b")
-	public boolean sendMulticast(A3Message message) throws BusException;
+	@BusMethod(signature = "(sis)i", replySignature = "b")
+	public boolean sendMulticast(A3Message message, int term) throws BusException;
 	
 	/**Used by the Service to receive messages directed to the specified channel of the group.
 	 * Such messages are sent by supervisor only.
 	 * @param message The message to be sent.
+	 * @param address The address of the destination channel.
+	 * @param term The election term in which the sender was elected supervisor.
 	 * @return true if the transmission was successful, otherwise false.
 	 * @throws BusException AllJoyn errors.
 	 */
-	@BusMethod(signature = "(sis)s", replySignature = "b")
-	public boolean sendUnicast(A3Message message, String address) throws BusException;
+	@BusMethod(signature = "(sis)si", replySignature = "b")
+	public boolean sendUnicast(A3Message message, String address, int term) throws BusException;
+
+	/**Used by the supervisor to learn the current election term, when the Service refused its messages.
+	 * @return The current election term.
+	 * @throws BusException AllJoyn errors.
+	 */
+	@BusMethod(replySignature = "i")
+	public int getTerm() throws BusException;
 	
 	/**Used by the Service to send messages to all the channels of the group.
 	 * @param message The message to be sent.
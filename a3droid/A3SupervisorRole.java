@@ -1,5 +1,8 @@
 package a3.a3droid;
 
+import java.util.HashMap;
+import java.util.Random;
+
 import org.alljoyn.bus.BusObject;
 import org.alljoyn.bus.annotation.BusSignalHandler;
 
@@ -17,9 +20,24 @@ public abstract class A3SupervisorRole extends A3Role implements BusObject, Time
 	/**The number of nodes to transfer in the new group.*/
 	private int nodesToTransfer;
 	
+	/**The object that reduces the messages of the group before forwarding them to the parent groups.*/
+	private Aggregator aggregator;
+	
+	/**The ongoing queries, by id.*/
+	private HashMap<String, GroupQuery> queries;
+	
+	private Random random;
+	
+	/**The object that distributes the tasks among the followers.*/
+	private TaskScheduler scheduler;
+	
 	public A3SupervisorRole(){
 		super();
 		fitnessFunctions = new FitnessFunctionManager(this);
+		aggregator = new Aggregator(this);
+		queries = new HashMap<String, GroupQuery>();
+		random = new Random();
+		scheduler = new TaskScheduler(this);
 	}
 
 	@Override
@@ -38,9 +56,6 @@ public abstract class A3SupervisorRole extends A3Role implements BusObject, Time
 
 		super.handleMessage(message);
 		try{
-			boolean ok = false;
-			
-			A3Message reply = null;
 			String[] object;
 
 			switch(message.reason){
@@ -63,28 +78,21 @@ public abstract class A3SupervisorRole extends A3Role implements BusObject, Time
 
 			case Constants.STACK_REQUEST:
 				//"senderAddress Constants.STACK_REQUEST parentGroupName".
-				try{
-					ok = node.actualStack(message.object, getGroupName());
-					reply = new A3Message(Constants.STACK_REPLY, message.object + Constants.A3_SEPARATOR + ok);
-					channel.sendUnicast(reply, message.senderAddress);
-				} catch (Exception e) {}
+				replyWhenDone(node.actualStack(message.object, getGroupName()),
+						Constants.STACK_REPLY, message.object, message.senderAddress);
 				break;
 				
 			case Constants.PEERS_REQUEST:
 				//"senderAddress Constants.PEERS_REQUEST otherGroupName".
-				ok = node.actualStack(message.object, getGroupName());
-				reply = new A3Message(Constants.PEERS_REPLY, message.object + Constants.A3_SEPARATOR + ok);
-				channel.sendUnicast(reply, message.senderAddress);
+				replyWhenDone(node.actualStack(message.object, getGroupName()),
+						Constants.PEERS_REPLY, message.object, message.senderAddress);
 				break;
 
 			case Constants.HIERARCHY_REQUEST:
 				//"senderAddress Constants.HIERARCHY_REQUEST parentGroupName otherGroupName".
 				object = message.object.split(Constants.A3_SEPARATOR);
-				ok = node.actualStack(object[0], getGroupName());
-				reply = new A3Message(Constants.HIERARCHY_REPLY, message.object
-						+ Constants.A3_SEPARATOR + ok);
-				
-				channel.sendUnicast(reply, message.senderAddress);
+				replyWhenDone(node.actualStack(object[0], getGroupName()),
+						Constants.HIERARCHY_REPLY, message.object, message.senderAddress);
 				break;
 
 			case Constants.REVERSE_STACK:
@@ -106,28 +114,321 @@ public abstract class A3SupervisorRole extends A3Role implements BusObject, Time
 				fitnessFunctions.onMessage(message);
 				break;
 
-			default: receiveApplicationMessage(message); break;
+			case Constants.AGGREGATE:
+				
+				/* "senderAddress Constants.AGGREGATE reason path aggregate", sent by the supervisor of a child group.
+				 * I merge it with the readings of my group, or I pass it to my role if I don't reduce such messages.
+				 * An aggregate which already includes the readings of my group went around a loop: I drop it.
+				 */
+				object = message.object.split(Constants.A3_SEPARATOR, 3);
+				if(aggregator.includesMe(object[1]))
+					break;
+				if(!aggregator.addAggregate(Integer.valueOf(object[0]), object[1], object[2]))
+					receiveAggregate(Integer.valueOf(object[0]), object[2]);
+				break;
+
+			case Constants.QUERY:
+			case Constants.MAP_REDUCE:
+				//I answered my own query in super.handleMessage(message): the Service told me how many members will reply.
+				object = message.object.split(Constants.A3_SEPARATOR, 3);
+				GroupQuery query = getQuery(object[0]);
+				if(query != null)
+					query.setMembers(Integer.valueOf(object[1]));
+				break;
+				
+			case Constants.QUERY_REPLY:
+				//"senderAddress Constants.QUERY_REPLY queryId true answer" or "senderAddress Constants.QUERY_REPLY queryId false".
+				object = message.object.split(Constants.A3_SEPARATOR, 3);
+				query = getQuery(object[0]);
+				if(query != null)
+					query.onReply(message.senderAddress, Boolean.valueOf(object[1]) ? object[2] : null);
+				break;
+
+			//I already handled them in super.handleMessage(message).
+			case Constants.ROUTE:
+			case Constants.ROUTE_ADVERTISEMENT:
+			case Constants.SUBTREE_BROADCAST:
+			case Constants.SUBTREE_MESSAGE:
+				break;
+
+			case Constants.RING_DELTA:
+				//The tasks of a follower which left are assigned to the others, and a follower which joined can take some.
+				scheduler.updateMembers();
+				break;
+
+			case Constants.TASK_ACK:
+				//"senderAddress Constants.TASK_ACK taskId taskFitness".
+				object = message.object.split(Constants.A3_SEPARATOR);
+				scheduler.onAcknowledgement(message.senderAddress, Integer.valueOf(object[0]), Integer.valueOf(object[1]));
+				break;
+
+			case Constants.TASK_RESULT:
+				//"senderAddress Constants.TASK_RESULT taskId true result" or "senderAddress Constants.TASK_RESULT taskId false".
+				object = message.object.split(Constants.A3_SEPARATOR, 3);
+				scheduler.onResult(message.senderAddress, Integer.valueOf(object[0]), Boolean.valueOf(object[1]) ? object[2] : null);
+				break;
+
+			default:
+				if(!aggregator.addReading(message))
+					receiveApplicationMessage(message);
+				break;
 			}
 		} catch (Exception e) {}
 	}
 
-	/**It starts collecting integer fitness function values for random split. 
+	/**It broadcasts a query to the group, and it collects the answers of the members as they arrive.
+	 * Each member answers in "answerQuery(int, String)" of its role, this supervisor included.
+	 * 
+	 * @param reason The kind of the query.
+	 * @param object The content of the query.
+	 * @param completion When the query is complete: GroupQuery.FIRST_K, GroupQuery.QUORUM or GroupQuery.ALL.
+	 * @param k The number of answers after which a GroupQuery.FIRST_K query is complete, ignored otherwise.
+	 * @param timeout The time after which the query ends with the answers arrived so far, in milliseconds.
+	 * @return The ongoing query.
+	 */
+	public GroupQuery query(int reason, String object, int completion, int k, int timeout){
+		
+		GroupQuery query = new GroupQuery(newQueryId(), completion, k);
+		
+		startQuery(query, Constants.QUERY, reason + Constants.A3_SEPARATOR + object, timeout);
+		return query;
+	}
+
+	/**It runs a map-reduce job over the group: all the members, this supervisor included,
+	 * map their local data in the key range in "map(int, String, String)" of their roles, in parallel,
+	 * and the partial results are merged with the combiner as they arrive.
+	 * Each partial result is also passed to "receivePartialResult(MapReduceJob, String, String)".
+	 * 
+	 * @param mapFunction The id of the map function the members execute.
+	 * @param firstKey The first key of the range to map.
+	 * @param lastKey The last key of the range to map.
+	 * @param combiner The combiner which merges the partial results.
+	 * @param timeout The time after which the job ends with the partial results arrived so far, in milliseconds.
+	 * @return The ongoing job.
+	 */
+	public MapReduceJob mapReduce(int mapFunction, String firstKey, String lastKey, Combiner combiner, int timeout){
+		
+		MapReduceJob job = new MapReduceJob(newQueryId(), this, combiner);
+		
+		/* The job is a query with its own message reason, so that no application query can be taken for it:
+		 * "mapFunction firstKey lastKey".
+		 */
+		startQuery(job, Constants.MAP_REDUCE, mapFunction + Constants.A3_SEPARATOR + firstKey + Constants.A3_SEPARATOR + lastKey, timeout);
+		return job;
+	}
+
+	/**To override in order to use the partial results of a map-reduce job as soon as they arrive.
+	 * It is called by the thread of this role, once per member which replied.
+	 * 
+	 * @param job The job, whose result already includes the partial result.
+	 * @param address The address of the member which sent the partial result.
+	 * @param partialResult The partial result.
+	 */
+	public void receivePartialResult(MapReduceJob job, String address, String partialResult){}
+
+	/**
+	 * @return A new id of a query, which is reserved until the query is started.
+	 */
+	private String newQueryId(){
+		
+		String id;
+		
+		synchronized(queries){
+			do{
+				id = Long.toHexString(random.nextLong());
+			}while(queries.containsKey(id));
+			queries.put(id, null);
+		}
+		return id;
+	}
+
+	/**It broadcasts a query to the group, and it starts its timeout.
+	 * 
+	 * @param query The query, whose id was reserved by "newQueryId()".
+	 * @param reason Constants.QUERY for a query of the application, or Constants.MAP_REDUCE for a map-reduce job.
+	 * @param object The content of the query: "reason object" for a query of the application,
+	 * "mapFunction firstKey lastKey" for a map-reduce job.
+	 * @param timeout The time after which the query ends with the answers arrived so far, in milliseconds.
+	 */
+	private void startQuery(final GroupQuery query, int reason, String object, int timeout){
+		
+		synchronized(queries){
+			queries.put(query.getId(), query);
+		}
+		
+		query.whenDone(new Runnable() {
+			
+			@Override
+			public void run() {
+				synchronized(queries){
+					queries.remove(query.getId());
+				}
+			}
+		});
+		
+		query.start(timeout);
+		
+		//"reason queryId - object": the Service writes the number of members in place of "-".
+		channel.sendBroadcast(new A3Message(reason, query.getId() + Constants.A3_SEPARATOR + "-" +
+				Constants.A3_SEPARATOR + object));
+	}
+	
+	/**It submits a task to the group: a follower executes it in "executeTask(int, String)" of its role.
+	 * The tasks are distributed among the followers in proportion to their task fitness function values,
+	 * and the followers which are idle steal the tasks queued for the busy ones (see TaskScheduler).
+	 * The tasks of a follower which leaves the group are executed by the others.
+	 * 
+	 * @param reason The kind of the task.
+	 * @param object The content of the task.
+	 * @return The submitted task.
+	 */
+	public GroupTask submitTask(int reason, String object){
+		return scheduler.submit(reason, object);
+	}
+	
+	private GroupQuery getQuery(String id){
+		synchronized(queries){
+			return queries.get(id);
+		}
+	}
+
+	/**It reduces the messages of a kind with a combiner, instead of passing them to "receiveApplicationMessage(A3Message)".
+	 * The aggregate of the messages received in a window of "Aggregator.DEFAULT_WINDOW" milliseconds,
+	 * merged with the aggregates received from the child groups, is passed to "receiveAggregate(int, String)"
+	 * and forwarded to the supervisors of the parent groups.
+	 * 
+	 * @param reason The kind of the messages.
+	 * @param combiner The combiner, or null to stop reducing such messages.
+	 */
+	public void setCombiner(int reason, Combiner combiner){
+		setCombiner(reason, combiner, Aggregator.DEFAULT_WINDOW);
+	}
+
+	/**It reduces the messages of a kind with a combiner, instead of passing them to "receiveApplicationMessage(A3Message)".
+	 * 
+	 * @param reason The kind of the messages.
+	 * @param combiner The combiner, or null to stop reducing such messages.
+	 * @param window The length of the window in which the messages are reduced, in milliseconds.
+	 */
+	public void setCombiner(int reason, Combiner combiner, int window){
+		aggregator.setCombiner(reason, combiner, window);
+	}
+
+	/**To override in order to use the aggregates of this group (e.g. in the group at the top of the hierarchy).
+	 * It is called when a window ends, with the aggregate which is forwarded to the parent groups,
+	 * and with the aggregates received from the child groups for kinds which this role doesn't reduce.
+	 * At the end of a window, it is called by the thread of the timer of the window.
+	 * 
+	 * @param reason The kind of the reduced messages.
+	 * @param aggregate The aggregate.
+	 */
+	public void receiveAggregate(int reason, String aggregate){
+		receiveApplicationMessage(new A3Message(reason, aggregate));
+	}
+
+	/**To override in order to handle the messages routed to this group from the groups linked to it in the hierarchy
+	 * (see A3Node.sendToGroup(A3Message, String)).
+	 * 
+	 * @param message The routed message, whose sender address is the address of its sender in the group where it entered the hierarchy.
+	 * @param originGroupName The group where the message entered the hierarchy, to which the replies can be routed.
+	 */
+	public void receiveRoutedMessage(A3Message message, String originGroupName){
+		receiveApplicationMessage(message);
+	}
+
+	/**It replies to a remote hierarchy operation when its step on this node ends,
+	 * without blocking this role while this node connects to the other group.
+	 * The reply is like "reason object true/false".
+	 * 
+	 * @param operation The step executed on this node.
+	 * @param reason The kind of the reply.
+	 * @param object The content of the request, which is sent back with the result.
+	 * @param address The address of the channel which requested the operation.
+	 */
+	private void replyWhenDone(final HierarchyOperation operation, final int reason, final String object, final String address){
+		
+		operation.whenDone(new Runnable() {
+			
+			@Override
+			public void run() {
+				try{
+					A3Message reply = new A3Message(reason, object + Constants.A3_SEPARATOR + operation.isSuccessful());
+					channel.sendUnicast(reply, address);
+				}catch(Exception e){}
+			}
+		});
+	}
+
+	/**It starts collecting integer fitness function values for random split.
+	 * Only the best "nodesToTransfer" values are kept.
 	 */
 	public void startSplit(int nodesToTransfer) {
 		// TODO Auto-generated method stub
 		this.nodesToTransfer = nodesToTransfer;
-		fitnessFunctions.startCollectingFitnessFunctions(Constants.SPLIT);
+		
+		/* Values arrive after my broadcast reached the followers and their replies reached me,
+		 * so I wait for two round trips.
+		 */
+		fitnessFunctions.startCollectingFitnessFunctions(Constants.SPLIT, nodesToTransfer, 0,
+				2 * node.getRoundTripEstimator(getGroupName()).getTimeout());
+	}
+
+	/**It sets the number of followers that will send their integer fitness function values,
+	 * in order to end the split collection as soon as all of them replied.
+	 *
+	 * @param numberOfFollowers The number of the followers in the view of the Service.
+	 */
+	public void setExpectedSplitVoters(int numberOfFollowers){
+		fitnessFunctions.setExpectedVoters(numberOfFollowers);
+	}
+
+	/**To override in order to declare the state of this role that must survive the change of the supervisor.
+	 * It is replicated on the deputy supervisor, which replaces the supervisor without an election when it leaves.
+	 * If the supervisor changes while it is still in the group (e.g. after a supervisor election),
+	 * this method is called on the old supervisor and its result is handed off to the new one.
+	 * A compact representation is preferable, because it is sent as a single message.
+	 * 
+	 * @return The string representation of the state, or null if this role doesn't declare any state (default implementation).
+	 */
+	public String getReplicatedState(){
+		return null;
+	}
+
+	/**To override in order to restore the state declared in "getReplicatedState()".
+	 * It is called on the new supervisor before "onActivation()",
+	 * with the state handed off by the old supervisor or, if there is none, with the copy kept as deputy.
+	 * If none of them is available, this method isn't called and the role starts from scratch.
+	 * 
+	 * @param state The string representation of the state, as returned by "getReplicatedState()" on the old supervisor.
+	 */
+	public void setReplicatedState(String state){}
+
+	/**It sends the declared state of this role to the deputy supervisor.
+	 * It must be called every time such state changes, and it is called when a new deputy is elected.
+	 */
+	public void replicateState(){
+		String state = getReplicatedState();
+
+		if(state != null)
+			channel.sendToDeputy(state);
 	}
 
 	@Override
 	public void timerFired(int reason) {
-		// I can only have a split operation, so I don't check the value of reason.
+		/* I can only have a split operation, so I don't check the value of reason.
+		 * The Service creates the new group and moves the selected nodes to it at once:
+		 * "Constants.SPLIT nodesToTransfer newGroupName address1 address2 ...".
+		 */
 		try {
 			String[] selectedNodes = fitnessFunctions.getBest(nodesToTransfer);
-			A3Message message = new A3Message(Constants.SPLIT, "");
+			String split = selectedNodes.length + Constants.A3_SEPARATOR +
+					getGroupName() + "_" + channel.getHierarchy().getSubgroupsCounter();
 			
 			for(String node : selectedNodes)
-				channel.sendUnicast(message, node);
+				split = split + Constants.A3_SEPARATOR + node;
+			
+			if(selectedNodes.length > 0)
+				channel.sendToSupervisor(new A3Message(Constants.SPLIT, split));
 			
 		} catch (Exception e) {}
 	}
@@ -12,4 +12,21 @@ public interface A3UnicastInterface {
 	 */
 	@BusMethod(signature = "(sis)")
 	public void receiveUnicast(A3Message message);
+
+	/**
+	 * Called by the supervisor to send a unicast message directly, without passing through the Service.
+	 * @param message The message sent by the supervisor.
+	 * @param term The term of the supervisor.
+	 * @return true if the message was accepted, false if the sender isn't the current supervisor of the receiver.
+	 */
+	@BusMethod(signature = "(sis)i", replySignature = "b")
+	public boolean receiveDirectUnicast(A3Message message, int term);
+
+	/**
+	 * Called by the Service to deliver a message to the supervisor role only, instead of signaling it to the whole session.
+	 * @param message The message sent by a follower to the supervisor.
+	 * @return true if the message was delivered, false if the receiver isn't the supervisor.
+	 */
+	@BusMethod(signature = "(sis)", replySignature = "b")
+	public boolean receiveSupervisorMessage(A3Message message);
 }
@@ -47,6 +47,18 @@ public class A3UnicastReceiver extends Thread implements A3UnicastInterface, Bus
 		channel.ReceiveBroadcast(message);
 	}
 
+	@Override
+	@BusMethod(signature = "(sis)i", replySignature = "b")
+	public boolean receiveDirectUnicast(A3Message message, int term) {
+		return channel.onDirectUnicast(message, term);
+	}
+
+	@Override
+	@BusMethod(signature = "(sis)", replySignature = "b")
+	public boolean receiveSupervisorMessage(A3Message message) {
+		return channel.onSupervisorMessage(message);
+	}
+
 	/** It is used in order to publish the name on the AllJoyn bus.*/
 	public void connect(){
 	
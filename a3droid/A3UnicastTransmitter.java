@@ -97,6 +97,56 @@ public class A3UnicastTransmitter extends Thread{
 		return transmissionOk;
 	}
 
+	/**
+	 * It sends a unicast message of the supervisor directly to a channel (see DirectLinks).
+	 * @param message The message to be sent.
+	 * @param address The name of the UnicastReceiver of the channel.
+	 * @param term The term of the supervisor.
+	 * @return true, if the channel received and accepted the message, false otherwise.
+	 */
+	public boolean sendDirectUnicast(A3Message message, String address, int term){
+
+		toOtherGroup = false;
+		try {
+			if(!name.equals(address) || !connected){
+				disconnect();
+				name = address;
+				connect();
+			}
+
+			if (connected && unicastInterface != null)
+				return unicastInterface.receiveDirectUnicast(message, term);
+		} catch (Exception ex) {
+			//The session broke: isConnected() tells it apart from a refusal.
+			disconnect();
+		}
+		return false;
+	}
+
+	/**
+	 * It delivers a message to the supervisor role of a channel, keeping the session open for the next ones.
+	 * @param message The message to be sent.
+	 * @param address The name of the UnicastReceiver of the supervisor.
+	 * @return true, if the supervisor received the message, false otherwise.
+	 */
+	public boolean sendToSupervisorRole(A3Message message, String address){
+
+		toOtherGroup = false;
+		try {
+			if(!name.equals(address) || !connected){
+				disconnect();
+				name = address;
+				connect();
+			}
+
+			if (connected && unicastInterface != null)
+				return unicastInterface.receiveSupervisorMessage(message);
+		} catch (Exception ex) {
+			disconnect();
+		}
+		return false;
+	}
+
 	/**It is used in order to create the AllJoyn session with the receiver.*/
 	public void connect(){
 
@@ -108,13 +158,19 @@ public class A3UnicastTransmitter extends Thread{
 			public void foundAdvertisedName(String name, short transport, String namePrefix) {}
 		});
 
+		connected = false;
+
 		Status status = mBus.connect();
-		if (Status.OK != status)
+		if (Status.OK != status){
+			mBus = null;
 			return;
+		}
 
 		status = mBus.registerSignalHandlers(this);
-		if (status != Status.OK)
+		if (status != Status.OK){
+			releaseBus();
 			return;
+		}
 
 		short contactPort = Constants.CONTACT_PORT;
 		SessionOpts sessionOpts = new SessionOpts();
@@ -147,8 +203,9 @@ public class A3UnicastTransmitter extends Thread{
 			connected = true;
 		}
 
+		//The session wasn't created: I release the connection to the bus, or it would be leaked at the next attempt.
 		else
-			connected = false;
+			releaseBus();
 	}
 
 	/**It is use to leave the AllJoyn session with the receiver.*/
@@ -163,11 +220,27 @@ public class A3UnicastTransmitter extends Thread{
 			if (connected) {
 				mBus.leaveSession(mSessionId);
 				connected = false;
+			}
+		}
+		catch (Exception ex) {}
+		releaseBus();
+	}
 
+	/**It disconnects from the bus the attachment of the last connection, if any.*/
+	private void releaseBus(){
+		try{
+			if (mBus != null)
 				mBus.disconnect();
-			}
 		}
 		catch (Exception ex) {}
+		mBus = null;
+	}
+
+	/**
+	 * @return true if this transmitter has a session with its receiver, false otherwise.
+	 */
+	public boolean isConnected() {
+		return connected;
 	}
 
 	public String getChannelName() {
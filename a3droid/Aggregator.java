@@ -0,0 +1,207 @@
+package a3.a3droid;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+
+/**This class resides on A3SupervisorRole and it reduces the messages of the group to aggregates, for the kinds which have a combiner.
+ * The readings sent by the followers and the aggregates sent by the supervisors of the child groups
+ * are merged for a time window, which starts with the first of them.
+ * When the window ends, the aggregate is passed to the supervisor role and forwarded once to each parent group,
+ * so that each group sends one message per window up the hierarchy, instead of one per reading.
+ *
+ * An aggregate carries the path of the groups whose readings it includes, so that it never goes around a loop:
+ * with peers groups, each group is a parent of the other.
+ * An aggregate is not forwarded to a parent which is in its path, or whose own parents include this group,
+ * and a group drops an aggregate which already includes its readings.
+ */
+public class Aggregator implements TimerInterface {
+
+	/**The default length of the window, in milliseconds.*/
+	public static final int DEFAULT_WINDOW = 1000;
+
+	/**The role this aggregator belongs to.*/
+	private A3SupervisorRole role;
+
+	/**The combiners, by the kind of the messages they reduce.*/
+	private HashMap<Integer, Combiner> combiners;
+
+	/**The length of the windows, by the kind of the messages, in milliseconds.*/
+	private HashMap<Integer, Integer> windows;
+
+	/**The aggregates of the open windows, by the kind of the messages.*/
+	private HashMap<Integer, String> aggregates;
+
+	/**The groups whose readings are in the aggregates of the open windows, by the kind of the messages.*/
+	private HashMap<Integer, LinkedHashSet<String>> paths;
+
+	/**
+	 * @param role The role this aggregator belongs to.
+	 */
+	public Aggregator(A3SupervisorRole role){
+		this.role = role;
+		combiners = new HashMap<Integer, Combiner>();
+		windows = new HashMap<Integer, Integer>();
+		aggregates = new HashMap<Integer, String>();
+		paths = new HashMap<Integer, LinkedHashSet<String>>();
+	}
+
+	/**It sets the combiner of a kind of messages.
+	 *
+	 * @param reason The kind of the messages.
+	 * @param combiner The combiner, or null to stop reducing such messages.
+	 * @param window The length of the window, in milliseconds.
+	 */
+	public synchronized void setCombiner(int reason, Combiner combiner, int window){
+		if(combiner == null){
+			combiners.remove(reason);
+			windows.remove(reason);
+		}
+		else{
+			combiners.put(reason, combiner);
+			windows.put(reason, window);
+		}
+	}
+
+	/**
+	 * @param reason The kind of the messages.
+	 * @return true if the messages of kind "reason" are reduced, false otherwise.
+	 */
+	public synchronized boolean hasCombiner(int reason){
+		return combiners.containsKey(reason);
+	}
+
+	/**It adds a reading of a follower to the window of its kind.
+	 *
+	 * @param message The reading.
+	 * @return true if the reading was added, false if its kind has no combiner or if it isn't valid.
+	 */
+	public boolean addReading(A3Message message){
+		try{
+			Combiner combiner;
+			synchronized(this){
+				combiner = combiners.get(message.reason);
+			}
+			return combiner != null && add(message.reason, role.getGroupName(), combiner.lift(message.object));
+		}catch(Exception e){
+			return false;
+		}
+	}
+
+	/**It adds an aggregate sent by the supervisor of a child group to the window of its kind.
+	 *
+	 * @param reason The kind of the messages.
+	 * @param path The groups whose readings are in the aggregate, separated by ",".
+	 * @param aggregate The aggregate.
+	 * @return true if the aggregate was added, false if its kind has no combiner.
+	 */
+	public boolean addAggregate(int reason, String path, String aggregate){
+		return add(reason, path, aggregate);
+	}
+
+	/**
+	 * @param path The groups whose readings are in an aggregate, separated by ",".
+	 * @return true if the readings of this group are already in the aggregate, false otherwise.
+	 */
+	public boolean includesMe(String path){
+		for(String groupName : path.split(","))
+			if(groupName.equals(role.getGroupName()))
+				return true;
+		return false;
+	}
+
+	private boolean add(int reason, String path, String aggregate){
+
+		boolean opening;
+
+		synchronized(this){
+			Combiner combiner = combiners.get(reason);
+
+			if(combiner == null)
+				return false;
+
+			String current = aggregates.get(reason);
+			opening = current == null;
+
+			//An invalid value doesn't spoil the window.
+			try{
+				aggregates.put(reason, opening ? aggregate : combiner.merge(current, aggregate));
+			}catch(Exception e){
+				return false;
+			}
+
+			if(opening)
+				paths.put(reason, new LinkedHashSet<String>());
+			for(String groupName : path.split(","))
+				paths.get(reason).add(groupName);
+		}
+
+		if(opening)
+			new Timer(this, reason, getWindow(reason)).start();
+		return true;
+	}
+
+	private synchronized int getWindow(int reason){
+		Integer window = windows.get(reason);
+		return window == null ? DEFAULT_WINDOW : window;
+	}
+
+	/**It forwards an aggregate to the supervisors of the parent groups,
+	 * also if the supervisor of this group isn't connected to them.
+	 * The message is like "Constants.AGGREGATE reason path aggregate",
+	 * where "path" is the groups whose readings are in the aggregate, separated by ",".
+	 * The parents in the path, and the ones which are also children of this group, don't receive it.
+	 */
+	private void forward(int reason, LinkedHashSet<String> path, String aggregate){
+
+		try{
+			A3Node node = role.node;
+			String groupName = role.getGroupName();
+			ArrayList<String> parents = new ArrayList<String>(role.channel.getHierarchy().getHierarchy());
+			String pathString = "";
+
+			path.add(groupName);
+			for(String member : path)
+				pathString = pathString.equals("") ? member : pathString + "," + member;
+
+			for(String parent : parents){
+				if(path.contains(parent) || isChild(parent, groupName))
+					continue;
+				node.sendToGroup(new A3Message(Constants.AGGREGATE,
+						reason + Constants.A3_SEPARATOR + pathString + Constants.A3_SEPARATOR + aggregate), parent);
+			}
+		}catch(Exception e){}
+	}
+
+	/**
+	 * @param parent The name of a parent group.
+	 * @param groupName The name of this group.
+	 * @return true if this node is connected to "parent" and "groupName" is one of its parents, false otherwise.
+	 */
+	private boolean isChild(String parent, String groupName){
+		try{
+			return role.node.getChannel(parent).getHierarchy().getHierarchy().contains(groupName);
+		}catch(Exception e){
+			return false;
+		}
+	}
+
+	/**The window of the messages of kind "reason" ended.*/
+	@Override
+	public void timerFired(int reason) {
+
+		String aggregate;
+		LinkedHashSet<String> path;
+
+		synchronized(this){
+			aggregate = aggregates.remove(reason);
+			path = paths.remove(reason);
+		}
+
+		if(aggregate == null)
+			return;
+
+		forward(reason, path, aggregate);
+		role.receiveAggregate(reason, aggregate);
+	}
+}
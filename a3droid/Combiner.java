@@ -0,0 +1,131 @@
+package a3.a3droid;
+
+import java.util.TreeMap;
+
+/**This class reduces the messages of a kind to a single aggregate, which is forwarded up the hierarchy (see Aggregator).
+ * An aggregate is represented as a string, in order to be sent in a message.
+ * A reading of a follower is first turned into an aggregate, which is then merged with the other aggregates:
+ * in this way, the aggregates coming from the child groups are merged as they were readings of the group.
+ * The merge must be associative and commutative, because aggregates arrive in any order.
+ * The static methods create the most common combiners; others can be defined by extending this class.
+ */
+public abstract class Combiner {
+
+	/**
+	 * @param reading The content of a message sent by a follower.
+	 * @return The aggregate of the only reading "reading".
+	 */
+	public abstract String lift(String reading);
+
+	/**
+	 * @param aggregate An aggregate.
+	 * @param otherAggregate Another aggregate.
+	 * @return The aggregate of the readings of both "aggregate" and "otherAggregate".
+	 */
+	public abstract String merge(String aggregate, String otherAggregate);
+
+	/**
+	 * @return A combiner whose aggregate is the sum of the readings, which are numbers.
+	 */
+	public static Combiner sum(){
+		return new Combiner(){
+
+			@Override
+			public String lift(String reading){
+				return String.valueOf(Double.valueOf(reading));
+			}
+
+			@Override
+			public String merge(String aggregate, String otherAggregate){
+				return String.valueOf(Double.valueOf(aggregate) + Double.valueOf(otherAggregate));
+			}
+		};
+	}
+
+	/**
+	 * @return A combiner whose aggregate is the number of the readings.
+	 */
+	public static Combiner count(){
+		return new Combiner(){
+
+			@Override
+			public String lift(String reading){
+				return "1";
+			}
+
+			@Override
+			public String merge(String aggregate, String otherAggregate){
+				return String.valueOf(Long.valueOf(aggregate) + Long.valueOf(otherAggregate));
+			}
+		};
+	}
+
+	/**
+	 * @return A combiner whose aggregate is the lowest of the readings, which are numbers.
+	 */
+	public static Combiner min(){
+		return new Combiner(){
+
+			@Override
+			public String lift(String reading){
+				return String.valueOf(Double.valueOf(reading));
+			}
+
+			@Override
+			public String merge(String aggregate, String otherAggregate){
+				return String.valueOf(Math.min(Double.valueOf(aggregate), Double.valueOf(otherAggregate)));
+			}
+		};
+	}
+
+	/**
+	 * @return A combiner whose aggregate is the highest of the readings, which are numbers.
+	 */
+	public static Combiner max(){
+		return new Combiner(){
+
+			@Override
+			public String lift(String reading){
+				return String.valueOf(Double.valueOf(reading));
+			}
+
+			@Override
+			public String merge(String aggregate, String otherAggregate){
+				return String.valueOf(Math.max(Double.valueOf(aggregate), Double.valueOf(otherAggregate)));
+			}
+		};
+	}
+
+	/**
+	 * @param bucketWidth The width of the buckets of the histogram.
+	 * @return A combiner whose aggregate is the histogram of the readings, which are numbers.
+	 * The aggregate is like "bucket1:count1,bucket2:count2,...", where each bucket is the lower bound of its interval.
+	 */
+	public static Combiner histogram(final double bucketWidth){
+		return new Combiner(){
+
+			@Override
+			public String lift(String reading){
+				return String.valueOf(Math.floor(Double.valueOf(reading) / bucketWidth) * bucketWidth) + ":1";
+			}
+
+			@Override
+			public String merge(String aggregate, String otherAggregate){
+
+				TreeMap<Double, Long> buckets = new TreeMap<Double, Long>();
+
+				for(String bucket : (aggregate + "," + otherAggregate).split(",")){
+					String[] splittedBucket = bucket.split(":");
+					Double lowerBound = Double.valueOf(splittedBucket[0]);
+					Long count = buckets.get(lowerBound);
+					buckets.put(lowerBound, (count == null ? 0 : count) + Long.valueOf(splittedBucket[1]));
+				}
+
+				String result = "";
+				for(Double lowerBound : buckets.keySet())
+					result = result + (result.equals("") ? "" : ",") + lowerBound + ":" + buckets.get(lowerBound);
+				return result;
+			}
+		};
+	}
+}
@@ -0,0 +1,13 @@
+package a3.a3droid;
+
+/**The method to manage the end of a connection to a group, without blocking while it is ongoing.*/
+public interface ConnectionInterface {
+
+	/**
+	 * Called by A3Node when the channel to a group stops connecting.
+	 * @param groupName The name of the group.
+	 * @param connected true if the status of the channel became "CONNECTED",
+	 * false if it became "WAITING" or if the channel was disconnected.
+	 */
+	public void connectionEnded(String groupName, boolean connected);
+}
@@ -44,4 +44,28 @@ public class Constants {
 	public static final int NEW_SPLITTED_GROUP = 28;
 	public static final int NEW_GROUP = 29;
 	protected static final int WAIT_MERGE = 30;
+	
+	public static final int NEW_DEPUTY = 31;
+	public static final int DEPUTY_STATE = 32;
+	public static final int FITNESS_HEARTBEAT = 33;
+	public static final int HANDOFF_STATE = 34;
+	public static final int RESUME = 35;
+	public static final int SESSION_TOKEN = 36;
+	public static final int RECONNECT = 37;
+	public static final int JOIN_ADMISSION = 38;
+	public static final int DUPLICATE_GROUP = 39;
+	public static final int LOAD_REPORT = 40;
+	public static final int ROUTE = 41;
+	public static final int ROUTE_ADVERTISEMENT = 42;
+	public static final int SUBTREE_BROADCAST = 43;
+	public static final int SUBTREE_MESSAGE = 44;
+	public static final int AGGREGATE = 45;
+	public static final int QUERY = 46;
+	public static final int QUERY_REPLY = 47;
+	public static final int RING = 48;
+	public static final int RING_DELTA = 49;
+	public static final int TASK = 50;
+	public static final int TASK_ACK = 51;
+	public static final int TASK_RESULT = 52;
+	public static final int MAP_REDUCE = 53;
 }
@@ -0,0 +1,68 @@
+package a3.a3droid;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**This class finds the descriptor of a group from its name, without scanning all the descriptors.
+ * The groups splitted by other groups have their same descriptors and names like "group_3" or "group_3_1",
+ * so the descriptors are stored in a trie whose levels are the parts of their names separated by "_":
+ * the descriptor of a group is the one with the longest name which is a prefix of the group name.
+ * The index doesn't change after its creation, so it can be read by many threads without locks.
+ */
+public class DescriptorIndex {
+
+	/**The root of the trie, which corresponds to the empty name.*/
+	private final Entry root;
+
+	/**
+	 * @param groupDescriptors The descriptors of the groups that can be present in the system.
+	 * If two descriptors have the same name, the first one is kept.
+	 */
+	public DescriptorIndex(ArrayList<GroupDescriptor> groupDescriptors){
+
+		root = new Entry();
+
+		for(GroupDescriptor descriptor : groupDescriptors){
+			Entry entry = root;
+
+			for(String part : descriptor.getName().split("_", -1)){
+				Entry child = entry.children.get(part);
+
+				if(child == null){
+					child = new Entry();
+					entry.children.put(part, child);
+				}
+				entry = child;
+			}
+
+			if(entry.descriptor == null)
+				entry.descriptor = descriptor;
+		}
+	}
+
+	/**
+	 * @param groupName The name of the group whose descriptor is requested.
+	 * @return The descriptor of the group "groupName", or null if the group and its subgroups don't exist in the system.
+	 */
+	public GroupDescriptor get(String groupName){
+
+		GroupDescriptor found = null;
+		Entry entry = root;
+
+		for(String part : groupName.split("_", -1)){
+			entry = entry.children.get(part);
+
+			if(entry == null)
+				break;
+			if(entry.descriptor != null)
+				found = entry.descriptor;
+		}
+		return found;
+	}
+
+	/**A level of the trie: the descriptor whose name ends here, if any, and the next parts of the names.*/
+	private class Entry{
+		private GroupDescriptor descriptor;
+		private HashMap<String, Entry> children = new HashMap<String, Entry>();
+	}
+}
@@ -0,0 +1,147 @@
+package a3.a3droid;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**This class resides on A3Channel and it sends the unicast messages of the supervisor directly to the followers.
+ * Through the Service, a unicast message costs two sessions and two thread handoffs:
+ * from the supervisor to the Service, and from the Service to the A3UnicastReceiver of the follower.
+ * Here the supervisor keeps a session open to the A3UnicastReceiver of each follower it sends to,
+ * with one A3UnicastTransmitter per follower, and at most "MAX_LINKS" of them.
+ *
+ * The Service still validates the membership: only the members of the consistent hashing ring (see HashRing),
+ * which the Service keeps aligned to its view, are reached directly, and the link to a member which left is closed.
+ * The follower fences off stale supervisors: it accepts a direct message only from the supervisor it knows, in its term.
+ * If a direct transmission fails or it is refused, the message goes through the Service,
+ * so the order of the messages to a follower is kept only among the ones which take the same path.
+ * The session is closed only if it broke, not when the follower refuses a message.
+ */
+public class DirectLinks {
+
+	/**The highest number of followers with an open session.*/
+	public static final int MAX_LINKS = 32;
+
+	/**The channel these links belong to.*/
+	private A3Channel channel;
+
+	/**The transmitters to the followers, by address, from the least recently used.*/
+	private LinkedHashMap<String, A3UnicastTransmitter> links;
+
+	/**The number of messages sent directly, and the number of the ones which fell back to the Service.*/
+	private long directMessages, relayedMessages;
+
+	/**
+	 * @param channel The channel these links belong to.
+	 */
+	public DirectLinks(A3Channel channel){
+		this.channel = channel;
+		links = new LinkedHashMap<String, A3UnicastTransmitter>(16, 0.75f, true);
+		directMessages = 0;
+		relayedMessages = 0;
+	}
+
+	/**It sends a message directly to a follower.
+	 *
+	 * @param message The message, whose sender address is the one of the supervisor.
+	 * @param address The address of the follower.
+	 * @param term The term of the supervisor.
+	 * @return true if the follower received and accepted the message, false if it must be sent through the Service.
+	 */
+	public boolean send(A3Message message, String address, int term){
+
+		A3UnicastTransmitter link = null;
+		ArrayList<A3UnicastTransmitter> evicted = new ArrayList<A3UnicastTransmitter>();
+		boolean ok = false;
+
+		synchronized(this){
+			if(channel.getRing().isMember(address)){
+				link = links.get(address);
+				if(link == null){
+					link = new A3UnicastTransmitter(channel.getGroupName());
+					links.put(address, link);
+
+					//I close the sessions to the followers I sent to least recently.
+					Iterator<A3UnicastTransmitter> iterator = links.values().iterator();
+					while(links.size() > MAX_LINKS){
+						evicted.add(iterator.next());
+						iterator.remove();
+					}
+				}
+			}
+		}
+
+		for(A3UnicastTransmitter old : evicted)
+			close(old);
+
+		if(link != null){
+			boolean broken;
+
+			//A transmitter has one session at a time, so the messages to a follower are sent one by one.
+			synchronized(link){
+				ok = link.sendDirectUnicast(message, Constants.PREFIX + channel.getGroupName() + "._" + address.hashCode(), term);
+				broken = !ok && !link.isConnected();
+			}
+
+			/* A follower which didn't learn my term yet refuses the message, but the session is fine:
+			 * I keep it for the next messages, and I close it only if it broke.
+			 */
+			if(broken)
+				close(address);
+		}
+
+		synchronized(this){
+			if(ok)
+				directMessages ++;
+			else
+				relayedMessages ++;
+		}
+		return ok;
+	}
+
+	/**It closes the session to a follower, e.g. because it left the group.
+	 * @param address The address of the follower.
+	 */
+	public void close(String address){
+
+		A3UnicastTransmitter link;
+
+		synchronized(this){
+			link = links.remove(address);
+		}
+		if(link != null)
+			close(link);
+	}
+
+	/**It closes all the sessions, because this channel is not the supervisor anymore.*/
+	public void closeAll(){
+
+		ArrayList<A3UnicastTransmitter> toClose;
+
+		synchronized(this){
+			toClose = new ArrayList<A3UnicastTransmitter>(links.values());
+			links.clear();
+		}
+		for(A3UnicastTransmitter link : toClose)
+			close(link);
+	}
+
+	private void close(A3UnicastTransmitter link){
+		synchronized(link){
+			link.disconnect();
+		}
+	}
+
+	/**
+	 * @return The fraction of the unicast messages which were sent directly, or 0 if none was sent.
+	 */
+	public synchronized double getDirectRatio(){
+		long total = directMessages + relayedMessages;
+		return total == 0 ? 0 : (double) directMessages / total;
+	}
+
+	@Override
+	public synchronized String toString(){
+		return links.size() + " links, " + directMessages + " direct messages, " + relayedMessages + " relayed";
+	}
+}
@@ -1,103 +1,252 @@
 package a3.a3droid;
 
-import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.PriorityQueue;
 
 /**This class collects integer fitness function values from the nodes of a group, for any reason.
  * Values are collected in a time interval: values that arrives after time firing are discarded.
- * At the end of the timeout, values are reordered from the best (higher) to the worst (lower)
- * and the best value(s) can be retrieved.
- * 
+ * Only the best values requested at collection start are kept, in a bounded heap updated as replies arrive.
+ * The collection ends at the timeout or as soon as all the expected voters replied,
+ * and the best value(s) can then be retrieved from the best (higher) to the worst (lower).
+ *
  * @author Francesco
  *
  */
 public class FitnessFunctionManager implements TimerInterface {
 
-	/**The list of couples <node address, fitness function value>.*/
-	private ArrayList<FitnessFunction> fitnessFunctions;
-	
+	/**The best couples <node address, fitness function value> received so far.
+	 * The head of the heap is the worst of them, so that it can be replaced by a better value in O(log k).
+	 */
+	private PriorityQueue<FitnessFunction> fitnessFunctions;
+
+	/**The best couples <node address, fitness function value>, from the best to the worst.
+	 * It is filled when the collection ends.
+	 */
+	private FitnessFunction[] result;
+
 	/**The object to which communicate timer firing.*/
 	private TimerInterface timerInterface;
-	
+
 	/**true if fitness function collection is ongoing, false otherwise.*/
 	private boolean collecting;
-	
+
+	/**The reason of the ongoing fitness function values collecting.*/
+	private int reason;
+
+	/**The maximum number of values kept during the collection.*/
+	private int numberOfBest;
+
+	/**The number of replies after which the collection ends without waiting for the timeout.
+	 * 0 if it is unknown, so that the collection always ends at the timeout.
+	 */
+	private int expectedVoters;
+
+	/**The addresses of the nodes which already replied, in order to count each of them only once.*/
+	private HashSet<String> voters;
+
+	/**The number of the voters which count towards "expectedVoters".*/
+	private int expectedReplies;
+
+	/**The order of arrival of the next value: if two values are equal, the first arrived wins.*/
+	private long arrivals;
+
+	/**The timer of the ongoing collection.*/
+	private Timer timer;
+
 	/**
 	 * @param timerInterface The object to which communicate timer firing.
 	 */
 	public FitnessFunctionManager(TimerInterface timerInterface){
-		fitnessFunctions = new ArrayList<FitnessFunction>();
+		fitnessFunctions = new PriorityQueue<FitnessFunction>(1, new WorstFirstComparator());
+		result = new FitnessFunction[0];
+		voters = new HashSet<String>();
 		this.timerInterface = timerInterface;
 	}
-	
+
 	/**
-	 * It receives the fitness function values and add them to the list.
+	 * It receives the fitness function values and keeps them if they are among the best ones.
+	 * A message with an empty value is a node which can't be selected:
+	 * it is counted as a voter, but its value is not kept.
+	 * If all the expected voters replied, the collection ends and the timer is cancelled.
 	 * @param message The incoming message.
+	 * @return true if the collection was ongoing when the message arrived, false otherwise.
 	 */
-	public synchronized boolean onMessage(A3Message message){
-		if(collecting)
-			fitnessFunctions.add(new FitnessFunction(message.senderAddress, Integer.valueOf(message.object)));
-		return collecting;
+	public boolean onMessage(A3Message message){
+		return onMessage(message, true);
+	}
+
+	/**
+	 * It receives the fitness function values and keeps them if they are among the best ones.
+	 * @param message The incoming message.
+	 * @param expected true if the sender is one of the expected voters,
+	 * false if its value is kept but it doesn't count towards them (e.g. a node of the group "wait").
+	 * @return true if the collection was ongoing when the message arrived, false otherwise.
+	 */
+	public boolean onMessage(A3Message message, boolean expected){
+		boolean wasCollecting;
+		boolean completed = false;
+
+		synchronized(this){
+			wasCollecting = collecting;
+
+			if(collecting && voters.add(message.senderAddress)){
+
+				if(!message.object.equals(""))
+					offer(new FitnessFunction(message.senderAddress, Integer.valueOf(message.object), arrivals ++));
+
+				if(expected)
+					expectedReplies ++;
+
+				if(expectedVoters > 0 && expectedReplies >= expectedVoters){
+					completed = true;
+					timer.interrupt();
+					complete();
+				}
+			}
+		}
+
+		// I notify the completion outside the lock, as the timer does.
+		if(completed)
+			timerInterface.timerFired(reason);
+		return wasCollecting;
 	}
 
-	/**It clears the fitness function values list and start the timer.
-	 * 
+	/**It clears the fitness function values and start the timer.
+	 * Only the best value is kept and the collection always ends at the timeout.
+	 *
 	 * @param reason The reason of fitness function values collecting.
 	 */
-	public synchronized void startCollectingFitnessFunctions(int reason){
-		fitnessFunctions = new ArrayList<FitnessFunction>();
+	public void startCollectingFitnessFunctions(int reason){
+		startCollectingFitnessFunctions(reason, 1, 0);
+	}
+
+	/**It clears the fitness function values and start the timer, with the default timeout.
+	 *
+	 * @param reason The reason of fitness function values collecting.
+	 * @param numberOfBest The number of best values to keep.
+	 * @param expectedVoters The number of replies after which the collection ends, or 0 if it is unknown.
+	 */
+	public void startCollectingFitnessFunctions(int reason, int numberOfBest, int expectedVoters){
+		startCollectingFitnessFunctions(reason, numberOfBest, expectedVoters, RoundTripEstimator.DEFAULT_TIMEOUT);
+	}
+
+	/**It clears the fitness function values and start the timer.
+	 *
+	 * @param reason The reason of fitness function values collecting.
+	 * @param numberOfBest The number of best values to keep.
+	 * @param expectedVoters The number of replies after which the collection ends, or 0 if it is unknown.
+	 * @param timeout The time after which the collection ends anyway, in milliseconds.
+	 */
+	public synchronized void startCollectingFitnessFunctions(int reason, int numberOfBest, int expectedVoters, int timeout){
+
+		if(timer != null)
+			timer.interrupt();
+
+		this.reason = reason;
+		this.numberOfBest = numberOfBest;
+		this.expectedVoters = expectedVoters;
+		fitnessFunctions = new PriorityQueue<FitnessFunction>(Math.max(1, numberOfBest), new WorstFirstComparator());
+		result = new FitnessFunction[0];
+		voters = new HashSet<String>();
+		expectedReplies = 0;
+		arrivals = 0;
 		collecting = true;
-		new Timer(this, reason).start();
+		timer = new Timer(this, reason, timeout);
+		timer.start();
 	}
-	
-	/**It reorders received fitness function values from the best (higher) to the worst (lower).
+
+	/**It sets the number of replies after which the ongoing collection ends,
+	 * when it is known only after the collection started.
+	 * If enough replies already arrived, the collection ends now.
+	 *
+	 * @param expectedVoters The number of replies after which the collection ends, or 0 if it is unknown.
 	 */
-	private synchronized void reorder(){
-		
-		if(!fitnessFunctions.isEmpty()){
-			ArrayList<FitnessFunction> reorderedFitnessFunctions = new ArrayList<FitnessFunction>();
-			FitnessFunction temp;
-			int j;
-			
-			reorderedFitnessFunctions.add(fitnessFunctions.get(0));
-			
-			for(int i = 1; i < fitnessFunctions.size(); i++){
-				temp = fitnessFunctions.get(i);
-				for(j = 0; j < reorderedFitnessFunctions.size() && 
-						temp.value <= reorderedFitnessFunctions.get(j).value; j++){}
-				
-				reorderedFitnessFunctions.add(j, temp);
+	public void setExpectedVoters(int expectedVoters){
+		boolean completed = false;
+
+		synchronized(this){
+			this.expectedVoters = expectedVoters;
+
+			if(collecting && expectedVoters > 0 && voters.size() >= expectedVoters){
+				completed = true;
+				timer.interrupt();
+				complete();
 			}
-			fitnessFunctions = reorderedFitnessFunctions;
 		}
+		if(completed)
+			timerInterface.timerFired(reason);
+	}
+
+	/**It adds a value to the heap of the best values, if it is better than the worst of them.
+	 *
+	 * @param fitnessFunction The received value.
+	 */
+	private void offer(FitnessFunction fitnessFunction){
+
+		if(fitnessFunctions.size() < numberOfBest)
+			fitnessFunctions.add(fitnessFunction);
+
+		else if(numberOfBest > 0 && fitnessFunction.value > fitnessFunctions.peek().value){
+			fitnessFunctions.poll();
+			fitnessFunctions.add(fitnessFunction);
+		}
+	}
+
+	/**It ends the collection and orders the kept values from the best (higher) to the worst (lower).
+	 */
+	private synchronized void complete(){
+
+		collecting = false;
+		result = new FitnessFunction[fitnessFunctions.size()];
+
+		for(int i = result.length - 1; i >= 0; i--)
+			result[i] = fitnessFunctions.poll();
 	}
-	
+
 	/**Used to get the best results of a fitness function values collecting.
-	 * 
+	 *
 	 * @param numberOfNodes The number of best results requested.
 	 * @return
 	 * The addresses of the selected nodes, from the best (in first position) to the worst (in last position).
 	 * @throws Exception parameter is 0, or no fitness function values are arrived.
 	 */
 	public synchronized String[] getBest(int numberOfNodes) throws Exception{
-		
-		if(numberOfNodes == 0 || fitnessFunctions.isEmpty())
+
+		if(numberOfNodes == 0 || result.length == 0)
 			throw new Exception("No result requested or no fitness function values arrived.");
-		
-		String[] result = new String[numberOfNodes];
-		
-		for(int i = 0; i < fitnessFunctions.size() && i < numberOfNodes; i++)
-			result[i] = fitnessFunctions.get(i).node;
-		
-		return result;
+
+		String[] best = new String[Math.min(numberOfNodes, result.length)];
+
+		for(int i = 0; i < best.length; i++)
+			best[i] = result[i].node;
+
+		return best;
 	}
-	
+
+	/**
+	 * @return true if all the expected voters replied, false if they are unknown or if some of them didn't reply.
+	 */
+	public synchronized boolean hasAllVoters(){
+		return expectedVoters > 0 && expectedReplies >= expectedVoters;
+	}
+
+	/**
+	 * @return true if fitness function collection is ongoing, false otherwise.
+	 */
+	public synchronized boolean isCollecting(){
+		return collecting;
+	}
+
 	@Override
 	public void timerFired(int reason) {
-		// TODO Auto-generated method stub
-		collecting = false;
-		try {
-			reorder();
-		} catch (Exception e) {}
+
+		synchronized(this){
+			// The collection already ended because all the expected voters replied.
+			if(!collecting)
+				return;
+			complete();
+		}
 		timerInterface.timerFired(reason);
 	}
 
@@ -105,14 +254,30 @@ public class FitnessFunctionManager implements TimerInterface {
 	private class FitnessFunction{
 		private String node;
 		private int value;
-		
-		private FitnessFunction(String address, int fitnessFunctionValue){
+		private long arrival;
+
+		private FitnessFunction(String address, int fitnessFunctionValue, long arrivalOrder){
 			node = address;
 			value = fitnessFunctionValue;
+			arrival = arrivalOrder;
 		}
-		
+
 		public String toString(){
 			return node + " " + String.valueOf(value) + ";";
 		}
 	}
-}
\ No newline at end of file
+
+	/**It orders the values from the worst to the best: lower values first and, if equal, the last arrived first.*/
+	private class WorstFirstComparator implements Comparator<FitnessFunction>{
+
+		@Override
+		public int compare(FitnessFunction first, FitnessFunction second) {
+
+			if(first.value != second.value)
+				return first.value < second.value ? -1 : 1;
+			if(first.arrival != second.arrival)
+				return first.arrival > second.arrival ? -1 : 1;
+			return 0;
+		}
+	}
+}
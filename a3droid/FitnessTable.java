@@ -0,0 +1,103 @@
+package a3.a3droid;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+
+/**This class resides on a Service.
+ * It caches the last supervisor fitness function value of each channel of the group,
+ * which the channels send when they join the group, when they reply to an election
+ * and periodically, in heartbeats, if the value changed or if it wasn't sent for a while.
+ * If the values are fresh enough, the Service can elect the supervisor and the deputy locally,
+ * without asking the group for their values.
+ */
+public class FitnessTable {
+
+	/**The period after which a channel sends its value again, even if it didn't change, in milliseconds.*/
+	public static final int REFRESH_PERIOD = 5000;
+
+	/**The period after which a channel checks if its value changed, in milliseconds.*/
+	public static final int CHECK_PERIOD = 1000;
+
+	/**For each channel address, its last value and the time it was received.*/
+	private HashMap<String, Entry> entries;
+
+	public FitnessTable(){
+		entries = new HashMap<String, Entry>();
+	}
+
+	/**It stores the last value of a channel.
+	 *
+	 * @param address The address of the channel.
+	 * @param value The value of its supervisor fitness function.
+	 */
+	public synchronized void update(String address, int value){
+		entries.put(address, new Entry(address, value, System.currentTimeMillis()));
+	}
+
+	/**It removes the value of a channel, because it left the group.
+	 *
+	 * @param address The address of the channel.
+	 */
+	public synchronized void remove(String address){
+		entries.remove(address);
+	}
+
+	/**
+	 * @param maxAge The maximum age of the values to consider, in milliseconds.
+	 * @return The addresses of the channels whose values are not older than "maxAge",
+	 * from the best (higher value) to the worst (lower value).
+	 */
+	public synchronized ArrayList<String> getBest(long maxAge){
+
+		long now = System.currentTimeMillis();
+		ArrayList<Entry> fresh = new ArrayList<Entry>();
+
+		for(Entry entry : entries.values()){
+			if(now - entry.time <= maxAge)
+				fresh.add(entry);
+		}
+
+		Collections.sort(fresh, new Comparator<Entry>() {
+
+			@Override
+			public int compare(Entry first, Entry second) {
+				if(first.value != second.value)
+					return first.value > second.value ? -1 : 1;
+				return first.address.compareTo(second.address);
+			}
+		});
+
+		ArrayList<String> result = new ArrayList<String>();
+		for(Entry entry : fresh)
+			result.add(entry.address);
+		return result;
+	}
+
+	/**
+	 * Creates the string representation of the type FitnessTable.
+	 * The obtained string is like "{address1=value1, address2=value2, ...}".
+	 */
+	@Override
+	public synchronized String toString(){
+		return entries.toString();
+	}
+
+	/**A triple <channel address, supervisor fitness function value, reception time>.*/
+	private class Entry{
+		private String address;
+		private int value;
+		private long time;
+
+		private Entry(String address, int value, long time){
+			this.address = address;
+			this.value = value;
+			this.time = time;
+		}
+
+		public String toString(){
+			return String.valueOf(value);
+		}
+	}
+}
@@ -0,0 +1,198 @@
+package a3.a3droid;
+
+import java.util.ArrayList;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**This class represents the connection of a node to a group.
+ * It is returned by A3Node as soon as the connection starts:
+ * the channel discovers the group and joins it on its own threads,
+ * so the connections to many groups can be ongoing at the same time.
+ * The connection ends when the status of the channel becomes "CONNECTED" or "WAITING",
+ * or if the channel can't be created or is disconnected while connecting.
+ */
+public class GroupConnection implements Future<Boolean> {
+
+	/**The name of the group to connect to.*/
+	private String groupName;
+
+	/**true if the connection ended, false otherwise.*/
+	private boolean done;
+
+	/**true if the status of the channel became "CONNECTED", false otherwise.*/
+	private boolean connected;
+
+	/**The time the connection started, in milliseconds.*/
+	private long start;
+
+	/**The duration of the connection, in milliseconds, or -1 if it didn't end yet.*/
+	private long connectionTime;
+
+	/**true if the application asked for the connection before the channel was created, false otherwise.*/
+	private boolean forApplication;
+
+	/**true if the system asked for the connection before the channel was created, false otherwise.*/
+	private boolean forSystem;
+
+	/**The objects to notify when the connection ends.*/
+	private ArrayList<ConnectionInterface> listeners;
+
+	/**
+	 * @param groupName The name of the group to connect to.
+	 */
+	public GroupConnection(String groupName){
+		this.groupName = groupName;
+		listeners = new ArrayList<ConnectionInterface>();
+		start = System.currentTimeMillis();
+		connectionTime = -1;
+	}
+
+	/**
+	 * @param groupName The name of the group to connect to.
+	 * @param connected true if the status of the channel is "CONNECTED", false otherwise.
+	 * @return A connection which already ended with the specified result.
+	 */
+	public static GroupConnection ended(String groupName, boolean connected){
+		GroupConnection connection = new GroupConnection(groupName);
+		connection.complete(connected);
+		return connection;
+	}
+
+	/**It registers an object to notify when the connection ends.
+	 * If the connection already ended, the object is notified now, on this thread.
+	 *
+	 * @param listener The object to notify.
+	 * @return This connection.
+	 */
+	public GroupConnection addListener(ConnectionInterface listener){
+
+		boolean result;
+
+		synchronized(this){
+			if(!done){
+				listeners.add(listener);
+				return this;
+			}
+			result = connected;
+		}
+		listener.connectionEnded(groupName, result);
+		return this;
+	}
+
+	/**It ends the connection, if it is still ongoing, and notifies the registered objects.
+	 *
+	 * @param connected true if the status of the channel became "CONNECTED", false otherwise.
+	 */
+	public void complete(boolean connected){
+
+		ArrayList<ConnectionInterface> toNotify;
+
+		synchronized(this){
+			if(done)
+				return;
+			done = true;
+			this.connected = connected;
+			connectionTime = System.currentTimeMillis() - start;
+			toNotify = listeners;
+			notifyAll();
+		}
+
+		for(ConnectionInterface listener : toNotify){
+			try{
+				listener.connectionEnded(groupName, connected);
+			}catch(Exception e){}
+		}
+	}
+
+	/**It records that the connection was asked for the application or for the system,
+	 * while the channel didn't exist yet.
+	 *
+	 * @param forApplication true if it was asked for the application, false if it was asked for the system.
+	 */
+	public synchronized void requestUsage(boolean forApplication){
+		if(forApplication)
+			this.forApplication = true;
+		else
+			forSystem = true;
+	}
+
+	public synchronized boolean isForApplication(){
+		return forApplication;
+	}
+
+	public synchronized boolean isForSystem(){
+		return forSystem;
+	}
+
+	/**
+	 * @return true if the connection ended and the status of the channel became "CONNECTED", false otherwise.
+	 */
+	public synchronized boolean isConnected(){
+		return done && connected;
+	}
+
+	public String getGroupName(){
+		return groupName;
+	}
+
+	/**
+	 * @return The duration of the connection, in milliseconds, or -1 if it didn't end yet.
+	 */
+	public synchronized long getConnectionTime(){
+		return connectionTime;
+	}
+
+	/**A connection can't be cancelled: the channel must be disconnected instead.*/
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		return false;
+	}
+
+	@Override
+	public boolean isCancelled() {
+		return false;
+	}
+
+	@Override
+	public synchronized boolean isDone() {
+		return done;
+	}
+
+	/**It waits for the connection to end.
+	 * It must not be called on the threads of the channels, which end the connection.
+	 *
+	 * @return true if the status of the channel became "CONNECTED", false otherwise.
+	 */
+	@Override
+	public synchronized Boolean get() throws InterruptedException {
+		while(!done)
+			wait();
+		return connected;
+	}
+
+	/**It waits for the connection to end, at most for the specified time.
+	 *
+	 * @return true if the status of the channel became "CONNECTED", false otherwise.
+	 * @throws TimeoutException The connection didn't end in time.
+	 */
+	@Override
+	public synchronized Boolean get(long timeout, TimeUnit unit) throws InterruptedException, TimeoutException {
+
+		long end = System.currentTimeMillis() + unit.toMillis(timeout);
+		long remaining;
+
+		while(!done){
+			remaining = end - System.currentTimeMillis();
+			if(remaining <= 0)
+				throw new TimeoutException("Connection to " + groupName + " didn't end in time.");
+			wait(remaining);
+		}
+		return connected;
+	}
+
+	@Override
+	public synchronized String toString(){
+		return groupName + ": " + (done ? connected + " (" + connectionTime + " ms)" : "connecting");
+	}
+}
@@ -56,7 +56,26 @@ public abstract class GroupDescriptor {
 	 * @return It should return the value of an integer fitness function.
 	 */
 	public abstract int getSupervisorFitnessFunction();
-	
+
+	/**To override in order to split and merge the group automatically, depending on its load.
+	 * It is called every time a channel becomes the supervisor of the group,
+	 * so it must return a new instance at every call.
+	 *
+	 * @return The policy which decides when to split or merge the group, or null if the group is never split or merged automatically (default implementation).
+	 */
+	public ScalingPolicy getScalingPolicy(){
+		return null;
+	}
+
+	/**To override in order to weight the followers in the distribution of the tasks (see TaskScheduler).
+	 * A follower receives tasks in proportion to this value.
+	 *
+	 * @return The value of an integer fitness function used to distribute the tasks, which is 1 for all the followers (default implementation).
+	 */
+	public int getTaskFitnessFunction(){
+		return 1;
+	}
+
 	/**
 	 * Create the string representation of the type GroupInfo.
 	 * The obtained string is like "name supervisorRoleId followerRoleId".
@@ -0,0 +1,168 @@
+package a3.a3droid;
+
+import java.util.HashMap;
+
+import org.alljoyn.bus.BusAttachment;
+import org.alljoyn.bus.BusListener;
+import org.alljoyn.bus.Status;
+
+/**This class keeps track of the groups which exist in the system, for the whole node.
+ * It discovers all the names starting with Constants.PREFIX once, when the node is created,
+ * and it keeps receiving their advertisements and their losses from the bus:
+ * in this way, a channel connecting to a known group doesn't need to wait for the discovery timeout.
+ * A group whose discovery timed out is remembered as missing for a short time,
+ * so that the channels connecting to it in the meantime can create it immediately.
+ * AllJoyn only notifies the advertised name and the transport on which it was found,
+ * so the directory can't tell which node hosts the Service of a group.
+ */
+public class GroupDirectory {
+
+	/**The time a group whose discovery timed out is considered missing, in milliseconds.*/
+	public static final int MISSING_TIME = 5000;
+
+	/**The user interface to interact with.*/
+	private UserInterface ui;
+
+	/**The bus attachment used to discover the groups.*/
+	private BusAttachment mBus;
+
+	/**true if the directory receives the advertisements, false if it couldn't start discovering them.*/
+	private boolean watching;
+
+	/**The groups whose name is currently advertised, by group name, with the transport on which it was found.*/
+	private HashMap<String, Short> groups;
+
+	/**The groups considered missing, by group name, with the time until which they are considered missing.*/
+	private HashMap<String, Long> missingGroups;
+
+	/**
+	 * @param ui The user interface to interact with.
+	 */
+	public GroupDirectory(UserInterface ui){
+		this.ui = ui;
+		watching = false;
+		groups = new HashMap<String, Short>();
+		missingGroups = new HashMap<String, Long>();
+	}
+
+	/**It starts discovering the groups.
+	 * If the discovery can't start, the directory never knows any group:
+	 * the channels discover their groups by themselves, as usual.
+	 */
+	public void connect(){
+
+		BusAttachment bus = new BusAttachment(getClass().getPackage().getName(), BusAttachment.RemoteMessage.Receive);
+
+		synchronized(this){
+			mBus = bus;
+		}
+
+		bus.registerBusListener(new BusListener() {
+
+			@Override
+			public void foundAdvertisedName(String name, short transport, String namePrefix) {
+
+				synchronized(GroupDirectory.this){
+					groups.put(name, transport);
+					missingGroups.remove(name);
+				}
+			}
+
+			@Override
+			public void lostAdvertisedName(String name, short transport, String namePrefix){
+
+				synchronized(GroupDirectory.this){
+					groups.remove(name);
+				}
+			}
+		});
+
+		try{
+			Status status = bus.connect();
+			if (Status.OK != status){
+				close();
+				return;
+			}
+
+			status = bus.findAdvertisedName(Constants.PREFIX);
+			if (Status.OK != status){
+				close();
+				return;
+			}
+
+			//The directory could have been closed meanwhile.
+			synchronized(this){
+				watching = mBus == bus;
+			}
+		}catch(Exception e){
+			ui.showOnScreen("Group directory not available: " + e);
+			close();
+		}
+	}
+
+	/**It stops discovering the groups and it disconnects from the bus.
+	 * After it, the directory doesn't know any group anymore.
+	 */
+	public void close(){
+
+		BusAttachment bus;
+
+		synchronized(this){
+			bus = mBus;
+			mBus = null;
+			watching = false;
+			groups.clear();
+			missingGroups.clear();
+		}
+
+		//Disconnecting from the bus can take time, so I don't hold any lock meanwhile.
+		if(bus != null){
+			try{
+				bus.cancelFindAdvertisedName(Constants.PREFIX);
+			}catch(Exception e){}
+			try{
+				bus.disconnect();
+			}catch(Exception e){}
+		}
+	}
+
+	/**
+	 * @param groupName The name of the group, including Constants.PREFIX.
+	 * @return true if the name of the group is currently advertised, false otherwise.
+	 */
+	public synchronized boolean exists(String groupName){
+		return watching && groups.containsKey(groupName);
+	}
+
+	/**
+	 * @param groupName The name of the group, including Constants.PREFIX.
+	 * @return true if the discovery of the group timed out a short time ago and it wasn't found since then, false otherwise.
+	 */
+	public synchronized boolean isMissing(String groupName){
+
+		Long until = missingGroups.get(groupName);
+
+		if(until == null)
+			return false;
+
+		if(until < System.currentTimeMillis()){
+			missingGroups.remove(groupName);
+			return false;
+		}
+		return watching;
+	}
+
+	/**It records that the discovery of a group timed out.
+	 *
+	 * @param groupName The name of the group, including Constants.PREFIX.
+	 */
+	public synchronized void setMissing(String groupName){
+		if(!groups.containsKey(groupName))
+			missingGroups.put(groupName, System.currentTimeMillis() + MISSING_TIME);
+	}
+
+	@Override
+	public synchronized String toString(){
+		return "groups: " + groups.keySet() + " missing: " + missingGroups.keySet();
+	}
+}
@@ -0,0 +1,258 @@
+package a3.a3droid;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**This class represents a query the supervisor broadcast to its group (see A3SupervisorRole.query(int, String, int, int, int)).
+ * Each member of the group, including the supervisor, answers it in A3Role.answerQuery(int, String), or declines it.
+ * The answers are collected as they arrive, like FitnessFunctionManager does with the fitness function values,
+ * until the completion condition is satisfied or the timeout fires:
+ * - FIRST_K: the first k answers arrived;
+ * - QUORUM: more than half of the members of the group answered;
+ * - ALL: all the members of the group answered or declined.
+ * The number of members is the one in the view of the Service when the query was broadcast.
+ * The answers can be waited for with "get()", or used in a callback registered with "whenDone(Runnable)".
+ */
+public class GroupQuery implements Future<LinkedHashMap<String, String>>, TimerInterface {
+
+	/**The query is complete when the first k answers arrived.*/
+	public static final int FIRST_K = 0;
+
+	/**The query is complete when more than half of the members answered.*/
+	public static final int QUORUM = 1;
+
+	/**The query is complete when all the members answered or declined.*/
+	public static final int ALL = 2;
+
+	/**The id of the query, which the replies carry.*/
+	private String id;
+
+	/**The completion condition: FIRST_K, QUORUM or ALL.*/
+	private int completion;
+
+	/**The number of answers after which a FIRST_K query is complete.*/
+	private int k;
+
+	/**The number of members of the group, or 0 if it isn't known yet.*/
+	private int members;
+
+	/**The answers arrived so far, by address of the member, in order of arrival.*/
+	private LinkedHashMap<String, String> answers;
+
+	/**The addresses of the members which answered or declined, in order to count each of them only once.*/
+	private HashSet<String> repliers;
+
+	/**true if the query ended, false otherwise.*/
+	private boolean done;
+
+	/**true if the query ended because its completion condition was satisfied, false otherwise.*/
+	private boolean complete;
+
+	private boolean cancelled;
+
+	/**The actions to execute when the query ends.*/
+	private ArrayList<Runnable> callbacks;
+
+	/**The timer of the query.*/
+	private Timer timer;
+
+	/**
+	 * @param id The id of the query, which the replies carry.
+	 * @param completion The completion condition: FIRST_K, QUORUM or ALL.
+	 * @param k The number of answers after which a FIRST_K query is complete.
+	 */
+	public GroupQuery(String id, int completion, int k){
+		this.id = id;
+		this.completion = completion;
+		this.k = k;
+		members = 0;
+		answers = new LinkedHashMap<String, String>();
+		repliers = new HashSet<String>();
+		callbacks = new ArrayList<Runnable>();
+	}
+
+	/**It starts the timeout of the query.
+	 * @param timeout The time after which the query ends, even if it isn't complete, in milliseconds.
+	 */
+	public synchronized void start(int timeout){
+		if(done)
+			return;
+		timer = new Timer(this, 0, timeout);
+		timer.start();
+	}
+
+	/**It sets the number of members of the group, which the Service told in the broadcast query.
+	 * @param members The number of members.
+	 */
+	public void setMembers(int members){
+		synchronized(this){
+			this.members = members;
+		}
+		checkCompletion();
+	}
+
+	/**It collects a reply.
+	 *
+	 * @param address The address of the member which replied.
+	 * @param answer The answer, or null if the member declined.
+	 */
+	public void onReply(String address, String answer){
+		synchronized(this){
+			if(done || !repliers.add(address))
+				return;
+			if(answer != null)
+				answers.put(address, answer);
+		}
+		if(answer != null)
+			onAnswer(address, answer);
+		checkCompletion();
+	}
+
+	/**To override in order to use each answer as soon as it arrives, before the query ends.
+	 * It is called once per member, by the thread of the supervisor role.
+	 *
+	 * @param address The address of the member which answered.
+	 * @param answer The answer.
+	 */
+	protected void onAnswer(String address, String answer){}
+
+	private void checkCompletion(){
+
+		boolean satisfied;
+
+		synchronized(this){
+			switch(completion){
+			case FIRST_K: satisfied = answers.size() >= k; break;
+			case QUORUM: satisfied = members > 0 && answers.size() > members / 2; break;
+			default: satisfied = members > 0 && repliers.size() >= members; break;
+			}
+		}
+
+		if(satisfied)
+			end(true);
+	}
+
+	private void end(boolean satisfied){
+
+		ArrayList<Runnable> toNotify;
+
+		synchronized(this){
+			if(done)
+				return;
+			done = true;
+			complete = satisfied;
+			if(timer != null)
+				timer.interrupt();
+			toNotify = callbacks;
+			notifyAll();
+		}
+
+		for(Runnable callback : toNotify){
+			try{
+				callback.run();
+			}catch(Exception e){}
+		}
+	}
+
+	/**It registers an action to execute when the query ends, whatever its result.
+	 * If the query already ended, the action is executed now.
+	 *
+	 * @param callback The action to execute.
+	 */
+	public void whenDone(Runnable callback){
+		synchronized(this){
+			if(!done){
+				callbacks.add(callback);
+				return;
+			}
+		}
+		callback.run();
+	}
+
+	public String getId(){
+		return id;
+	}
+
+	/**
+	 * @return true if the query ended because its completion condition was satisfied,
+	 * false if it timed out, if it was cancelled or if it is still ongoing.
+	 */
+	public synchronized boolean isComplete(){
+		return done && complete;
+	}
+
+	/**
+	 * @return A copy of the answers arrived so far, by address of the member, in order of arrival.
+	 */
+	public synchronized LinkedHashMap<String, String> getAnswers(){
+		return new LinkedHashMap<String, String>(answers);
+	}
+
+	/**The timeout fired: the query ends with the answers arrived so far.*/
+	@Override
+	public void timerFired(int reason) {
+		end(false);
+	}
+
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		synchronized(this){
+			if(done)
+				return false;
+			cancelled = true;
+		}
+		end(false);
+		return true;
+	}
+
+	@Override
+	public synchronized boolean isCancelled() {
+		return cancelled;
+	}
+
+	@Override
+	public synchronized boolean isDone() {
+		return done;
+	}
+
+	/**It waits for the query to end.
+	 * It must not be called on the thread of the supervisor role, which collects the replies.
+	 *
+	 * @return The answers, by address of the member, in order of arrival.
+	 */
+	@Override
+	public synchronized LinkedHashMap<String, String> get() throws InterruptedException {
+		while(!done)
+			wait();
+		return getAnswers();
+	}
+
+	/**It waits for the query to end, at most for the specified time.
+	 *
+	 * @return The answers, by address of the member, in order of arrival.
+	 * @throws TimeoutException The query didn't end in time.
+	 */
+	@Override
+	public synchronized LinkedHashMap<String, String> get(long timeout, TimeUnit unit) throws InterruptedException, TimeoutException {
+
+		long end = System.currentTimeMillis() + unit.toMillis(timeout);
+		long remaining;
+
+		while(!done){
+			remaining = end - System.currentTimeMillis();
+			if(remaining <= 0)
+				throw new TimeoutException("Query " + id + " didn't end in time.");
+			wait(remaining);
+		}
+		return getAnswers();
+	}
+
+	@Override
+	public synchronized String toString(){
+		return "query " + id + ": " + answers.size() + " answers, " + repliers.size() + "/" + members + " replies";
+	}
+}
@@ -0,0 +1,210 @@
+package a3.a3droid;
+
+import java.util.ArrayList;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**This class represents a unit of work the supervisor submitted to its group (see A3SupervisorRole.submitTask(int, String)).
+ * A follower executes it in A3Role.executeTask(int, String), and the result can be waited for with "get()",
+ * or used in a callback registered with "whenDone(Runnable)".
+ * The task is dispatched and moved among the followers by TaskScheduler.
+ */
+public class GroupTask implements Future<String> {
+
+	/**The id of the task, which the acknowledgements and the results carry.*/
+	private int id;
+
+	/**The kind of the task.*/
+	private int reason;
+
+	/**The content of the task.*/
+	private String object;
+
+	/**The address of the follower which holds the task, or null if it is not assigned.*/
+	private String assignee;
+
+	/**true if the task was dispatched to its assignee, false if it is still queued on the supervisor.*/
+	private boolean dispatched;
+
+	/**The time the task was last dispatched, in milliseconds.*/
+	private long dispatchTime;
+
+	/**true if the assignee acknowledged the task, false otherwise.*/
+	private boolean acknowledged;
+
+	/**The result of the task, or null if the follower declined it.*/
+	private String result;
+
+	/**true if the task ended, false otherwise.*/
+	private boolean done;
+
+	private boolean cancelled;
+
+	/**The actions to execute when the task ends.*/
+	private ArrayList<Runnable> callbacks;
+
+	/**
+	 * @param id The id of the task.
+	 * @param reason The kind of the task.
+	 * @param object The content of the task.
+	 */
+	public GroupTask(int id, int reason, String object){
+		this.id = id;
+		this.reason = reason;
+		this.object = object;
+		assignee = null;
+		callbacks = new ArrayList<Runnable>();
+	}
+
+	/**
+	 * @return The message "Constants.TASK taskId reason object", which dispatches the task to a follower.
+	 */
+	A3Message getMessage(){
+		return new A3Message(Constants.TASK, id + Constants.A3_SEPARATOR + reason + Constants.A3_SEPARATOR + object);
+	}
+
+	/**It assigns the task to a follower, or it takes it back.
+	 * @param assignee The address of the follower, or null to take the task back.
+	 */
+	synchronized void assign(String assignee){
+		this.assignee = assignee;
+		dispatched = false;
+		acknowledged = false;
+	}
+
+	synchronized void setDispatched(){
+		dispatched = true;
+		dispatchTime = System.currentTimeMillis();
+	}
+
+	synchronized long getDispatchTime(){
+		return dispatchTime;
+	}
+
+	synchronized void setAcknowledged(){
+		acknowledged = true;
+	}
+
+	synchronized boolean isDispatched(){
+		return dispatched;
+	}
+
+	synchronized boolean isAcknowledged(){
+		return acknowledged;
+	}
+
+	public synchronized String getAssignee(){
+		return assignee;
+	}
+
+	public int getId(){
+		return id;
+	}
+
+	public int getReason(){
+		return reason;
+	}
+
+	public String getObject(){
+		return object;
+	}
+
+	/**It ends the task.
+	 * @param result The result of the task, or null if the follower declined it.
+	 * @return true if the task ended now, false if it had already ended.
+	 */
+	boolean end(String result){
+
+		ArrayList<Runnable> toNotify;
+
+		synchronized(this){
+			if(done)
+				return false;
+			done = true;
+			this.result = result;
+			toNotify = callbacks;
+			notifyAll();
+		}
+
+		for(Runnable callback : toNotify){
+			try{
+				callback.run();
+			}catch(Exception e){}
+		}
+		return true;
+	}
+
+	/**It registers an action to execute when the task ends, whatever its result.
+	 * If the task already ended, the action is executed now.
+	 *
+	 * @param callback The action to execute.
+	 */
+	public void whenDone(Runnable callback){
+		synchronized(this){
+			if(!done){
+				callbacks.add(callback);
+				return;
+			}
+		}
+		callback.run();
+	}
+
+	/**A cancelled task isn't dispatched anymore, but a follower which already received it still executes it.*/
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		synchronized(this){
+			if(done)
+				return false;
+			cancelled = true;
+		}
+		return end(null);
+	}
+
+	@Override
+	public synchronized boolean isCancelled() {
+		return cancelled;
+	}
+
+	@Override
+	public synchronized boolean isDone() {
+		return done;
+	}
+
+	/**It waits for the task to end.
+	 * It must not be called on the thread of the supervisor role, which collects the results.
+	 *
+	 * @return The result of the task, or null if the follower declined it or if the task was cancelled.
+	 */
+	@Override
+	public synchronized String get() throws InterruptedException {
+		while(!done)
+			wait();
+		return result;
+	}
+
+	/**It waits for the task to end, at most for the specified time.
+	 *
+	 * @return The result of the task, or null if the follower declined it or if the task was cancelled.
+	 * @throws TimeoutException The task didn't end in time.
+	 */
+	@Override
+	public synchronized String get(long timeout, TimeUnit unit) throws InterruptedException, TimeoutException {
+
+		long end = System.currentTimeMillis() + unit.toMillis(timeout);
+		long remaining;
+
+		while(!done){
+			remaining = end - System.currentTimeMillis();
+			if(remaining <= 0)
+				throw new TimeoutException("Task " + id + " didn't end in time.");
+			wait(remaining);
+		}
+		return result;
+	}
+
+	@Override
+	public synchronized String toString(){
+		return "task " + id + (done ? " done" : assignee == null ? " queued" : " on " + assignee);
+	}
+}
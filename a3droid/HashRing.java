@@ -0,0 +1,171 @@
+package a3.a3droid;
+
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**This class resides on A3Channel and it assigns the keys of the work items to the members of the group by consistent hashing.
+ * Each member is placed on a ring in "VIRTUAL_NODES" points, by hashing its address,
+ * and a key belongs to the member of the first point which follows the hash of the key.
+ * When a member joins or leaves the group, only the keys of its points change owner (about 1/n of them).
+ *
+ * The Service keeps the members of the ring and numbers its changes:
+ * a channel receives all the members when it joins the group,
+ * and then only the deltas, which are broadcast when the view changes.
+ * So the supervisor and the followers compute the same owner for each key, without asking anyone.
+ * A channel which missed a delta asks the Service for all the members again.
+ */
+public class HashRing {
+
+	/**The number of points of each member on the ring.*/
+	public static final int VIRTUAL_NODES = 64;
+
+	/**The members, by the hash of their points.*/
+	private TreeMap<Long, String> ring;
+
+	/**The addresses of the members.*/
+	private TreeSet<String> members;
+
+	/**The number of changes of the ring, as counted by the Service, or -1 if the ring wasn't received yet.*/
+	private int version;
+
+	private MessageDigest digest;
+
+	public HashRing(){
+		ring = new TreeMap<Long, String>();
+		members = new TreeSet<String>();
+		version = -1;
+		try{
+			digest = MessageDigest.getInstance("MD5");
+		}catch(Exception e){
+			digest = null;
+		}
+	}
+
+	/**It replaces all the members of the ring, unless they are older than the ones I have.
+	 *
+	 * @param members The addresses of the members.
+	 * @param version The number of changes of the ring, as counted by the Service.
+	 */
+	public synchronized void setMembers(ArrayList<String> members, int version){
+
+		if(version < this.version)
+			return;
+
+		ring.clear();
+		this.members.clear();
+
+		for(String member : members)
+			add(member);
+		this.version = version;
+	}
+
+	/**It applies a change of the ring.
+	 *
+	 * @param version The number of changes of the ring, including this one.
+	 * @param address The address of the member which joined or left the group.
+	 * @param joined true if the member joined the group, false if it left it.
+	 * @return false if some previous change is missing, so that the ring must be received again, true otherwise.
+	 */
+	public synchronized boolean apply(int version, String address, boolean joined){
+
+		/* The change is already included in the members I received,
+		 * or I didn't receive the members yet, and they will include it.
+		 */
+		if(this.version < 0 || version <= this.version)
+			return true;
+
+		if(version != this.version + 1)
+			return false;
+
+		if(joined)
+			add(address);
+		else
+			remove(address);
+		this.version = version;
+		return true;
+	}
+
+	/**It empties the ring, because the channel left the group: the members of the next group will replace it.*/
+	public synchronized void clear(){
+		ring.clear();
+		members.clear();
+		version = -1;
+	}
+
+	private void add(String address){
+		if(members.add(address)){
+			for(int i = 0; i < VIRTUAL_NODES; i++)
+				ring.put(hash(address + "#" + i), address);
+		}
+	}
+
+	private void remove(String address){
+		if(members.remove(address)){
+			for(int i = 0; i < VIRTUAL_NODES; i++)
+				ring.remove(hash(address + "#" + i));
+		}
+	}
+
+	/**
+	 * @param key The key of a work item.
+	 * @return The address of the member which owns the key, or null if the ring is empty.
+	 */
+	public synchronized String getOwner(String key){
+
+		if(ring.isEmpty())
+			return null;
+
+		Map.Entry<Long, String> point = ring.ceilingEntry(hash(key));
+		if(point == null)
+			point = ring.firstEntry();
+		return point.getValue();
+	}
+
+	/**
+	 * @param address The address of a member.
+	 * @return true if "address" is a member of the ring, false otherwise.
+	 */
+	public synchronized boolean isMember(String address){
+		return members.contains(address);
+	}
+
+	/**
+	 * @return A copy of the addresses of the members, in alphabetical order.
+	 */
+	public synchronized ArrayList<String> getMembers(){
+		return new ArrayList<String>(members);
+	}
+
+	public synchronized int getVersion(){
+		return version;
+	}
+
+	/**
+	 * @return The first 8 bytes of the MD5 digest of "value", or its String hash code if MD5 isn't available.
+	 */
+	private long hash(String value){
+
+		if(digest == null)
+			return value.hashCode();
+
+		byte[] bytes;
+		try{
+			bytes = digest.digest(value.getBytes("UTF-8"));
+		}catch(Exception e){
+			return value.hashCode();
+		}
+
+		long result = 0;
+		for(int i = 0; i < 8; i++)
+			result = (result << 8) | (bytes[i] & 0xff);
+		return result;
+	}
+
+	@Override
+	public synchronized String toString(){
+		return "ring " + version + ": " + members;
+	}
+}
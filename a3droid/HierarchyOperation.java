@@ -0,0 +1,244 @@
+package a3.a3droid;
+
+import java.util.ArrayList;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**This class represents an ongoing hierarchy operation (stack, peers, hierarchy, merge and their reverse operations).
+ * It is returned by A3Node as soon as the operation starts:
+ * the steps of the operation are executed when the connections they need end and when the replies they need arrive,
+ * so no thread is blocked while the operation is ongoing and many operations can be ongoing at the same time.
+ *
+ * Every executed step can register the action that undoes it:
+ * if the operation fails, such actions are executed from the last to the first.
+ * If a remote step doesn't reply in time, it is undone too, because it could have been executed even if its reply was lost.
+ * The result is notified on screen when the operation ends, and it can be waited for with "get()".
+ */
+public class HierarchyOperation implements Future<Boolean>, TimerInterface {
+
+	/**The node which executes the operation.*/
+	private A3Node node;
+
+	/**The string representation of the operation, like "stack(parent, child)".*/
+	private String description;
+
+	/**true if the operation ended, false otherwise.*/
+	private boolean done;
+
+	/**true if the operation ended successfully, false otherwise.*/
+	private boolean successful;
+
+	/**true if the operation was cancelled before it ended, false otherwise.*/
+	private boolean cancelled;
+
+	/**The actions which undo the executed steps, in execution order.*/
+	private ArrayList<Runnable> compensations;
+
+	/**The actions to execute when the operation ends, whatever its result.*/
+	private ArrayList<Runnable> callbacks;
+
+	/**The timer of the remote reply the operation is waiting for, or null if it isn't waiting for any.*/
+	private Timer timer;
+
+	/**The action which undoes the remote step, if its reply doesn't arrive in time.*/
+	private Runnable timeoutCompensation;
+
+	/**The time the operation started, in milliseconds.*/
+	private long start;
+
+	/**
+	 * @param node The node which executes the operation.
+	 * @param description The string representation of the operation, like "stack(parent, child)".
+	 */
+	public HierarchyOperation(A3Node node, String description){
+		this.node = node;
+		this.description = description;
+		compensations = new ArrayList<Runnable>();
+		callbacks = new ArrayList<Runnable>();
+		start = System.currentTimeMillis();
+	}
+
+	/**It registers the action which undoes the last executed step.
+	 *
+	 * @param compensation The action to execute if the operation fails.
+	 */
+	public synchronized void addCompensation(Runnable compensation){
+		if(!done)
+			compensations.add(compensation);
+	}
+
+	/**It registers an action to execute when the operation ends, whatever its result.
+	 * If the operation already ended, the action is executed now.
+	 *
+	 * @param callback The action to execute.
+	 */
+	public void whenDone(Runnable callback){
+
+		synchronized(this){
+			if(!done){
+				callbacks.add(callback);
+				return;
+			}
+		}
+		callback.run();
+	}
+
+	/**It starts waiting for the reply of a remote step.
+	 * If it doesn't arrive within the timeout, the operation fails.
+	 *
+	 * @param timeout The time to wait for the reply, in milliseconds.
+	 * @param compensation The action which undoes the remote step, executed only if the reply doesn't arrive in time.
+	 */
+	public synchronized void awaitReply(int timeout, Runnable compensation){
+		if(done)
+			return;
+		timeoutCompensation = compensation;
+		timer = new Timer(this, 0, timeout);
+		timer.start();
+	}
+
+	/**It stops waiting for the reply of a remote step, because it arrived.
+	 * The remote step won't be undone by the timeout anymore, but only if the operation fails.
+	 */
+	public synchronized void replyArrived(){
+		if(timer != null)
+			timer.interrupt();
+		timer = null;
+		timeoutCompensation = null;
+	}
+
+	/**It ends the operation successfully.*/
+	public void succeed(){
+		complete(true);
+	}
+
+	/**It ends the operation unsuccessfully and undoes the executed steps.*/
+	public void fail(){
+		complete(false);
+	}
+
+	/**It ends the operation, if it is still ongoing.
+	 *
+	 * @param ok true if the operation was successful, false otherwise.
+	 */
+	public void complete(boolean ok){
+
+		ArrayList<Runnable> toUndo, toNotify;
+
+		synchronized(this){
+			if(done)
+				return;
+			done = true;
+			successful = ok;
+
+			if(timer != null)
+				timer.interrupt();
+			toUndo = ok ? new ArrayList<Runnable>() : compensations;
+			toNotify = callbacks;
+			notifyAll();
+		}
+
+		for(int i = toUndo.size() - 1; i >= 0; i--){
+			try{
+				toUndo.get(i).run();
+			}catch(Exception e){}
+		}
+
+		node.showOnScreen(description + ": " + ok + " (" + (System.currentTimeMillis() - start) + " ms).");
+
+		for(Runnable callback : toNotify){
+			try{
+				callback.run();
+			}catch(Exception e){}
+		}
+	}
+
+	/**
+	 * @return true if the operation ended successfully, false if it failed or if it is still ongoing.
+	 */
+	public synchronized boolean isSuccessful(){
+		return done && successful;
+	}
+
+	public String getDescription(){
+		return description;
+	}
+
+	@Override
+	public void timerFired(int reason) {
+
+		synchronized(this){
+			if(done)
+				return;
+			if(timeoutCompensation != null)
+				compensations.add(timeoutCompensation);
+		}
+		fail();
+	}
+
+	/**It ends the operation unsuccessfully and undoes the executed steps, if it is still ongoing.
+	 * A remote step whose reply didn't arrive yet is undone too, as if its timeout fired:
+	 * its reply is dropped when it arrives, because the operation isn't pending anymore.
+	 */
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+
+		synchronized(this){
+			if(done)
+				return false;
+			cancelled = true;
+			if(timeoutCompensation != null)
+				compensations.add(timeoutCompensation);
+		}
+		fail();
+		return true;
+	}
+
+	@Override
+	public synchronized boolean isCancelled() {
+		return cancelled;
+	}
+
+	@Override
+	public synchronized boolean isDone() {
+		return done;
+	}
+
+	/**It waits for the operation to end.
+	 * It must not be called on the threads of the channels, which execute the steps of the operation.
+	 *
+	 * @return true if the operation was successful, false otherwise.
+	 */
+	@Override
+	public synchronized Boolean get() throws InterruptedException {
+		while(!done)
+			wait();
+		return successful;
+	}
+
+	/**It waits for the operation to end, at most for the specified time.
+	 *
+	 * @return true if the operation was successful, false otherwise.
+	 * @throws TimeoutException The operation didn't end in time.
+	 */
+	@Override
+	public synchronized Boolean get(long timeout, TimeUnit unit) throws InterruptedException, TimeoutException {
+
+		long end = System.currentTimeMillis() + unit.toMillis(timeout);
+		long remaining;
+
+		while(!done){
+			remaining = end - System.currentTimeMillis();
+			if(remaining <= 0)
+				throw new TimeoutException(description + " didn't end in time.");
+			wait(remaining);
+		}
+		return successful;
+	}
+
+	@Override
+	public String toString(){
+		return description;
+	}
+}
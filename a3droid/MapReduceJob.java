@@ -0,0 +1,59 @@
+package a3.a3droid;
+
+/**This class represents a map-reduce job the supervisor runs over its group (see A3SupervisorRole.mapReduce(int, String, String, Combiner, int)).
+ * It is a query which all the members of the group, the supervisor included, answer in parallel:
+ * each member maps its local data in the key range in A3Role.map(int, String, String),
+ * and it replies with its partial result, which is an aggregate of the combiner of the job.
+ * The supervisor merges the partial results as they arrive, and it passes each of them to
+ * A3SupervisorRole.receivePartialResult(MapReduceJob, String, String), so the result grows while the job runs.
+ * The job ends when all the members replied, or when its timeout fires.
+ */
+public class MapReduceJob extends GroupQuery {
+
+	/**The role which runs the job.*/
+	private A3SupervisorRole role;
+
+	/**The combiner which merges the partial results.*/
+	private Combiner combiner;
+
+	/**The merge of the partial results arrived so far, or null if none arrived.*/
+	private String result;
+
+	/**
+	 * @param id The id of the job, which the partial results carry.
+	 * @param role The role which runs the job.
+	 * @param combiner The combiner which merges the partial results.
+	 */
+	public MapReduceJob(String id, A3SupervisorRole role, Combiner combiner){
+		super(id, ALL, 0);
+		this.role = role;
+		this.combiner = combiner;
+		result = null;
+	}
+
+	/**It merges a partial result with the ones arrived before it.
+	 * A partial result which the combiner can't merge is passed to the role, but it isn't part of the result.
+	 */
+	@Override
+	protected void onAnswer(String address, String answer){
+
+		synchronized(this){
+			try{
+				result = result == null ? answer : combiner.merge(result, answer);
+			}catch(Exception e){}
+		}
+		role.receivePartialResult(this, address, answer);
+	}
+
+	/**
+	 * @return The merge of the partial results arrived so far, or null if none arrived.
+	 */
+	public synchronized String getResult(){
+		return result;
+	}
+
+	@Override
+	public synchronized String toString(){
+		return super.toString() + ", result " + result;
+	}
+}
@@ -0,0 +1,134 @@
+package a3.a3droid;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+
+/**This class resides on a Service.
+ * It tracks the channels which move from its group to another group, because of a merge or of a split,
+ * and it reports their move as a single timed operation.
+ * If the moving channels are known, the operation ends successfully when all of them left the group,
+ * and unsuccessfully if they didn't leave it within the timeout.
+ * If they aren't known (e.g. in a boolean split, where every follower decides by itself),
+ * the operation ends when no channel left the group for a quiet period.
+ */
+public class Migration implements TimerInterface {
+
+	/**The node which reports the operation.*/
+	private A3Node node;
+
+	/**The operation which represents the move.*/
+	private HierarchyOperation operation;
+
+	/**The addresses of the moving channels which didn't leave the group yet, or null if they aren't known.*/
+	private HashSet<String> migrants;
+
+	/**The number of moving channels which left the group.*/
+	private int moved;
+
+	/**The time without channels leaving after which the move ends, if the moving channels aren't known.*/
+	private int quietPeriod;
+
+	/**The timer which ends the move.*/
+	private Timer timer;
+
+	/**
+	 * @param node The node which reports the operation.
+	 * @param fromGroupName The name of the group the channels leave.
+	 * @param toGroupName The name of the group the channels join.
+	 * @param migrants The addresses of the moving channels, or null if they aren't known.
+	 * @param timeout The time the known channels have to leave the group, in milliseconds.
+	 * @param quietPeriod The time without channels leaving after which the move ends,
+	 * if the moving channels aren't known, in milliseconds.
+	 */
+	public Migration(A3Node node, String fromGroupName, String toGroupName, ArrayList<String> migrants, int timeout, int quietPeriod){
+
+		this.node = node;
+		this.quietPeriod = quietPeriod;
+		moved = 0;
+		operation = new HierarchyOperation(node, "migration(" + fromGroupName + " -> " + toGroupName +
+				(migrants == null ? "" : ", " + migrants.size() + " channels") + ")");
+
+		if(migrants == null){
+			this.migrants = null;
+			restartTimer(quietPeriod);
+		}
+		else if(migrants.isEmpty())
+			operation.succeed();
+		else{
+			this.migrants = new HashSet<String>(migrants);
+			restartTimer(timeout);
+		}
+	}
+
+	/**It records that a channel left the group.
+	 *
+	 * @param address The address of the channel.
+	 */
+	public void onMemberRemoved(String address){
+
+		boolean allMoved = false;
+
+		synchronized(this){
+			if(operation.isDone())
+				return;
+
+			if(migrants == null){
+				moved ++;
+				restartTimer(quietPeriod);
+			}
+			else if(migrants.remove(address)){
+				moved ++;
+				allMoved = migrants.isEmpty();
+				if(allMoved)
+					timer.interrupt();
+			}
+		}
+
+		if(allMoved)
+			operation.succeed();
+	}
+
+	private synchronized void restartTimer(int timeout){
+		if(timer != null)
+			timer.interrupt();
+		timer = new Timer(this, 0, timeout);
+		timer.start();
+	}
+
+	/**
+	 * @return true if the move ended, false otherwise.
+	 */
+	public boolean isDone(){
+		return operation.isDone();
+	}
+
+	public HierarchyOperation getOperation(){
+		return operation;
+	}
+
+	@Override
+	public void timerFired(int reason) {
+
+		int movedChannels;
+		boolean unknownMigrants;
+
+		synchronized(this){
+			//A timer which was restarted meanwhile is stale.
+			if(Thread.currentThread() != timer)
+				return;
+			movedChannels = moved;
+			unknownMigrants = migrants == null;
+		}
+
+		if(operation.isDone())
+			return;
+
+		node.showOnScreen(operation.getDescription() + ": " + movedChannels + " channels moved.");
+
+		//If I don't know the moving channels, the move ended; otherwise some of them didn't leave in time.
+		if(unknownMigrants)
+			operation.succeed();
+		else
+			operation.fail();
+	}
+}
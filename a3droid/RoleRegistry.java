@@ -0,0 +1,112 @@
+package a3.a3droid;
+
+import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**This class contains the roles a node can assume.
+ * Every role is resolved once, when the node is created, into the constructor that creates its instances:
+ * in this way, creating a role or checking if a node can play it doesn't need to look for its class anymore.
+ * The roles which can't be resolved, or which don't have a public constructor without parameters, are discarded and reported.
+ * The registry doesn't change after its creation, so it can be read by many threads without locks.
+ */
+public class RoleRegistry {
+
+	/**The constructors of the roles, by role id.*/
+	private final HashMap<String, Constructor<? extends A3Role>> factories;
+
+	/**The names of the descriptors whose follower role this node can play.*/
+	private final HashSet<String> followerCapabilities;
+
+	/**The names of the descriptors whose supervisor role this node can play.*/
+	private final HashSet<String> supervisorCapabilities;
+
+	/**
+	 * @param roleIds The ids of the roles the node can assume, which are the names of their classes.
+	 * @param groupDescriptors The descriptors of the groups that can be present in the system.
+	 * @param ui The user interface to which report the discarded roles and the invalid descriptors.
+	 */
+	public RoleRegistry(ArrayList<String> roleIds, ArrayList<GroupDescriptor> groupDescriptors, UserInterface ui){
+
+		factories = new HashMap<String, Constructor<? extends A3Role>>();
+		followerCapabilities = new HashSet<String>();
+		supervisorCapabilities = new HashSet<String>();
+
+		for(String roleId : roleIds){
+			try{
+				Class<? extends A3Role> roleClass = Class.forName(roleId).asSubclass(A3Role.class);
+				factories.put(roleId, roleClass.getConstructor());
+			}catch(Exception e){
+				ui.showOnScreen("Role " + roleId + " discarded: " + e);
+			}
+		}
+
+		for(GroupDescriptor descriptor : groupDescriptors){
+
+			if(descriptor.getName() == null || descriptor.getName().equals("")){
+				ui.showOnScreen("Descriptor without name discarded.");
+				continue;
+			}
+
+			if(canCreate(descriptor.getFollowerRoleId(), A3FollowerRole.class))
+				followerCapabilities.add(descriptor.getName());
+			if(canCreate(descriptor.getSupervisorRoleId(), A3SupervisorRole.class))
+				supervisorCapabilities.add(descriptor.getName());
+
+			if(hasRole(descriptor.getFollowerRoleId()) && !followerCapabilities.contains(descriptor.getName()))
+				ui.showOnScreen("Group " + descriptor.getName() + ": " + descriptor.getFollowerRoleId() + " is not a follower role.");
+			if(hasRole(descriptor.getSupervisorRoleId()) && !supervisorCapabilities.contains(descriptor.getName()))
+				ui.showOnScreen("Group " + descriptor.getName() + ": " + descriptor.getSupervisorRoleId() + " is not a supervisor role.");
+		}
+	}
+
+	/**
+	 * @param roleId The id of a role.
+	 * @param kind The class the role must extend.
+	 * @return true if the role exists in this registry and it extends "kind", false otherwise.
+	 */
+	private boolean canCreate(String roleId, Class<? extends A3Role> kind){
+		Constructor<? extends A3Role> factory = roleId == null ? null : factories.get(roleId);
+		return factory != null && kind.isAssignableFrom(factory.getDeclaringClass());
+	}
+
+	/**
+	 * @param roleId The id of a role.
+	 * @return true if the node can assume the role "roleId", false otherwise.
+	 */
+	public boolean hasRole(String roleId){
+		return roleId != null && factories.containsKey(roleId);
+	}
+
+	/**
+	 * @param descriptor The descriptor of a group.
+	 * @return true if the node can play the follower role of the group, false otherwise.
+	 */
+	public boolean canBeFollower(GroupDescriptor descriptor){
+		return followerCapabilities.contains(descriptor.getName());
+	}
+
+	/**
+	 * @param descriptor The descriptor of a group.
+	 * @return true if the node can play the supervisor role of the group, false otherwise.
+	 */
+	public boolean canBeSupervisor(GroupDescriptor descriptor){
+		return supervisorCapabilities.contains(descriptor.getName());
+	}
+
+	/**It creates a new instance of a role.
+	 *
+	 * @param roleId The id of the role.
+	 * @return A new instance of the role "roleId".
+	 * @throws Exception The node can't assume the role "roleId", or its constructor failed.
+	 */
+	public A3Role newRole(String roleId) throws Exception{
+
+		Constructor<? extends A3Role> factory = roleId == null ? null : factories.get(roleId);
+
+		if(factory == null)
+			throw new Exception("NO ROLE WITH NAME " + roleId + ".");
+		return factory.newInstance();
+	}
+}
@@ -0,0 +1,146 @@
+package a3.a3droid;
+
+import java.util.Arrays;
+
+/**This class estimates the timeouts to use in a group from the round trip times measured in it.
+ * It works like TCP retransmission timeout:
+ * it keeps a smoothed round trip time and its variation, and the timeout is
+ * "smoothed round trip time + 4 * variation", but never lower than a percentile of the last samples.
+ * Every time a timeout fires without all the expected replies, the timeout is doubled,
+ * until a new sample arrives.
+ * The timeout is always between a minimum and a maximum value;
+ * before the first sample, it is the default timeout of Timer.
+ */
+public class RoundTripEstimator {
+
+	/**The timeout used before the first sample, which is the default timeout of Timer.*/
+	public static final int DEFAULT_TIMEOUT = 2000;
+
+	/**The number of the last samples used to compute the percentile.*/
+	private static final int WINDOW = 32;
+
+	/**The weight of a new sample in the smoothed round trip time (1/8, as in TCP).*/
+	private static final double ALPHA = 0.125;
+
+	/**The weight of a new sample in the round trip time variation (1/4, as in TCP).*/
+	private static final double BETA = 0.25;
+
+	/**The percentile of the last samples under which the timeout never goes.*/
+	private static final double PERCENTILE = 0.99;
+
+	/**The lowest timeout, in milliseconds.*/
+	private final int minTimeout;
+
+	/**The highest timeout, in milliseconds.*/
+	private final int maxTimeout;
+
+	/**The smoothed round trip time, in milliseconds.*/
+	private double smoothedRoundTripTime;
+
+	/**The round trip time variation, in milliseconds.*/
+	private double roundTripTimeVariation;
+
+	/**The last samples, in a circular buffer.*/
+	private long[] samples;
+
+	/**The total number of samples received.*/
+	private long numberOfSamples;
+
+	/**The multiplier of the timeout, doubled after each timeout without all the replies.*/
+	private int backoff;
+
+	/**
+	 * @param minTimeout The lowest timeout, in milliseconds.
+	 * @param maxTimeout The highest timeout, in milliseconds.
+	 */
+	public RoundTripEstimator(int minTimeout, int maxTimeout){
+		this.minTimeout = minTimeout;
+		this.maxTimeout = maxTimeout;
+		samples = new long[WINDOW];
+		numberOfSamples = 0;
+		backoff = 1;
+	}
+
+	/**It adds a measured round trip time to the estimate and resets the backoff.
+	 *
+	 * @param roundTripTime The measured round trip time, in milliseconds.
+	 */
+	public synchronized void addSample(long roundTripTime){
+
+		if(roundTripTime < 0)
+			return;
+
+		if(numberOfSamples == 0){
+			smoothedRoundTripTime = roundTripTime;
+			roundTripTimeVariation = roundTripTime / 2.0;
+		}
+		else{
+			roundTripTimeVariation = (1 - BETA) * roundTripTimeVariation + BETA * Math.abs(smoothedRoundTripTime - roundTripTime);
+			smoothedRoundTripTime = (1 - ALPHA) * smoothedRoundTripTime + ALPHA * roundTripTime;
+		}
+
+		samples[(int) (numberOfSamples % WINDOW)] = roundTripTime;
+		numberOfSamples ++;
+		backoff = 1;
+	}
+
+	/**It doubles the timeout, because a timeout fired before all the expected replies arrived.*/
+	public synchronized void onTimeout(){
+		if(getTimeout() < maxTimeout)
+			backoff = backoff * 2;
+	}
+
+	/**
+	 * @return The timeout to use, in milliseconds.
+	 */
+	public synchronized int getTimeout(){
+
+		if(numberOfSamples == 0)
+			return Math.min(DEFAULT_TIMEOUT * backoff, maxTimeout);
+
+		double timeout = Math.max(smoothedRoundTripTime + 4 * roundTripTimeVariation, getPercentile(PERCENTILE));
+		timeout = timeout * backoff;
+
+		return (int) Math.max(minTimeout, Math.min(maxTimeout, Math.ceil(timeout)));
+	}
+
+	/**
+	 * @param percentile A value between 0 and 1.
+	 * @return The requested percentile of the last samples, in milliseconds, or 0 if there are no samples.
+	 */
+	public synchronized long getPercentile(double percentile){
+
+		int size = (int) Math.min(numberOfSamples, WINDOW);
+
+		if(size == 0)
+			return 0;
+
+		long[] ordered = Arrays.copyOf(samples, size);
+		Arrays.sort(ordered);
+
+		int index = (int) Math.ceil(percentile * size) - 1;
+		return ordered[Math.max(0, Math.min(size - 1, index))];
+	}
+
+	public synchronized double getSmoothedRoundTripTime() {
+		return smoothedRoundTripTime;
+	}
+
+	public synchronized double getRoundTripTimeVariation() {
+		return roundTripTimeVariation;
+	}
+
+	public synchronized long getNumberOfSamples() {
+		return numberOfSamples;
+	}
+
+	/**
+	 * Creates the string representation of the type RoundTripEstimator.
+	 * The obtained string is like "srtt=12.5ms rttvar=3.1ms p99=20ms timeout=25ms".
+	 */
+	@Override
+	public synchronized String toString(){
+		return "srtt=" + smoothedRoundTripTime + "ms rttvar=" + roundTripTimeVariation +
+				"ms p99=" + getPercentile(PERCENTILE) + "ms timeout=" + getTimeout() + "ms";
+	}
+}
@@ -0,0 +1,546 @@
+package a3.a3droid;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**This class resides on A3Node and it routes the messages addressed to groups this node isn't connected to,
+ * and the messages broadcast to a group and to all the groups below it in the hierarchy.
+ * Two groups are linked if one of them is in the hierarchy of the other (e.g. after a stack or a peers operation)
+ * and a node is connected to both of them: such node relays the messages from a group to the other.
+ * A routed message goes from supervisor to supervisor along the links, using the channels which already exist,
+ * until it reaches the supervisor of the destination group.
+ *
+ * The supervisor of a group knows the links it holds by itself,
+ * and the ones held by the other nodes of its group, which advertise them with "Constants.ROUTE_ADVERTISEMENT".
+ * Each supervisor caches the route to the group a message comes from, which is the group where it entered,
+ * so the replies and the following messages don't need to look for their destination.
+ * A message whose route isn't known is forwarded to all the linked groups it didn't cross yet.
+ *
+ * A subtree broadcast reaches the supervisor of the top group, which broadcasts it in its group
+ * and pushes it once to the supervisor of each child group, through one of the links, and so on.
+ * A group below more than one parent receives the push once per parent, but broadcasts it only once;
+ * a node which belongs to more than one group of the subtree passes the message to its application only once.
+ */
+public class Router {
+
+	/**The maximum number of groups a routed message can cross.*/
+	public static final int MAX_HOPS = 16;
+
+	/**The time a cached route is valid, in milliseconds.*/
+	public static final int ROUTE_TIME = 60000;
+
+	/**The number of routed messages this router remembers, in order to handle each of them once per group.*/
+	private static final int SEEN_MESSAGES = 256;
+
+	/**The node this router belongs to.*/
+	private A3Node node;
+
+	/**For each group supervised by this node, its linked groups held by other nodes, with the addresses of such nodes in the group.*/
+	private HashMap<String, HashMap<String, String>> links;
+
+	/**For each group supervised by this node, the linked groups of "links" which are its children.*/
+	private HashMap<String, HashSet<String>> children;
+
+	/**The cached routes, by "groupName destinationGroupName": the linked group to forward to.*/
+	private HashMap<String, Route> routes;
+
+	/**The ids of the routed and subtree messages handled recently, followed by the group in which they were handled,
+	 * and the ids of the subtree messages passed to the application.*/
+	private LinkedHashMap<String, Boolean> seen;
+
+	private Random random;
+
+	/**
+	 * @param node The node this router belongs to.
+	 */
+	public Router(A3Node node){
+		this.node = node;
+		links = new HashMap<String, HashMap<String, String>>();
+		children = new HashMap<String, HashSet<String>>();
+		routes = new HashMap<String, Route>();
+		seen = new LinkedHashMap<String, Boolean>(){
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest){
+				return size() > SEEN_MESSAGES;
+			}
+		};
+		random = new Random();
+	}
+
+	/**It sends a message to the supervisor of a group.
+	 * If this node isn't connected to such group, the message is routed through the groups this node is connected to.
+	 * The supervisor receives it in "A3SupervisorRole.receiveRoutedMessage(A3Message, String)".
+	 *
+	 * @param message The message to send.
+	 * @param groupName The name of the destination group.
+	 * @return false if this node isn't connected to any group through which to route the message, true otherwise.
+	 */
+	public boolean send(A3Message message, String groupName){
+
+		if(node.isConnected(groupName)){
+			node.sendToSupervisor(message, groupName);
+			return true;
+		}
+
+		/* "Constants.ROUTE id destinationGroupName nextGroupName originAddress path reason object".
+		 * The origin address and the path are set by the supervisor of the group where the message enters.
+		 */
+		String route = newId() + Constants.A3_SEPARATOR + groupName + Constants.A3_SEPARATOR + "-" + Constants.A3_SEPARATOR +
+				"-" + Constants.A3_SEPARATOR + "-" + Constants.A3_SEPARATOR + message.reason + Constants.A3_SEPARATOR + message.object;
+
+		ArrayList<String> entries = node.getConnectedGroups();
+
+		//If a group I supervise knows the route, the message enters there only.
+		for(String entry : entries){
+			if(getRoute(entry, groupName) != null){
+				entries.clear();
+				entries.add(entry);
+				break;
+			}
+		}
+
+		for(String entry : entries)
+			node.sendToSupervisor(new A3Message(Constants.ROUTE, route), entry);
+		return !entries.isEmpty();
+	}
+
+	/**It broadcasts a message to a group and to all the groups below it in the hierarchy.
+	 *
+	 * @param message The message to send.
+	 * @param groupName The name of the group at the top of the subtree.
+	 * @return false if this node isn't connected to any group through which to route the message, true otherwise.
+	 */
+	public boolean sendToSubtree(A3Message message, String groupName){
+
+		//"Constants.SUBTREE_BROADCAST id nextGroupName reason object".
+		A3Message subtreeMessage = new A3Message(Constants.SUBTREE_BROADCAST, newId() + Constants.A3_SEPARATOR + "-" +
+				Constants.A3_SEPARATOR + message.reason + Constants.A3_SEPARATOR + message.object);
+		return send(subtreeMessage, groupName);
+	}
+
+	private synchronized String newId(){
+		return Long.toHexString(random.nextLong());
+	}
+
+	/**It handles the messages about routing.
+	 *
+	 * @param message The message, like "senderAddress Constants.ROUTE ...", "senderAddress Constants.ROUTE_ADVERTISEMENT ...",
+	 * "senderAddress Constants.SUBTREE_BROADCAST ..." or "senderAddress Constants.SUBTREE_MESSAGE ...".
+	 * @param role The role which received the message.
+	 */
+	public void onMessage(A3Message message, A3Role role){
+
+		String groupName = role.getGroupName();
+
+		try{
+			if(message.reason == Constants.ROUTE_ADVERTISEMENT){
+
+				//"senderAddress Constants.ROUTE_ADVERTISEMENT linkedGroupName true|false isChild".
+				String[] advertisement = message.object.split(Constants.A3_SEPARATOR);
+
+				if(role instanceof A3SupervisorRole)
+					setLink(groupName, advertisement[0], message.senderAddress,
+							Boolean.valueOf(advertisement[1]), Boolean.valueOf(advertisement[2]));
+				return;
+			}
+
+			if(message.reason == Constants.SUBTREE_BROADCAST){
+				onSubtreeBroadcast(message.object, role);
+				return;
+			}
+
+			if(message.reason == Constants.SUBTREE_MESSAGE){
+
+				//"senderAddress Constants.SUBTREE_MESSAGE id reason object": I pass it to my application once, whatever the group.
+				String[] subtreeMessage = message.object.split(Constants.A3_SEPARATOR, 3);
+
+				if(firstSeen(subtreeMessage[0])){
+					A3Message applicationMessage = new A3Message(Integer.valueOf(subtreeMessage[1]), subtreeMessage[2]);
+					applicationMessage.senderAddress = message.senderAddress;
+					role.receiveApplicationMessage(applicationMessage);
+				}
+				return;
+			}
+
+			String[] route = message.object.split(Constants.A3_SEPARATOR, 7);
+
+			//I hold a link: I relay the message to the linked group the supervisor chose.
+			if(!route[2].equals("-")){
+				String nextGroupName = route[2];
+				route[2] = "-";
+				if(node.isConnected(nextGroupName))
+					node.sendToSupervisor(new A3Message(Constants.ROUTE, join(route)), nextGroupName);
+				return;
+			}
+
+			if(!(role instanceof A3SupervisorRole))
+				return;
+
+			if(!firstSeen(route[0] + Constants.A3_SEPARATOR + groupName))
+				return;
+
+			if(route[4].equals("-")){
+				//The message enters the hierarchy in my group.
+				route[3] = message.senderAddress;
+				route[4] = groupName;
+			}
+			else{
+				//I learn how to reach the group where the message entered: back to the group it comes from.
+				String[] path = route[4].split(",");
+				learn(groupName, path[0], path[path.length - 1]);
+				route[4] = route[4] + "," + groupName;
+			}
+
+			String originGroupName = route[4].split(",")[0];
+
+			if(route[1].equals(groupName)){
+				A3Message routedMessage = new A3Message(Integer.valueOf(route[5]), route[6]);
+				routedMessage.senderAddress = route[3];
+
+				//A subtree broadcast was routed to the top of its subtree, or an aggregate was routed to a parent group.
+				if(routedMessage.reason == Constants.SUBTREE_BROADCAST)
+					onSubtreeBroadcast(routedMessage.object, role);
+				else if(routedMessage.reason == Constants.AGGREGATE)
+					role.handleMessage(routedMessage);
+				else
+					((A3SupervisorRole) role).receiveRoutedMessage(routedMessage, originGroupName);
+				return;
+			}
+
+			if(route[4].split(",").length > MAX_HOPS){
+				node.showOnScreen("No route from " + groupName + " to " + route[1] + ": too many hops.");
+				return;
+			}
+
+			ArrayList<String> nextGroups = getNextGroups(groupName, route[1], route[4]);
+
+			if(nextGroups.isEmpty())
+				node.showOnScreen("No route from " + groupName + " to " + route[1] + ".");
+
+			for(String nextGroupName : nextGroups)
+				forward(groupName, nextGroupName, route);
+
+		}catch(Exception e){}
+	}
+
+	/**It handles a subtree broadcast, like "id nextGroupName reason object".
+	 * A node which holds a link relays it to the child group the supervisor chose.
+	 * The supervisor broadcasts it in its group, the first time it receives it,
+	 * and it pushes it to each child group: directly, if this node is connected to the child,
+	 * otherwise through the node which advertised the link.
+	 */
+	private void onSubtreeBroadcast(String subtreeBroadcast, A3Role role){
+
+		String groupName = role.getGroupName();
+		String[] fields = subtreeBroadcast.split(Constants.A3_SEPARATOR, 4);
+
+		if(!fields[1].equals("-")){
+			String childGroupName = fields[1];
+			fields[1] = "-";
+			if(node.isConnected(childGroupName))
+				node.sendToSupervisor(new A3Message(Constants.SUBTREE_BROADCAST, join(fields)), childGroupName);
+			return;
+		}
+
+		if(!(role instanceof A3SupervisorRole) || !firstSeen(fields[0] + Constants.A3_SEPARATOR + groupName))
+			return;
+
+		node.sendBroadcast(new A3Message(Constants.SUBTREE_MESSAGE,
+				fields[0] + Constants.A3_SEPARATOR + fields[2] + Constants.A3_SEPARATOR + fields[3]), groupName);
+
+		ArrayList<String> pushed = new ArrayList<String>();
+
+		for(String childGroupName : node.getConnectedGroups()){
+			if(isChild(groupName, childGroupName)){
+				node.sendToSupervisor(new A3Message(Constants.SUBTREE_BROADCAST, join(fields)), childGroupName);
+				pushed.add(childGroupName);
+			}
+		}
+
+		HashMap<String, String> childLinks = new HashMap<String, String>();
+
+		synchronized(this){
+			HashSet<String> groupChildren = children.get(groupName);
+			HashMap<String, String> groupLinks = links.get(groupName);
+			if(groupChildren != null && groupLinks != null){
+				for(String childGroupName : groupChildren){
+					if(groupLinks.containsKey(childGroupName))
+						childLinks.put(childGroupName, groupLinks.get(childGroupName));
+				}
+			}
+		}
+
+		for(String childGroupName : childLinks.keySet()){
+			if(!pushed.contains(childGroupName)){
+				fields[1] = childGroupName;
+				node.sendUnicast(new A3Message(Constants.SUBTREE_BROADCAST, join(fields)), groupName, childLinks.get(childGroupName));
+			}
+		}
+	}
+
+	/**
+	 * @param groupName The name of a group this node is connected to.
+	 * @param otherGroupName The name of another group this node is connected to.
+	 * @return true if "groupName" is in the hierarchy of "otherGroupName", false otherwise.
+	 */
+	private boolean isChild(String groupName, String otherGroupName){
+
+		if(groupName.equals(otherGroupName))
+			return false;
+
+		try{
+			return node.getChannel(otherGroupName).getHierarchy().getHierarchy().contains(groupName);
+		}catch(Exception e){
+			return false;
+		}
+	}
+
+	/**
+	 * @param groupName The group the message is in.
+	 * @param destinationGroupName The destination group of the message.
+	 * @param path The groups the message crossed, separated by ",".
+	 * @return The linked groups to forward the message to: the destination group, if this node is connected to it,
+	 * otherwise the one in the cached route, if any, otherwise all the linked groups the message didn't cross yet.
+	 */
+	private ArrayList<String> getNextGroups(String groupName, String destinationGroupName, String path){
+
+		ArrayList<String> nextGroups = new ArrayList<String>();
+		ArrayList<String> crossed = new ArrayList<String>();
+
+		for(String crossedGroupName : path.split(","))
+			crossed.add(crossedGroupName);
+
+		if(node.isConnected(destinationGroupName)){
+			nextGroups.add(destinationGroupName);
+			return nextGroups;
+		}
+
+		ArrayList<String> linkedGroups = getLinkedGroups(groupName);
+		String cached = getRoute(groupName, destinationGroupName);
+
+		if(cached != null && linkedGroups.contains(cached) && !crossed.contains(cached)){
+			nextGroups.add(cached);
+			return nextGroups;
+		}
+
+		for(String linkedGroupName : linkedGroups){
+			if(!crossed.contains(linkedGroupName))
+				nextGroups.add(linkedGroupName);
+		}
+		return nextGroups;
+	}
+
+	/**It forwards a routed message to a linked group:
+	 * directly to its supervisor, if this node is connected to it,
+	 * otherwise to the node of the group which holds the link.
+	 *
+	 * @param groupName The group the message is in.
+	 * @param nextGroupName The linked group.
+	 * @param route The fields of the message.
+	 */
+	private void forward(String groupName, String nextGroupName, String[] route){
+
+		String[] forwarded = route.clone();
+
+		if(node.isConnected(nextGroupName)){
+			forwarded[2] = "-";
+			node.sendToSupervisor(new A3Message(Constants.ROUTE, join(forwarded)), nextGroupName);
+			return;
+		}
+
+		String address;
+		synchronized(this){
+			HashMap<String, String> groupLinks = links.get(groupName);
+			address = groupLinks == null ? null : groupLinks.get(nextGroupName);
+		}
+
+		if(address != null){
+			forwarded[2] = nextGroupName;
+			node.sendUnicast(new A3Message(Constants.ROUTE, join(forwarded)), groupName, address);
+		}
+	}
+
+	/**
+	 * @param groupName The name of a group supervised by this node.
+	 * @return The groups linked to "groupName", both the ones whose link this node holds and the ones advertised by other nodes.
+	 */
+	private ArrayList<String> getLinkedGroups(String groupName){
+
+		ArrayList<String> linkedGroups = new ArrayList<String>();
+
+		for(String otherGroupName : node.getConnectedGroups()){
+			if(isLinked(groupName, otherGroupName))
+				linkedGroups.add(otherGroupName);
+		}
+
+		synchronized(this){
+			HashMap<String, String> groupLinks = links.get(groupName);
+			if(groupLinks != null){
+				for(String linkedGroupName : groupLinks.keySet()){
+					if(!linkedGroups.contains(linkedGroupName))
+						linkedGroups.add(linkedGroupName);
+				}
+			}
+		}
+		return linkedGroups;
+	}
+
+	/**
+	 * @param groupName The name of a group this node is connected to.
+	 * @param otherGroupName The name of another group this node is connected to.
+	 * @return true if one of the groups is in the hierarchy of the other, false otherwise.
+	 */
+	private boolean isLinked(String groupName, String otherGroupName){
+
+		if(groupName.equals(otherGroupName))
+			return false;
+
+		try{
+			return node.getChannel(groupName).getHierarchy().getHierarchy().contains(otherGroupName) ||
+					node.getChannel(otherGroupName).getHierarchy().getHierarchy().contains(groupName);
+		}catch(Exception e){
+			return false;
+		}
+	}
+
+	/**It advertises the links this node holds with a group to the supervisors of both sides.
+	 * It must be called when this node connects to the group, when the hierarchy of the group changes
+	 * and when the group has a new supervisor.
+	 *
+	 * @param groupName The name of the group.
+	 */
+	public void advertiseLinks(String groupName){
+
+		for(String otherGroupName : node.getConnectedGroups()){
+			if(isLinked(groupName, otherGroupName)){
+				advertise(groupName, otherGroupName, true);
+				advertise(otherGroupName, groupName, true);
+			}
+		}
+	}
+
+	/**It withdraws the link this node held between two groups, if it isn't held anymore.
+	 * It must be called when one of the groups is removed from the hierarchy of the other.
+	 *
+	 * @param groupName The name of a group.
+	 * @param otherGroupName The name of the group which was linked to "groupName".
+	 */
+	public void withdrawLink(String groupName, String otherGroupName){
+		if(isLinked(groupName, otherGroupName))
+			return;
+		advertise(groupName, otherGroupName, false);
+		advertise(otherGroupName, groupName, false);
+	}
+
+	/**It withdraws the links this node held with a group, because it is disconnecting from it.
+	 *
+	 * @param channel The channel to the group, which isn't in the connected channels of the node anymore.
+	 */
+	public void withdrawLinks(A3Channel channel){
+
+		ArrayList<String> parents = channel.getHierarchy().getHierarchy();
+
+		for(String otherGroupName : node.getConnectedGroups()){
+			try{
+				if(parents.contains(otherGroupName) ||
+						node.getChannel(otherGroupName).getHierarchy().getHierarchy().contains(channel.getGroupName()))
+					advertise(otherGroupName, channel.getGroupName(), false);
+			}catch(Exception e){}
+		}
+	}
+
+	/**It tells the supervisor of a group that this node holds (or doesn't hold anymore) the link to another group.
+	 * The supervisor doesn't need it if it is this node.
+	 */
+	private void advertise(String groupName, String linkedGroupName, boolean linked){
+		if(node.isConnected(groupName) && !node.isSupervisor(groupName))
+			node.sendToSupervisor(new A3Message(Constants.ROUTE_ADVERTISEMENT, linkedGroupName + Constants.A3_SEPARATOR + linked +
+					Constants.A3_SEPARATOR + isChild(groupName, linkedGroupName)), groupName);
+	}
+
+	private synchronized void setLink(String groupName, String linkedGroupName, String address, boolean linked, boolean isChild){
+
+		HashMap<String, String> groupLinks = links.get(groupName);
+		HashSet<String> groupChildren = children.get(groupName);
+
+		if(groupLinks == null){
+			groupLinks = new HashMap<String, String>();
+			links.put(groupName, groupLinks);
+			groupChildren = new HashSet<String>();
+			children.put(groupName, groupChildren);
+		}
+
+		if(linked){
+			groupLinks.put(linkedGroupName, address);
+			if(isChild)
+				groupChildren.add(linkedGroupName);
+			else
+				groupChildren.remove(linkedGroupName);
+		}
+		else if(address.equals(groupLinks.get(linkedGroupName))){
+			groupLinks.remove(linkedGroupName);
+			groupChildren.remove(linkedGroupName);
+		}
+	}
+
+	private synchronized void learn(String groupName, String destinationGroupName, String nextGroupName){
+		if(!destinationGroupName.equals(groupName))
+			routes.put(groupName + Constants.A3_SEPARATOR + destinationGroupName, new Route(nextGroupName));
+	}
+
+	/**
+	 * @return The linked group to forward the messages from "groupName" to "destinationGroupName", or null if the route isn't cached.
+	 */
+	private synchronized String getRoute(String groupName, String destinationGroupName){
+
+		String key = groupName + Constants.A3_SEPARATOR + destinationGroupName;
+		Route route = routes.get(key);
+
+		if(route == null)
+			return null;
+		if(System.currentTimeMillis() - route.time > ROUTE_TIME){
+			routes.remove(key);
+			return null;
+		}
+		return route.nextGroupName;
+	}
+
+	/**
+	 * @return true if the message wasn't handled in the group yet, false otherwise.
+	 */
+	private synchronized boolean firstSeen(String key){
+		return seen.put(key, true) == null;
+	}
+
+	private String join(String[] fields){
+
+		String result = fields[0];
+
+		for(int i = 1; i < fields.length; i++)
+			result = result + Constants.A3_SEPARATOR + fields[i];
+		return result;
+	}
+
+	@Override
+	public synchronized String toString(){
+		return "links: " + links + " routes: " + routes.keySet();
+	}
+
+	/**A cached route: the linked group to forward to, and the time it was learned.*/
+	private class Route{
+		private String nextGroupName;
+		private long time;
+
+		private Route(String nextGroupName){
+			this.nextGroupName = nextGroupName;
+			time = System.currentTimeMillis();
+		}
+	}
+}
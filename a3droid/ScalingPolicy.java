@@ -0,0 +1,165 @@
+package a3.a3droid;
+
+/**This class resides on the supervisor of a group whose descriptor defines it (see GroupDescriptor.getScalingPolicy()).
+ * The Service of the group periodically reports its load to the supervisor:
+ * the number of channels in the group, the messages it handles per second and the messages waiting in its queue.
+ * The supervisor adds its own load, which is the fraction of time its role spends handling messages,
+ * and this class decides if the group must be split or merged.
+ *
+ * The group is overloaded if any watched value is over its upper threshold,
+ * and it is underloaded if its size and all the watched values are under their lower thresholds.
+ * The space between the two thresholds and the confirmation of the same condition in consecutive reports
+ * prevent a group near a threshold from being split and merged continuously.
+ * After a split or a merge, no other action is taken for a cooldown period, in which the channels move.
+ * A threshold equal to 0 means that the corresponding value isn't watched.
+ */
+public class ScalingPolicy {
+
+	/**The period of the load reports of the Service, in milliseconds.*/
+	public static final int REPORT_PERIOD = 2000;
+
+	/**The number of consecutive reports in which the group must be overloaded or underloaded before acting.*/
+	public static final int CONFIRMATIONS = 3;
+
+	/**The time after a split or a merge in which no other action is taken, in milliseconds.*/
+	public static final int COOLDOWN = 30000;
+
+	/**No action is needed.*/
+	public static final int NONE = 0;
+
+	/**The group must be split.*/
+	public static final int SPLIT = 1;
+
+	/**The group must be merged into the group it was split from.*/
+	public static final int MERGE = 2;
+
+	/**The number of channels over which the group is overloaded.*/
+	private int maxGroupSize;
+
+	/**The number of channels under which the group can be merged.*/
+	private int minGroupSize;
+
+	/**The messages per second handled by the Service over which the group is overloaded.*/
+	private double maxMessageRate;
+
+	/**The messages per second handled by the Service under which the group can be merged.*/
+	private double minMessageRate;
+
+	/**The number of messages waiting in the queue of the Service over which the group is overloaded.*/
+	private int maxQueueDepth;
+
+	/**The fraction of time the supervisor spends handling messages over which the group is overloaded.*/
+	private double maxSupervisorLoad;
+
+	/**The fraction of time the supervisor spends handling messages under which the group can be merged.*/
+	private double minSupervisorLoad;
+
+	/**The number of consecutive reports in which the group was overloaded.*/
+	private int overloadedReports;
+
+	/**The number of consecutive reports in which the group was underloaded.*/
+	private int underloadedReports;
+
+	/**The time until which no action is taken, in milliseconds.*/
+	private long cooldownEnd;
+
+	/**
+	 * @param maxGroupSize The number of channels over which the group is overloaded.
+	 * @param minGroupSize The number of channels under which the group can be merged.
+	 * @param maxMessageRate The messages per second handled by the Service over which the group is overloaded.
+	 * @param minMessageRate The messages per second handled by the Service under which the group can be merged.
+	 * @param maxQueueDepth The number of messages waiting in the queue of the Service over which the group is overloaded.
+	 * @param maxSupervisorLoad The fraction of time (0 to 1) the supervisor spends handling messages over which the group is overloaded.
+	 * @param minSupervisorLoad The fraction of time (0 to 1) the supervisor spends handling messages under which the group can be merged.
+	 */
+	public ScalingPolicy(int maxGroupSize, int minGroupSize, double maxMessageRate, double minMessageRate,
+			int maxQueueDepth, double maxSupervisorLoad, double minSupervisorLoad){
+		this.maxGroupSize = maxGroupSize;
+		this.minGroupSize = minGroupSize;
+		this.maxMessageRate = maxMessageRate;
+		this.minMessageRate = minMessageRate;
+		this.maxQueueDepth = maxQueueDepth;
+		this.maxSupervisorLoad = maxSupervisorLoad;
+		this.minSupervisorLoad = minSupervisorLoad;
+		overloadedReports = 0;
+		underloadedReports = 0;
+		cooldownEnd = System.currentTimeMillis() + COOLDOWN;
+	}
+
+	/**It evaluates a load report.
+	 *
+	 * @param groupSize The number of channels in the group, including the supervisor.
+	 * @param messageRate The messages per second handled by the Service.
+	 * @param queueDepth The number of messages waiting in the queue of the Service.
+	 * @param supervisorLoad The fraction of time the supervisor spent handling messages.
+	 * @return SPLIT if the group must be split, MERGE if it must be merged, NONE otherwise.
+	 */
+	public synchronized int onLoadReport(int groupSize, double messageRate, int queueDepth, double supervisorLoad){
+
+		long now = System.currentTimeMillis();
+
+		if(now < cooldownEnd){
+			overloadedReports = 0;
+			underloadedReports = 0;
+			return NONE;
+		}
+
+		boolean overloaded = isOver(groupSize, maxGroupSize) || isOver(messageRate, maxMessageRate) ||
+				isOver(queueDepth, maxQueueDepth) || isOver(supervisorLoad, maxSupervisorLoad);
+
+		boolean underloaded = !overloaded && minGroupSize > 0 && groupSize < minGroupSize &&
+				!isOver(messageRate, minMessageRate) && !isOver(supervisorLoad, minSupervisorLoad);
+
+		//The supervisor can't be moved, so a group must have at least two followers to be split.
+		if(overloaded && groupSize > 2)
+			overloadedReports ++;
+		else
+			overloadedReports = 0;
+
+		if(underloaded)
+			underloadedReports ++;
+		else
+			underloadedReports = 0;
+
+		if(overloadedReports >= CONFIRMATIONS){
+			startCooldown(now);
+			return SPLIT;
+		}
+
+		if(underloadedReports >= CONFIRMATIONS){
+			startCooldown(now);
+			return MERGE;
+		}
+
+		return NONE;
+	}
+
+	/**
+	 * @param groupSize The number of channels in the group, including the supervisor.
+	 * @return The number of channels to move to the new group in a split: half of the followers.
+	 */
+	public int getNodesToTransfer(int groupSize){
+		return Math.max(1, (groupSize - 1) / 2);
+	}
+
+	private void startCooldown(long now){
+		overloadedReports = 0;
+		underloadedReports = 0;
+		cooldownEnd = now + COOLDOWN;
+	}
+
+	/**
+	 * @param value The watched value.
+	 * @param threshold The threshold of the value, or 0 if the value isn't watched.
+	 * @return true if the value is watched and it is over its threshold, false otherwise.
+	 */
+	private boolean isOver(double value, double threshold){
+		return threshold > 0 && value > threshold;
+	}
+
+	@Override
+	public synchronized String toString(){
+		return "size " + minGroupSize + "-" + maxGroupSize + ", rate " + minMessageRate + "-" + maxMessageRate +
+				", queue " + maxQueueDepth + ", load " + minSupervisorLoad + "-" + maxSupervisorLoad;
+	}
+}
@@ -2,6 +2,7 @@ package a3.a3droid;
 
 import java.util.ArrayList;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.alljoyn.bus.BusAttachment;
 import org.alljoyn.bus.BusException;
@@ -50,6 +51,20 @@ import android.os.Message;
  * The fact just described is exploited to solve this problem:
  * every time a message is received from a non-in-view channel, a view update is triggered.
  * The channels which answer within a timeout will be part of the new view.
+ * 
+ * Every supervisor is elected in a term, which is incremented at every election.
+ * The supervisor sends its term with the messages to the group, and the Service refuses them if the term is old:
+ * in this way, a supervisor which doesn't know it was replaced (e.g. after a partition) can't act as supervisor.
+ * The elections requested by the channels pass a pre-vote on the Service,
+ * so that a flapping channel can't trigger repeated elections while the supervisor is alive.
+ * 
+ * Besides the group name, every Service advertises an instance name, "groupName._s" followed by a number,
+ * and it discovers the instance names of its group:
+ * the discovery of another instance name means that the group is duplicated.
+ * The two Services exchange their terms and the sizes of their views,
+ * and the one with the greater instance name chooses the survivor: the bigger group, then the one with the higher term.
+ * The other Service stops advertising the group name and tells all its channels to reconnect at once,
+ * so that they join the survivor, which admits them at its pace.
  * @author Francesco
  *
  */
@@ -59,6 +74,16 @@ public class Service extends HandlerThread implements BusObject, A3ServiceInterf
 	private static final int SEND_BROADCAST = 1;
 	private static final int SEND_MULTICAST = 2;
 	private static final int SEND_UNICAST = 3;
+	private static final int ADMIT = 4;
+	private static final int DUPLICATE = 5;
+	private static final int LOAD = 6;
+	private static final int RING = 7;
+
+	/**The maximum number of channels admitted in "ADMISSION_PERIOD".*/
+	public static final int ADMISSION_BURST = 5;
+
+	/**The period in which at most "ADMISSION_BURST" channels are admitted, in milliseconds.*/
+	public static final int ADMISSION_PERIOD = 200;
 
 	/**The connection to the AllJoyn bus.*/
 	private BusAttachment mBus;
@@ -80,6 +105,38 @@ public class Service extends HandlerThread implements BusObject, A3ServiceInterf
 	/**The address of the supervisor channel.*/
 	private String supervisorId;
 
+	/**The election term of the current supervisor.
+	 * It is incremented every time a new supervisor is set and it is sent in Constants.NEW_SUPERVISOR messages:
+	 * the supervisor must send it back when it sends messages to the group,
+	 * so that a supervisor of an older term is recognized as stale and fenced off.
+	 */
+	private int term;
+
+	/**The address of the deputy supervisor channel, or "" if there is none.
+	 * The deputy is pre-elected and it receives a copy of the state of the supervisor role:
+	 * when the supervisor leaves, the deputy is promoted without an election.
+	 */
+	private String deputyId;
+
+	/**The address of the old supervisor, if it is still in the group and it must hand the state of its role off to the new one,
+	 * or "" if no handoff is ongoing.
+	 */
+	private String handoffFrom;
+
+	/**The time at which the supervisor left, in milliseconds, or 0 if no failover is ongoing.*/
+	private long failoverStart;
+
+	/**The duration of the last failover, in milliseconds, or -1 if no failover happened.
+	 * It is measured from the leaving of the supervisor to the confirmation of the new one.
+	 */
+	private long lastFailoverTime;
+
+	/**The last time the supervisor sent a message through this Service, in milliseconds.*/
+	private long lastSupervisorContact;
+
+	/**The time the last supervisor election started, in milliseconds.*/
+	private long lastElection;
+
 	/**The transmitter used to send unicast messages to the channels of the group.*/
 	private A3UnicastTransmitter groupTransmitter;
 
@@ -89,8 +146,114 @@ public class Service extends HandlerThread implements BusObject, A3ServiceInterf
 	/**The object that collects the integer fitness function values for supervisor election.*/
 	private FitnessFunctionManager fitnessFunctionManager;
 
+	/**The last supervisor fitness function values sent by the channels, used to elect without asking the group.*/
+	private FitnessTable fitnessTable;
+
 	private Handler mHandler;
-	private boolean isNotMerging;
+
+	/**The estimate of the round trip times in this group, from which the election timeout is derived.*/
+	private RoundTripEstimator roundTripEstimator;
+
+	/**The time at which the ongoing supervisor election started, in milliseconds.*/
+	private long electionStart;
+
+	/**The session tokens issued to the channels, which let them resume their sessions after short disconnections.*/
+	private SessionTokens sessionTokens;
+
+	/**The number of hierarchy changes broadcast in this group.
+	 * A channel which resumes its session needs the hierarchy only if it didn't receive all of them.
+	 */
+	private int hierarchyVersion;
+
+	/**The join and resume requests of the channels which weren't admitted yet, in arrival order.
+	 * It is used only by the thread of this Service.
+	 */
+	private ArrayList<A3Message> pendingAdmissions;
+
+	/**The number of channels which can be admitted now, refilled at the rate of "ADMISSION_BURST" every "ADMISSION_PERIOD".*/
+	private double admissionCredit;
+
+	/**The last time "admissionCredit" was refilled, in milliseconds.*/
+	private long lastAdmissionRefill;
+
+	/**true if the timer which admits the pending channels is running, false otherwise.*/
+	private boolean admissionTimerActive;
+
+	/**The time the group started to reconverge, because this Service was created or the supervisor left,
+	 * or 0 if the group is not reconverging.
+	 */
+	private long reconvergenceStart;
+
+	/**The time the last channel was admitted, in milliseconds.*/
+	private long lastAdmission;
+
+	/**The time the current supervisor was set, in milliseconds.*/
+	private long supervisorSince;
+
+	/**The number of channels admitted since the group started to reconverge.*/
+	private int reconvergenceAdmissions;
+
+	/**The duration of the last reconvergence, in milliseconds, or -1 if the group never reconverged.*/
+	private long lastReconvergenceTime;
+
+	/**The name which identifies this Service among the duplicates of its group, or null if it isn't advertised.*/
+	private String instanceName;
+
+	/**The transports on which the names of this Service are advertised.*/
+	private short transports;
+
+	/**true if this group is merging into another one, because the supervisor asked it
+	 * or because this Service lost against a duplicate, false otherwise.
+	 */
+	private boolean merging;
+
+	/**The ongoing moves of channels from this group to other groups, because of merges and splits.*/
+	private ArrayList<Migration> migrations;
+
+	/**The number of messages waiting in the queue of this Service.*/
+	private AtomicInteger queuedMessages;
+
+	/**The number of messages this Service handled since its last load report.*/
+	private int handledMessages;
+
+	/**The time of the last load report, in milliseconds.*/
+	private long lastLoadReport;
+
+	/**The address of the supervisor which receives the load reports, or "" if nobody receives them.*/
+	private String loadReportsTo;
+
+	/**The members of the consistent hashing ring of the group (see HashRing), which are the channels in the view.
+	 * It is used only by the thread of this Service, so that the changes are numbered in the order they are broadcast.
+	 */
+	private ArrayList<String> ringMembers;
+
+	/**The number of changes of the ring broadcast in this group.*/
+	private int ringVersion;
+
+	/**The transmitter which keeps a session open to the supervisor, to deliver it the messages of the followers.
+	 * It is used by the thread of this Service, and closed by the thread which disconnects this Service,
+	 * which can be the one of a timer: both hold the lock on it.
+	 */
+	private A3UnicastTransmitter supervisorTransmitter;
+
+	/**true if this Service was disconnected, so that "supervisorTransmitter" must not join a session anymore, false otherwise.
+	 * It is guarded by the lock on "supervisorTransmitter".
+	 */
+	private boolean transmitterClosed;
+
+	/**The address of the supervisor which couldn't be reached point-to-point, or "" if there is none.
+	 * Its messages are signaled to the session until the supervisor changes, without trying to join it again.
+	 */
+	private String unreachableSupervisor;
+
+	/**The number of messages delivered to the supervisor point-to-point.*/
+	private long supervisorMessages;
+
+	/**The number of deliveries saved by not signaling the messages to the supervisor to the whole session.*/
+	private long deliveriesSaved;
+
+	/**The number of bytes saved by not signaling the messages to the supervisor to the whole session.*/
+	private long bytesSaved;
 
 	/**
 	 * @param groupName The name published on the bus, which is the group name.
@@ -105,10 +268,44 @@ public class Service extends HandlerThread implements BusObject, A3ServiceInterf
 		node = a3Channel;
 		view = new View(this);
 		supervisorId = "";
+		term = 0;
+		deputyId = "";
+		handoffFrom = "";
+		failoverStart = 0;
+		lastFailoverTime = -1;
+		lastSupervisorContact = 0;
+		lastElection = 0;
 		groupTransmitter = new A3UnicastTransmitter(groupName);
 		subscriptions = new Subscriptions(this);
 		fitnessFunctionManager = new FitnessFunctionManager(this);
-		isNotMerging = true;
+		fitnessTable = new FitnessTable();
+		sessionTokens = new SessionTokens();
+		hierarchyVersion = 0;
+		pendingAdmissions = new ArrayList<A3Message>();
+		admissionCredit = ADMISSION_BURST;
+		lastAdmissionRefill = System.currentTimeMillis();
+		admissionTimerActive = false;
+		reconvergenceStart = System.currentTimeMillis();
+		lastAdmission = 0;
+		supervisorSince = 0;
+		reconvergenceAdmissions = 0;
+		lastReconvergenceTime = -1;
+		instanceName = null;
+		merging = false;
+		migrations = new ArrayList<Migration>();
+		queuedMessages = new AtomicInteger(0);
+		handledMessages = 0;
+		lastLoadReport = System.currentTimeMillis();
+		loadReportsTo = "";
+		ringMembers = new ArrayList<String>();
+		ringVersion = 0;
+		supervisorTransmitter = new A3UnicastTransmitter(groupName);
+		unreachableSupervisor = "";
+		transmitterClosed = false;
+		supervisorMessages = 0;
+		deliveriesSaved = 0;
+		bytesSaved = 0;
+		roundTripEstimator = node.getRoundTripEstimator(getGroupName());
 		sendToOtherGroup(new A3Message(Constants.NEW_GROUP, getGroupName()), "wait");
 		start();
 	}
@@ -117,7 +314,20 @@ public class Service extends HandlerThread implements BusObject, A3ServiceInterf
 	public void connect(){
 
 		mBus = new BusAttachment(getClass().getPackage().getName(), BusAttachment.RemoteMessage.Receive);
-		mBus.registerBusListener(new BusListener());
+		mBus.registerBusListener(new BusListener(){
+
+			@Override
+			public void foundAdvertisedName(String name, short transport, String namePrefix) {
+
+				//Another Service of my group: the group is duplicated.
+				if(name.startsWith(groupName + "._s") && !name.equals(getInstanceName())){
+					Message msg = obtainMessage();
+					msg.obj = new A3Message(Constants.DUPLICATE_GROUP, name);
+					msg.arg2 = DUPLICATE;
+					sendMessage(msg);
+				}
+			}
+		});
 
 		Status status = mBus.registerBusObject(this, "/SimpleService");
 		if (status != Status.OK) {
@@ -198,13 +408,32 @@ public class Service extends HandlerThread implements BusObject, A3ServiceInterf
 			}
 			else
 				showOnScreen("Group " + getGroupName() + " created.");
+			
+			//The instance name lets the duplicates of this group discover me, and contact me unambiguously.
+			transports = sessionOpts.transports;
+			String name = groupName + "._s" + (mBus.getUniqueName().hashCode() & 0x7fffffff);
+			if(mBus.requestName(name, flag) == Status.OK && mBus.advertiseName(name, transports) == Status.OK){
+				synchronized(this){
+					instanceName = name;
+				}
+				mBus.findAdvertisedName(groupName + "._s");
+			}
 		}
 	}
 
+	private synchronized String getInstanceName(){
+		return instanceName;
+	}
+
 	/**It is used to unpublish the name from the bus.*/
 	public void disconnect(){
 
+		stopLoadReports();
 		try{
+			synchronized(supervisorTransmitter){
+				transmitterClosed = true;
+				supervisorTransmitter.disconnect();
+			}
 			mBus.disconnect();
 			showOnScreen("Group " + getGroupName() + " destroyed.");
 		}
@@ -218,6 +447,7 @@ public class Service extends HandlerThread implements BusObject, A3ServiceInterf
 
 	public void sendMessage(Message msg) {
 		// TODO Auto-generated method stub
+		queuedMessages.incrementAndGet();
 		mHandler.sendMessage(msg);
 	}
 
@@ -234,8 +464,33 @@ public class Service extends HandlerThread implements BusObject, A3ServiceInterf
 
 				A3Message object = (A3Message) msg.obj;
 
+				queuedMessages.decrementAndGet();
+				handledMessages ++;
+
 				switch(msg.arg2){
 
+				//The timer of the load reports fired.
+				case LOAD:
+					reportLoad();
+					break;
+
+				//The view changed.
+				case RING:
+					updateRing(object.object);
+					break;
+
+				//The timer of the pending admissions fired.
+				case ADMIT:
+					if(msg.arg1 == Constants.JOIN_ADMISSION)
+						admissionTimerActive = false;
+					admitPending();
+					break;
+
+				//I discovered another Service of my group: I send it my credentials.
+				case DUPLICATE:
+					sendDuplicateCredentials(object.object, null);
+					break;
+
 				//A node called the sendToSupervisor(A3Message) method.
 				case SEND_TO_SUPERVISOR:
 
@@ -250,9 +505,14 @@ public class Service extends HandlerThread implements BusObject, A3ServiceInterf
 						 * but I need to transmit them broadcast.
 						 */
 					case Constants.MERGE:
-						isNotMerging = false;
+						//"senderAddress Constants.MERGE otherGroupName [otherInstanceName]".
+						synchronized(Service.this){
+							merging = true;
+						}
+						String mergeTarget = object.object.split(Constants.A3_SEPARATOR)[0];
 						sendToOtherGroup(new A3Message(Constants.WAIT_MERGE,
-								object.object + Constants.A3_SEPARATOR + getGroupName()), "wait");
+								mergeTarget + Constants.A3_SEPARATOR + getGroupName()), "wait");
+						startMigration(mergeTarget, view.getMembers());
 					case Constants.ADD_TO_HIERARCHY:
 					case Constants.REMOVE_FROM_HIERARCHY:		
 					case Constants.WAIT_SUPERVISOR_FITNESS_FUNCTION_REQUEST:
@@ -263,31 +523,77 @@ public class Service extends HandlerThread implements BusObject, A3ServiceInterf
 
 					case Constants.SUPERVISOR_FITNESS_FUNCTION_REQUEST:
 						
-						/* If a supervisor election is ongoing, then this message is accepted.
-						 * Else
-						 * 
+						/* "senderAddress Constants.SUPERVISOR_FITNESS_FUNCTION_REQUEST lastKnownTerm [fitnessValue]".
+						 * It is sent by a channel when it joins the session.
+						 * The fitness value is missing if the channel can't be supervisor.
+						 * The channel receives a session token, to resume its session if it loses it.
 						 */
-						if(!fitnessFunctionManager.onMessage(object)){
-							if(supervisorId.equals(""))
-								setSupervisorId(object.senderAddress);
-							else
-								handleUnicastMessage(new A3Message(Constants.NEW_SUPERVISOR, supervisorId), object.senderAddress);
-						}
+					case Constants.RESUME:
+						//"senderAddress Constants.RESUME token lastKnownTerm hierarchyVersion fitnessValue|- [reason1 reason2 ...]".
+						pendingAdmissions.add(object);
+						admitPending();
 						break;
 
 					case Constants.SUPERVISOR_FITNESS_FUNCTION_REPLY:
 						
-						fitnessFunctionManager.onMessage(object);
+						/* Every reply is a sample of the round trip time in this group.
+						 * The replies of the nodes in the group "wait" are candidates, but they aren't members of my view:
+						 * the election doesn't end before all the members replied.
+						 */
+						if(fitnessFunctionManager.onMessage(object, view.isInView(object.senderAddress)))
+							roundTripEstimator.addSample(System.currentTimeMillis() - electionStart);
+						
+						if(!object.object.equals(""))
+							fitnessTable.update(object.senderAddress, Integer.valueOf(object.object));
+						break;
+						
+					case Constants.FITNESS_HEARTBEAT:
+						//"senderAddress Constants.FITNESS_HEARTBEAT integerValue".
+						fitnessTable.update(object.senderAddress, Integer.valueOf(object.object));
+						break;
+						
+					case Constants.LOAD_REPORT:
+						//"senderAddress Constants.LOAD_REPORT": the supervisor has a scaling policy, so it needs my load reports.
+						startLoadReports(object.senderAddress);
+						break;
+						
+					case Constants.RING:
+						//"senderAddress Constants.RING": the channel missed a change of the ring, so it needs all the members.
+						handleUnicastMessage(getRing(), object.senderAddress);
+						break;
+						
+					case Constants.DUPLICATE_GROUP:
+						//"senderAddress Constants.DUPLICATE_GROUP instanceName term viewSize [survivorInstanceName]".
+						resolveDuplicate(object.object);
+						break;
+						
+					case Constants.HANDOFF_STATE:
+						//"senderAddress Constants.HANDOFF_STATE term state": the old supervisor hands the state of its role off.
+						forwardHandoff(object.senderAddress, object.object);
 						break;
 						
 					case Constants.SPLIT:
-						//Random split operation.
+						
+						/* "senderAddress Constants.SPLIT nodesToTransfer [newGroupName [address1 address2 ...]]".
+						 * If the addresses are present, the supervisor already chose the nodes to transfer,
+						 * otherwise this is a random split operation.
+						 * If the name of the new group is present, I create the new group before moving the nodes,
+						 * and I redirect them to it all at once.
+						 */
+						String[] splitRequest = object.object.split(Constants.A3_SEPARATOR);
+						ArrayList<String> selectedNodes = new ArrayList<String>();
+						
+						if(splitRequest.length > 2){
+							for(int i = 2; i < splitRequest.length; i++)
+								selectedNodes.add(splitRequest[i]);
+							redirect(splitRequest[1], selectedNodes);
+							break;
+						}
 
 						A3Message newGroupMessage = new A3Message(Constants.NEW_SPLITTED_GROUP, "");
 						handleBroadcastMessage(newGroupMessage);
 
-						int nodesToTransfer = Integer.valueOf(object.object);
-						ArrayList<String> selectedNodes = new ArrayList<String>();
+						int nodesToTransfer = Integer.valueOf(splitRequest[0]);
 						int numberOfNodes = view.getNumberOfNodes();
 						String[] splittedView = view.getView().substring(1, view.getView().length()-1).split(", ");
 						Random randomNumberGenerator = new Random();
@@ -308,8 +614,12 @@ public class Service extends HandlerThread implements BusObject, A3ServiceInterf
 								selectedNodes.add(tempAddress);
 							}
 
-							for(String address : selectedNodes)
-								handleUnicastMessage(new A3Message(Constants.SPLIT, ""), address);
+							if(splitRequest.length > 1)
+								redirect(splitRequest[1], selectedNodes);
+							else{
+								for(String address : selectedNodes)
+									handleUnicastMessage(new A3Message(Constants.SPLIT, ""), address);
+							}
 						}
 						break;
 
@@ -328,21 +638,42 @@ public class Service extends HandlerThread implements BusObject, A3ServiceInterf
 
 					case Constants.NEW_SUPERVISOR:
 
-						/* This message is sent by a node which was in "wait" group.
+						/* "senderAddress Constants.NEW_SUPERVISOR term".
+						 * It is sent by the new supervisor to confirm it activated its role: the failover ended.
+						 */
+						if(!object.object.equals("")){
+							confirmSupervisor(object.senderAddress, object.object);
+							break;
+						}
+						
+						/* "senderAddress Constants.NEW_SUPERVISOR".
+						 * This message is sent by a node which was in "wait" group.
 						 * The supervisor election procedure identified a "wait" channel as supervisor,
 						 * because the sender was disconnected.
 						 * Now that the sender is connected,
 						 * its address is different from the one of the one of the "wait" channel,
 						 * so it is stored as the address of the new supervisor.
 						 */
-						supervisorId = object.senderAddress;
+						synchronized(Service.this){
+							//The term doesn't change: the new supervisor was elected in the current one.
+							supervisorId = object.senderAddress;
+							lastSupervisorContact = System.currentTimeMillis();
+						}
 						break;
 
 					case Constants.SUPERVISOR_ELECTION:
-						supervisorElection();
+						
+						//The election starts only if the pre-vote grants it.
+						if(preVote(object.senderAddress))
+							supervisorElection();
+						else
+							showOnScreen("Supervisor election requested by " + object.senderAddress + " rejected.");
 						break;
 						
 					default:
+						//If I can't reach the supervisor point-to-point, I signal the message to the whole session.
+						if(sendToSupervisorRole(object))
+							break;
 						try {
 							if (txInterface != null) {
 								txInterface.SupervisorReceive(object);
@@ -362,6 +693,34 @@ public class Service extends HandlerThread implements BusObject, A3ServiceInterf
 						handleBroadcastMessage(newGroupMessage);
 					}
 					
+					/* The supervisor doesn't know the view, so I tell it how many followers will reply:
+					 * in this way, it can stop collecting values as soon as all of them replied.
+					 */
+					if(reason == Constants.INTEGER_SPLIT_FITNESS_FUNCTION)
+						object.object = String.valueOf(view.getNumberOfNodes() - 1);
+					
+					/* "Constants.QUERY queryId numberOfMembers reason object" or "Constants.MAP_REDUCE jobId numberOfMembers mapFunction firstKey lastKey":
+					 * all the members reply, the supervisor too.
+					 */
+					if(reason == Constants.QUERY || reason == Constants.MAP_REDUCE){
+						String[] query = object.object.split(Constants.A3_SEPARATOR, 3);
+						object.object = query[0] + Constants.A3_SEPARATOR + view.getNumberOfNodes() + Constants.A3_SEPARATOR + query[2];
+					}
+					
+					/* "Constants.BOOLEAN_SPLIT_FITNESS_FUNCTION newGroupName": I create the new group before the followers choose,
+					 * and I tell them its instance name, so that the ones which move join it directly.
+					 */
+					if(reason == Constants.BOOLEAN_SPLIT_FITNESS_FUNCTION && !object.object.equals("")){
+						String newGroupName = object.object.split(Constants.A3_SEPARATOR)[0];
+						object.object = getRedirection(newGroupName, createGroup(newGroupName));
+						startMigration(newGroupName, null);
+					}
+					
+					//"Constants.MERGE otherGroupName [otherInstanceName]", sent by the supervisor: all the channels move.
+					if(reason == Constants.MERGE)
+						startMigration(object.object.split(Constants.A3_SEPARATOR)[0], view.getMembers());
+
+					
 					try{
 
 						handleBroadcastMessage(object);
@@ -416,6 +775,7 @@ public class Service extends HandlerThread implements BusObject, A3ServiceInterf
 			case Constants.WAIT_SUPERVISOR_FITNESS_FUNCTION_REQUEST:
 			case Constants.WAIT_NEW_SUPERVISOR:
 			case Constants.WAIT_MERGE:
+			case Constants.DUPLICATE_GROUP:
 				isInView = true;
 				Message msg = obtainMessage();
 				msg.obj = message;
@@ -450,6 +810,7 @@ public class Service extends HandlerThread implements BusObject, A3ServiceInterf
 				
 			case Constants.WAIT_SUPERVISOR_FITNESS_FUNCTION_REQUEST:
 			case Constants.WAIT_NEW_SUPERVISOR:
+			case Constants.DUPLICATE_GROUP:
 				isInView = true;
 				msg = obtainMessage();
 				msg.obj = message;
@@ -472,15 +833,11 @@ public class Service extends HandlerThread implements BusObject, A3ServiceInterf
 	}
 
 	@Override
-	@BusMethod(signature = "(sis)", replySignature = "b")
-	public boolean sendBroadcast(A3Message message) {
+	@BusMethod(signature = "(sis)i", replySignature = "b")
+	public boolean sendBroadcast(A3Message message, int term) {
 		// TODO Auto-generated method stub
 
-		boolean isSupervisor;
-
-		synchronized(supervisorId){
-			isSupervisor = message.senderAddress.equals(supervisorId);
-		}
+		boolean isSupervisor = isCurrentSupervisor(message.senderAddress, term);
 
 		if(isSupervisor){
 
@@ -493,15 +850,11 @@ public class Service extends HandlerThread implements BusObject, A3ServiceInterf
 	}
 
 	@Override
-	@BusMethod(signature = "(sis)", replySignature = "b")
-	public boolean sendMulticast(A3Message message) {
+	@BusMethod(signature = "(sis)i", replySignature = "b")
+	public boolean sendMulticast(A3Message message, int term) {
 		// TODO Auto-generated method stub
 
-		boolean isSupervisor;
-
-		synchronized(supervisorId){
-			isSupervisor = message.senderAddress.equals(supervisorId);
-		}
+		boolean isSupervisor = isCurrentSupervisor(message.senderAddress, term);
 
 		if(isSupervisor){
 
@@ -514,15 +867,11 @@ public class Service extends HandlerThread implements BusObject, A3ServiceInterf
 	}
 
 	@Override
-	@BusMethod(signature = "(sis)s", replySignature = "b")
-	public boolean sendUnicast(A3Message message, String receiverAddress) {
+	@BusMethod(signature = "(sis)si", replySignature = "b")
+	public boolean sendUnicast(A3Message message, String receiverAddress, int term) {
 		// TODO Auto-generated method stub
 
-		boolean isSupervisor = false;
-
-		synchronized(supervisorId){
-			isSupervisor = message.senderAddress.equals(supervisorId);
-		}
+		boolean isSupervisor = isCurrentSupervisor(message.senderAddress, term);
 
 		if(isSupervisor){
 			/*Only in this way I can correctly pass the receiver address to the other thread
@@ -560,6 +909,7 @@ public class Service extends HandlerThread implements BusObject, A3ServiceInterf
 		/* The receiver knows that it received the message from the supervisor,
 		 * then the sender address is not useful and I don't send it.
 		 */
+		countHierarchyChange(messageToBroadcast.reason);
 		try {
 			if (txInterface != null) {
 				txInterface.ReceiveBroadcast(messageToBroadcast);
@@ -586,6 +936,69 @@ public class Service extends HandlerThread implements BusObject, A3ServiceInterf
 		} catch (Exception e) {}
 	}
 
+	/**
+	 * It delivers a message of a follower to the supervisor only, through a session kept open to its UnicastReceiver.
+	 * The SupervisorReceive signal reaches all the channels of the session, but only the supervisor uses it:
+	 * delivering the message point-to-point saves a delivery for every other channel in the view.
+	 * Joining the session blocks my thread, so if the supervisor can't be reached
+	 * its messages are signaled to the session until the supervisor changes.
+	 * If the channel refuses the message because it isn't the supervisor yet, the session is kept for the next messages.
+	 * @param message The message to deliver.
+	 * @return true if the supervisor received the message, false if it must be signaled to the session.
+	 */
+	private boolean sendToSupervisorRole(A3Message message){
+
+		String supervisor = getSupervisorId();
+
+		if(supervisor.equals("") || supervisor.equals("?") || supervisor.equals(unreachableSupervisor))
+			return false;
+
+		//After this Service was disconnected, the transmitter must not join a session again.
+		synchronized(supervisorTransmitter){
+			if(transmitterClosed)
+				return false;
+			
+			if(!supervisorTransmitter.sendToSupervisorRole(message, groupName + "._" + supervisor.hashCode())){
+				if(!supervisorTransmitter.isConnected()){
+					supervisorTransmitter.disconnect();
+					unreachableSupervisor = supervisor;
+				}
+				return false;
+			}
+		}
+
+		//The size of a message is estimated as the size of its strings and of its reason.
+		int others = Math.max(view.getNumberOfNodes() - 1, 0);
+		synchronized(this){
+			supervisorMessages ++;
+			deliveriesSaved = deliveriesSaved + others;
+			bytesSaved = bytesSaved + (long) others * ((message.senderAddress == null ? 0 : message.senderAddress.length()) +
+					(message.object == null ? 0 : message.object.length()) + 4);
+		}
+		return true;
+	}
+
+	/**
+	 * @return The number of messages delivered to the supervisor point-to-point.
+	 */
+	public synchronized long getSupervisorMessages(){
+		return supervisorMessages;
+	}
+
+	/**
+	 * @return The number of deliveries to the channels which aren't the supervisor saved by delivering its messages point-to-point.
+	 */
+	public synchronized long getDeliveriesSaved(){
+		return deliveriesSaved;
+	}
+
+	/**
+	 * @return The estimated number of bytes saved by delivering the messages of the supervisor point-to-point.
+	 */
+	public synchronized long getBytesSaved(){
+		return bytesSaved;
+	}
+
 	private void sendToOtherGroup(A3Message message, String groupName) {
 		try{
 			groupTransmitter.sendUnicast(message, Constants.PREFIX + groupName, true);
@@ -593,11 +1006,696 @@ public class Service extends HandlerThread implements BusObject, A3ServiceInterf
 
 	}
 
+	/**
+	 * It admits the pending channels, at most "ADMISSION_BURST" every "ADMISSION_PERIOD".
+	 * When a Service fails, all the channels of the group join the new one at about the same time:
+	 * admitting them at a steady rate keeps the Service responsive and spreads the announcements they receive.
+	 * The channels which can't be admitted now are admitted when the timer fires.
+	 * The timer also keeps running while the group is reconverging, to detect when it reconverged.
+	 */
+	private void admitPending(){
+
+		long now = System.currentTimeMillis();
+
+		admissionCredit = Math.min(ADMISSION_BURST,
+				admissionCredit + (now - lastAdmissionRefill) * (double) ADMISSION_BURST / ADMISSION_PERIOD);
+		lastAdmissionRefill = now;
+
+		while(admissionCredit >= 1 && !pendingAdmissions.isEmpty()){
+			A3Message request = pendingAdmissions.remove(0);
+			admissionCredit --;
+
+			try{
+				if(request.reason == Constants.RESUME)
+					resumeSession(request);
+				else{
+					String[] splittedRequest = request.object.split(Constants.A3_SEPARATOR);
+					admit(request.senderAddress, splittedRequest[0], splittedRequest.length > 1 ? splittedRequest[1] : null);
+					sendSessionToken(request.senderAddress, false);
+				}
+			}catch(Exception e){}
+
+			synchronized(this){
+				lastAdmission = now;
+				reconvergenceAdmissions ++;
+			}
+		}
+
+		if(pendingAdmissions.isEmpty())
+			checkReconvergence(now);
+
+		if(!admissionTimerActive && (!pendingAdmissions.isEmpty() || isReconverging())){
+			admissionTimerActive = true;
+			new Timer(this, Constants.JOIN_ADMISSION,
+					pendingAdmissions.isEmpty() ? getQuietPeriod() : ADMISSION_PERIOD).start();
+		}
+	}
+
+	/**It starts sending the load reports to the supervisor, if it isn't already receiving them.
+	 * The reports stop when the supervisor changes or when this Service is destroyed.
+	 * @param address The address of the supervisor.
+	 */
+	private void startLoadReports(String address){
+
+		synchronized(this){
+			if(!address.equals(supervisorId) || address.equals(loadReportsTo))
+				return;
+			boolean reporting = !loadReportsTo.equals("");
+			loadReportsTo = address;
+			if(reporting)
+				return;
+		}
+
+		new Timer(this, Constants.LOAD_REPORT, ScalingPolicy.REPORT_PERIOD).start();
+	}
+
+	private synchronized void stopLoadReports(){
+		loadReportsTo = "";
+	}
+
+	/**It sends the load of this Service to the supervisor, and it schedules the next report.
+	 * The report is like "Constants.LOAD_REPORT groupSize messageRate queueDepth":
+	 * the rate is the number of messages handled per second since the last report,
+	 * and the queue depth includes the channels waiting to be admitted.
+	 */
+	private void reportLoad(){
+
+		String address;
+		long now = System.currentTimeMillis();
+
+		synchronized(this){
+			if(loadReportsTo.equals("") || !loadReportsTo.equals(supervisorId)){
+				loadReportsTo = "";
+				return;
+			}
+			address = loadReportsTo;
+		}
+
+		double messageRate = handledMessages * 1000.0 / Math.max(now - lastLoadReport, 1);
+		handledMessages = 0;
+		lastLoadReport = now;
+
+		handleUnicastMessage(new A3Message(Constants.LOAD_REPORT, view.getNumberOfNodes() + Constants.A3_SEPARATOR +
+				messageRate + Constants.A3_SEPARATOR + (queuedMessages.get() + pendingAdmissions.size())), address);
+
+		new Timer(this, Constants.LOAD_REPORT, ScalingPolicy.REPORT_PERIOD).start();
+	}
+
+	/**
+	 * @return The time without admissions after which the group is considered reconverged, in milliseconds.
+	 */
+	private int getQuietPeriod(){
+		return 2 * roundTripEstimator.getTimeout();
+	}
+
+	/**It starts measuring how long the group takes to reconverge.*/
+	private synchronized void startReconvergence(){
+		if(reconvergenceStart == 0){
+			reconvergenceStart = System.currentTimeMillis();
+			reconvergenceAdmissions = 0;
+		}
+	}
+
+	private synchronized boolean isReconverging(){
+		return reconvergenceStart != 0;
+	}
+
+	/**
+	 * It ends the measurement of the reconvergence, if the group reconverged:
+	 * the group has a supervisor, and nothing changed for a quiet period.
+	 * The reconvergence ends with the last admission or with the setting of the supervisor, whichever is later.
+	 * @param now The current time, in milliseconds.
+	 */
+	private synchronized void checkReconvergence(long now){
+
+		if(reconvergenceStart == 0 || supervisorId.equals("") || supervisorId.equals("?"))
+			return;
+
+		long end = Math.max(lastAdmission, supervisorSince);
+		if(now - end < getQuietPeriod())
+			return;
+
+		lastReconvergenceTime = Math.max(end - reconvergenceStart, 0);
+		reconvergenceStart = 0;
+		showOnScreen("Reconverged: " + reconvergenceAdmissions + " channels admitted in " + lastReconvergenceTime + " ms.");
+	}
+
+	/**
+	 * @return The duration of the last reconvergence, in milliseconds, or -1 if the group never reconverged.
+	 * It is the time from the creation of this Service, or from the leaving of the supervisor,
+	 * to the admission of the last channel which joined meanwhile, or to the setting of the new supervisor if it is later.
+	 */
+	public synchronized long getLastReconvergenceTime(){
+		return lastReconvergenceTime;
+	}
+
+	/**
+	 * It lets a channel which joined the session know the supervisor and the deputy.
+	 * The channel may know a term higher than mine, if I have just been created:
+	 * my terms must always be higher than the ones the channels know.
+	 * 
+	 * If a supervisor election is ongoing, then the channel doesn't vote,
+	 * and it will receive the result of the election.
+	 * Else I tell the channel who is the supervisor, or it becomes the supervisor if there is none.
+	 * If the group has no deputy and the channel can be supervisor, it becomes the deputy.
+	 * @param address The address of the channel.
+	 * @param knownTerm The string representation of the last term the channel knows.
+	 * @param fitness The string representation of the supervisor fitness function value of the channel,
+	 * or null if it can't be supervisor.
+	 */
+	private void admit(String address, String knownTerm, String fitness){
+
+		boolean newTerm = observeTerm(knownTerm);
+		
+		if(fitness != null)
+			fitnessTable.update(address, Integer.valueOf(fitness));
+		
+		if(fitnessFunctionManager.isCollecting()){
+			A3Message abstention = new A3Message(Constants.SUPERVISOR_FITNESS_FUNCTION_REPLY, "");
+			abstention.senderAddress = address;
+			fitnessFunctionManager.onMessage(abstention);
+		}
+		else{
+			if(supervisorId.equals(""))
+				setSupervisorId(address);
+			else if(newTerm)
+				announceSupervisor();
+			else
+				handleUnicastMessage(new A3Message(Constants.NEW_SUPERVISOR, getSupervisorAnnouncement()), address);
+			
+			if(fitness != null && getDeputyId().equals("") && !address.equals(getSupervisorId()))
+				setDeputyId(address);
+			else if(!getDeputyId().equals(""))
+				handleUnicastMessage(new A3Message(Constants.NEW_DEPUTY, getDeputyAnnouncement()), address);
+		}
+	}
+
+	/**
+	 * It lets a channel resume its session after a short disconnection, in one round trip.
+	 * The request replaces the handshake of a channel which joins the session:
+	 * it carries the subscriptions of the channel, its last known term, its fitness function value
+	 * and the number of hierarchy changes it received.
+	 * If the token is valid, the state left by the channel is replaced by the one in the request,
+	 * and the channel doesn't need to ask the supervisor for the hierarchy if it didn't miss any change.
+	 * If the token isn't valid, the channel is admitted as a new one, and it asks for the hierarchy.
+	 * @param object The message "senderAddress Constants.RESUME token lastKnownTerm hierarchyVersion fitnessValue|- [reason1 reason2 ...]".
+	 */
+	private void resumeSession(A3Message object){
+
+		String[] request = object.object.split(Constants.A3_SEPARATOR);
+		String address = object.senderAddress;
+		String oldAddress = sessionTokens.take(request[0]);
+
+		if(oldAddress != null && !oldAddress.equals(address))
+			fitnessTable.remove(oldAddress);
+
+		//The subscriptions in the request are the current ones of the channel.
+		if(oldAddress != null)
+			subscriptions.cancelSubscriptions(oldAddress);
+		subscriptions.cancelSubscriptions(address);
+
+		String channelSubscriptions = "";
+		for(int i = 4; i < request.length; i++)
+			channelSubscriptions = channelSubscriptions + (i == 4 ? "" : Constants.A3_SEPARATOR) + request[i];
+
+		A3Message subscription = new A3Message(Constants.SUBSCRIPTION, channelSubscriptions);
+		subscription.senderAddress = address;
+		subscriptions.onMessage(subscription);
+
+		admit(address, request[1], request[3].equals("-") ? null : request[3]);
+
+		boolean hierarchyIsFresh;
+		synchronized(this){
+			hierarchyIsFresh = oldAddress != null && String.valueOf(hierarchyVersion).equals(request[2]);
+		}
+		sendSessionToken(address, hierarchyIsFresh);
+		showOnScreen("Session of " + address + (oldAddress != null ? " resumed." : " not resumed: token not valid."));
+	}
+
+	/**
+	 * It issues a new session token to a channel.
+	 * @param address The address of the channel.
+	 * @param hierarchyIsFresh true if the channel is resuming its session and its hierarchy is up to date, false otherwise.
+	 */
+	private void sendSessionToken(String address, boolean hierarchyIsFresh){
+
+		String token = sessionTokens.issue(address);
+		int version;
+
+		synchronized(this){
+			version = hierarchyVersion;
+		}
+		//"Constants.SESSION_TOKEN token hierarchyVersion hierarchyIsFresh [instanceName]".
+		String session = token + Constants.A3_SEPARATOR + version + Constants.A3_SEPARATOR + hierarchyIsFresh;
+		if(getInstanceName() != null)
+			session = session + Constants.A3_SEPARATOR + getInstanceName();
+		handleUnicastMessage(new A3Message(Constants.SESSION_TOKEN, session), address);
+		
+		//The channel joined the group or it resumed its session: it may have missed some changes of the ring.
+		handleUnicastMessage(getRing(), address);
+	}
+
+	/**
+	 * It is called by the View when a channel joins the group.
+	 * @param memberName The address of the channel which joined the group.
+	 */
+	public void onMemberAdded(String memberName){
+		postRingChange("+" + memberName);
+	}
+
+	/**
+	 * It makes the thread of this Service apply a change of the view to the ring.
+	 * @param change "+address" if the channel "address" joined the group, "-address" if it left it.
+	 */
+	private void postRingChange(String change){
+		Message msg = obtainMessage();
+		msg.obj = new A3Message(Constants.RING_DELTA, change);
+		msg.arg2 = RING;
+		sendMessage(msg);
+	}
+
+	/**
+	 * It applies a change of the view to the ring, and it broadcasts it to the group,
+	 * so that every channel moves only the keys of the channel which joined or left.
+	 * The message is like "Constants.RING_DELTA ringVersion +address|-address".
+	 * @param change "+address" if the channel "address" joined the group, "-address" if it left it.
+	 */
+	private void updateRing(String change){
+
+		String address = change.substring(1);
+		boolean joined = change.startsWith("+");
+
+		if(joined == ringMembers.contains(address))
+			return;
+
+		if(joined)
+			ringMembers.add(address);
+		else
+			ringMembers.remove(address);
+		ringVersion ++;
+
+		handleBroadcastMessage(new A3Message(Constants.RING_DELTA, ringVersion + Constants.A3_SEPARATOR + change));
+	}
+
+	/**
+	 * @return The message "Constants.RING ringVersion member1 member2 ...", with all the members of the ring.
+	 */
+	private A3Message getRing(){
+
+		String ring = String.valueOf(ringVersion);
+		for(String address : ringMembers)
+			ring = ring + Constants.A3_SEPARATOR + address;
+		return new A3Message(Constants.RING, ring);
+	}
+
+	/**
+	 * It counts the broadcast messages which change the hierarchy of the channels.
+	 * @param reason The reason of a broadcast message.
+	 */
+	private synchronized void countHierarchyChange(int reason){
+		if(reason == Constants.ADD_TO_HIERARCHY || reason == Constants.REMOVE_FROM_HIERARCHY || reason == Constants.NEW_SPLITTED_GROUP ||
+				reason == Constants.BOOLEAN_SPLIT_FITNESS_FUNCTION || reason == Constants.INTEGER_SPLIT_FITNESS_FUNCTION)
+			hierarchyVersion ++;
+	}
+
+	/**
+	 * It sends my instance name, my term and the size of my view to another Service of my group.
+	 * @param otherInstanceName The instance name of the other Service.
+	 * @param survivor The instance name of the Service which survives, if I chose it, or null.
+	 */
+	private void sendDuplicateCredentials(String otherInstanceName, String survivor){
+
+		String credentials;
+
+		synchronized(this){
+			if(merging || instanceName == null)
+				return;
+			credentials = instanceName + Constants.A3_SEPARATOR + term + Constants.A3_SEPARATOR + view.getNumberOfNodes();
+		}
+
+		if(survivor != null)
+			credentials = credentials + Constants.A3_SEPARATOR + survivor;
+		groupTransmitter.sendUnicast(new A3Message(Constants.DUPLICATE_GROUP, credentials), otherInstanceName, true);
+	}
+
+	/**
+	 * It handles the credentials of another Service of my group.
+	 * Only the Service with the greater instance name chooses the survivor, so the two Services never disagree:
+	 * the survivor is the Service with the bigger view, then the one with the higher term, then the one with the greater instance name.
+	 * The other Service only replies with its credentials, and it merges into the survivor when it is told so.
+	 * @param credentials The string "instanceName term viewSize [survivorInstanceName]" of the other Service.
+	 */
+	private void resolveDuplicate(String credentials){
+
+		String[] splittedCredentials = credentials.split(Constants.A3_SEPARATOR);
+		String other = splittedCredentials[0];
+		String me = getInstanceName();
+
+		if(me == null || me.equals(other))
+			return;
+
+		if(splittedCredentials.length > 3){
+			if(!splittedCredentials[3].equals(me))
+				mergeInto(splittedCredentials[3]);
+			return;
+		}
+
+		if(me.compareTo(other) < 0){
+			sendDuplicateCredentials(other, null);
+			return;
+		}
+
+		int otherTerm = Integer.valueOf(splittedCredentials[1]);
+		int otherSize = Integer.valueOf(splittedCredentials[2]);
+		int mySize = view.getNumberOfNodes();
+		boolean iSurvive = mySize != otherSize ? mySize > otherSize : getTerm() >= otherTerm;
+
+		if(iSurvive)
+			sendDuplicateCredentials(other, me);
+		else
+			mergeInto(other);
+	}
+
+	/**
+	 * @return true if this group is merging into another one, false otherwise.
+	 */
+	private synchronized boolean isMerging(){
+		return merging;
+	}
+
+	/**
+	 * It merges this group into its duplicate, which survives.
+	 * I stop advertising the group name, so that it only refers to the survivor,
+	 * and I tell all my channels at once to reconnect: they join the survivor, which admits them at its pace.
+	 * I disconnect when they had the time to leave.
+	 * @param survivor The instance name of the surviving Service.
+	 */
+	private void mergeInto(String survivor){
+
+		synchronized(this){
+			if(merging)
+				return;
+			merging = true;
+		}
+
+		showOnScreen("Group duplicated: " + view.getNumberOfNodes() + " channels move to " + survivor + ".");
+
+		//A channel created this group because the discovery of the other one timed out too early.
+		node.getDiscoveryEstimator().onTimeout();
+		try{
+			mBus.cancelFindAdvertisedName(groupName + "._s");
+			mBus.cancelAdvertiseName(instanceName, transports);
+			mBus.releaseName(instanceName);
+			mBus.cancelAdvertiseName(groupName, transports);
+			mBus.releaseName(groupName);
+		}catch(Exception e){}
+
+		handleBroadcastMessage(new A3Message(Constants.DUPLICATE_GROUP, survivor));
+		new Timer(this, Constants.DUPLICATE_GROUP, 5 * roundTripEstimator.getTimeout()).start();
+	}
+
+	/**
+	 * It creates a group on this node, before the channels which will form it leave my group.
+	 * In this way, they don't need to discover it, and they don't race to create it.
+	 * The first channel which joins the new group becomes its supervisor.
+	 * @param newGroupName The name of the new group.
+	 * @return The instance name of the Service of the new group, or null if it isn't advertised.
+	 */
+	private String createGroup(String newGroupName){
+
+		try{
+			Service service = new Service(Constants.PREFIX + newGroupName, node, false);
+			service.connect();
+			return service.getInstanceName();
+		}catch(Exception e){
+			return null;
+		}
+	}
+
+	/**
+	 * @param groupName The name of a group.
+	 * @param serviceName The instance name of its Service, or null if it isn't known.
+	 * @return The string "groupName [serviceName]", which tells the channels which group to join and how to reach it.
+	 */
+	private String getRedirection(String groupName, String serviceName){
+		return serviceName == null ? groupName : groupName + Constants.A3_SEPARATOR + serviceName;
+	}
+
+	/**
+	 * It moves some channels of my group to a new group in one batch:
+	 * it creates the new group, then it tells them to join it directly.
+	 * The new group admits them at its pace, and the move is reported as a single operation.
+	 * @param newGroupName The name of the new group.
+	 * @param migrants The addresses of the channels to move.
+	 */
+	private void redirect(String newGroupName, ArrayList<String> migrants){
+
+		//"Constants.SPLIT newGroupName [instanceName]".
+		A3Message redirection = new A3Message(Constants.SPLIT, getRedirection(newGroupName, createGroup(newGroupName)));
+
+		startMigration(newGroupName, migrants);
+		for(String address : migrants)
+			handleUnicastMessage(redirection, address);
+	}
+
+	/**
+	 * It starts tracking the channels which move from my group to another group.
+	 * @param toGroupName The name of the group the channels join.
+	 * @param migrants The addresses of the moving channels, or null if they aren't known.
+	 */
+	private void startMigration(String toGroupName, ArrayList<String> migrants){
+
+		Migration migration = new Migration(node, getGroupName(), toGroupName, migrants,
+				10 * roundTripEstimator.getTimeout() + 2 * node.getDiscoveryEstimator().getTimeout(), getQuietPeriod());
+
+		synchronized(migrations){
+			for(int i = migrations.size() - 1; i >= 0; i--){
+				if(migrations.get(i).isDone())
+					migrations.remove(i);
+			}
+			migrations.add(migration);
+		}
+	}
+
+	/**
+	 * It determines if a channel is the supervisor of the current term.
+	 * A channel which was elected in an older term is stale, for example because it was partitioned:
+	 * its messages are refused and it reconnects, so that it learns the current supervisor.
+	 * @param address The address of the channel.
+	 * @param term The term in which the channel was elected supervisor.
+	 * @return true if the channel is the supervisor of the current term, false otherwise.
+	 */
+	private synchronized boolean isCurrentSupervisor(String address, int term){
+
+		boolean isSupervisor = address.equals(supervisorId) && term == this.term;
+
+		if(isSupervisor)
+			lastSupervisorContact = System.currentTimeMillis();
+		return isSupervisor;
+	}
+
+	/**
+	 * It makes my term higher than the one known by a channel, if the channel knows a higher term than mine.
+	 * @param knownTerm The string representation of the term known by a channel, or "" if it doesn't know any.
+	 * @return true if my term changed, false otherwise.
+	 */
+	private synchronized boolean observeTerm(String knownTerm){
+		try{
+			int channelTerm = Integer.valueOf(knownTerm);
+			if(channelTerm > term){
+				term = channelTerm + 1;
+				return true;
+			}
+		}catch(Exception e){}
+		return false;
+	}
+
+	/**
+	 * It is the pre-vote phase of a supervisor election requested by a channel.
+	 * An election is granted only if the supervisor is missing, or if it didn't contact me for a while,
+	 * or if the supervisor itself asks for it.
+	 * In any case, two elections can't start too near in time.
+	 * In this way, a flapping or partitioned channel can't trigger repeated elections.
+	 * @param candidate The address of the channel which requested the election.
+	 * @return true if the election can start, false otherwise.
+	 */
+	private boolean preVote(String candidate){
+
+		long now = System.currentTimeMillis();
+		int lease = 5 * roundTripEstimator.getTimeout();
+		String currentSupervisor;
+		long lastContact;
+
+		synchronized(this){
+			if(fitnessFunctionManager.isCollecting() || now - lastElection < lease)
+				return false;
+			currentSupervisor = supervisorId;
+			lastContact = lastSupervisorContact;
+		}
+
+		// The View calls me while holding its lock, so I don't hold mine while calling it.
+		if(currentSupervisor.equals("") || currentSupervisor.equals("?") || !view.isInView(currentSupervisor))
+			return true;
+
+		return candidate.equals(currentSupervisor) || now - lastContact > lease;
+	}
+
+	/**
+	 * It is called by the View when a channel leaves the group.
+	 * Its keys pass to the other members of the ring.
+	 * If the supervisor left, the deputy is promoted at once, if it exists,
+	 * otherwise a supervisor election starts.
+	 * If the deputy left, or if it was promoted, a new deputy is elected.
+	 * @param memberName The address of the channel which left the group.
+	 */
+	public void onMemberRemoved(String memberName){
+
+		boolean supervisorLeft, deputyLeft;
+		String deputy;
+
+		postRingChange("-" + memberName);
+		fitnessTable.remove(memberName);
+		sessionTokens.onMemberRemoved(memberName);
+
+		synchronized(migrations){
+			for(int i = migrations.size() - 1; i >= 0; i--){
+				migrations.get(i).onMemberRemoved(memberName);
+				if(migrations.get(i).isDone())
+					migrations.remove(i);
+			}
+		}
+
+		synchronized(this){
+			supervisorLeft = supervisorId.equals(memberName);
+			deputyLeft = deputyId.equals(memberName);
+			deputy = deputyId;
+
+			if(supervisorLeft){
+				failoverStart = System.currentTimeMillis();
+
+				/* The announcement of the new supervisor implies that the deputy is no longer such:
+				 * I don't notify it, otherwise the deputy would discard its copy of the state before its promotion.
+				 */
+				if(!deputyLeft)
+					deputyId = "";
+				
+				//The old supervisor left, so it can't hand its state off.
+				supervisorId = "?";
+			}
+		}
+
+		if(supervisorLeft){
+
+			//The group reconverges until it has a new supervisor and the channels stop joining.
+			startReconvergence();
+			Message msg = obtainMessage();
+			msg.arg2 = ADMIT;
+			sendMessage(msg);
+
+			if(!deputy.equals("") && !deputyLeft){
+				showOnScreen("Supervisor left: I promote the deputy " + deputy + ".");
+				setSupervisorId(deputy);
+				deputyElection();
+			}
+			else{
+				setDeputyId("");
+				setSupervisorId("?");
+				supervisorElection();
+			}
+		}
+		else if(deputyLeft){
+			setDeputyId("");
+			deputyElection();
+		}
+	}
+
+	/**It starts the election of a new deputy, asking for integer fitness function values.
+	 * The supervisor doesn't change.
+	 */
+	private void deputyElection(){
+
+		//If I know fresh fitness function values, I elect the deputy locally, without asking the group.
+		ArrayList<String> candidates = getFreshCandidates(1, getSupervisorId());
+		if(!candidates.isEmpty()){
+			setDeputyId(candidates.get(0));
+			return;
+		}
+
+		if(!isMerging() && !fitnessFunctionManager.isCollecting()){
+			electionStart = System.currentTimeMillis();
+			fitnessFunctionManager.startCollectingFitnessFunctions(Constants.NEW_DEPUTY,
+					2, view.getNumberOfNodes(), roundTripEstimator.getTimeout());
+			handleBroadcastMessage(new A3Message(Constants.SUPERVISOR_FITNESS_FUNCTION_REQUEST, ""));
+		}
+	}
+
+	/**
+	 * It is called when the supervisor confirms it activated its role.
+	 * If a failover was ongoing, its duration is measured.
+	 * @param address The address of the confirming channel.
+	 * @param confirmedTerm The string representation of the term in which the channel was elected.
+	 */
+	private synchronized void confirmSupervisor(String address, String confirmedTerm){
+
+		try{
+			if(address.equals(supervisorId) && Integer.valueOf(confirmedTerm) == term){
+				lastSupervisorContact = System.currentTimeMillis();
+
+				if(failoverStart != 0){
+					lastFailoverTime = lastSupervisorContact - failoverStart;
+					failoverStart = 0;
+					showOnScreen("Failover completed in " + lastFailoverTime + " ms.");
+				}
+			}
+		}catch(Exception e){}
+	}
+
+	/**
+	 * @param numberOfCandidates The maximum number of candidates requested.
+	 * @param excluded The address of a channel which can't be a candidate, or "".
+	 * @return The best channels in the view whose fitness function values are fresh, from the best to the worst.
+	 * The values are fresh if they are not older than two refresh periods plus the current timeout of this group.
+	 */
+	private ArrayList<String> getFreshCandidates(int numberOfCandidates, String excluded){
+
+		ArrayList<String> candidates = new ArrayList<String>();
+		long maxAge = 2 * FitnessTable.REFRESH_PERIOD + roundTripEstimator.getTimeout();
+
+		for(String address : fitnessTable.getBest(maxAge)){
+			if(candidates.size() == numberOfCandidates)
+				break;
+			if(!address.equals(excluded) && view.isInView(address))
+				candidates.add(address);
+		}
+		return candidates;
+	}
+
 	/**It starts a new supervisor election, asking for integer fitness function values.*/
 	public void supervisorElection(){
 
-		if(isNotMerging){
-			fitnessFunctionManager.startCollectingFitnessFunctions(Constants.SUPERVISOR_FITNESS_FUNCTION_REQUEST);
+		synchronized(this){
+			lastElection = System.currentTimeMillis();
+		}
+
+		if(!isMerging()){
+			
+			/* If I know fresh fitness function values, I elect the supervisor and the deputy locally,
+			 * without asking the group.
+			 * The channels in group "wait" are not considered in this case.
+			 */
+			ArrayList<String> candidates = getFreshCandidates(2, "");
+			if(!candidates.isEmpty()){
+				setSupervisorId(candidates.get(0));
+				setDeputyId(candidates.size() > 1 ? candidates.get(1) : "");
+				return;
+			}
+			
+			/* Every channel in the view replies, even if it can't be supervisor,
+			 * so the election ends as soon as all of them replied.
+			 */
+			electionStart = System.currentTimeMillis();
+			fitnessFunctionManager.startCollectingFitnessFunctions(Constants.SUPERVISOR_FITNESS_FUNCTION_REQUEST,
+					2, view.getNumberOfNodes(), roundTripEstimator.getTimeout());
 			A3Message message = new A3Message(Constants.SUPERVISOR_FITNESS_FUNCTION_REQUEST, "");
 			handleBroadcastMessage(message);
 			sendToOtherGroup(new A3Message(Constants.WAIT_SUPERVISOR_FITNESS_FUNCTION_REQUEST, getGroupName()), "wait");
@@ -607,20 +1705,138 @@ public class Service extends HandlerThread implements BusObject, A3ServiceInterf
 	/**
 	 * It is called when the supervisor has changed.
 	 * This method sets the supervisor id to the address of the new supervisor channel, if it is known.
-	 * In this case, this method notifies the new supervisor with the message "Constants.NEW_SUPERVISOR".
+	 * In this case, a new term starts and this method notifies the new supervisor
+	 * with the message "Constants.NEW_SUPERVISOR".
 	 * 
 	 * @param supervisorId The address of the new supervisor channel, if it is known,
 	 * or "" if a supervisor election must start because of the leaving of the old supervisor.
 	 */
-	public synchronized void setSupervisorId(String supervisorId) {
+	public void setSupervisorId(String supervisorId) {
+
+		String announcement = null;
+
+		synchronized(this){
+			setSupervisor(supervisorId);
+			if(!supervisorId.equals("?"))
+				announcement = getSupervisorAnnouncement();
+		}
+
+		// I don't hold my lock while I send the announcement, which may need to join a session.
+		if(announcement != null)
+			announceSupervisor(announcement);
+	}
+
+	private synchronized void setSupervisor(String supervisorId){
+
+		/* If the old supervisor is still in the group, it hands the state of its role off to the new one,
+		 * which waits for it before activating its role.
+		 */
+		if(!this.supervisorId.equals("") && !this.supervisorId.equals("?") && !this.supervisorId.equals(supervisorId))
+			handoffFrom = this.supervisorId;
+		else
+			handoffFrom = "";
 		this.supervisorId = supervisorId;
 
 		if(!supervisorId.equals("?")){
-			A3Message message = new A3Message(Constants.NEW_SUPERVISOR, supervisorId);
-			handleBroadcastMessage(message);
-			sendToOtherGroup(new A3Message(Constants.WAIT_NEW_SUPERVISOR,
-					getGroupName() + Constants.A3_SEPARATOR + supervisorId), "wait");
+			term ++;
+			lastSupervisorContact = System.currentTimeMillis();
+			supervisorSince = lastSupervisorContact;
+		}
+	}
+
+	/**It notifies the group and the group "wait" with the current supervisor and term.*/
+	private void announceSupervisor(){
+		announceSupervisor(getSupervisorAnnouncement());
+	}
+
+	/**It notifies the group and the group "wait" with a supervisor and its term.
+	 * It must be called without holding the lock of this Service, because it transmits on the bus.
+	 * @param announcement The string "supervisorId term [oldSupervisorId]", built under the lock.
+	 */
+	private void announceSupervisor(String announcement){
+
+		//"Constants.NEW_SUPERVISOR supervisorId term [oldSupervisorId]".
+		handleBroadcastMessage(new A3Message(Constants.NEW_SUPERVISOR, announcement));
+
+		//"Constants.WAIT_NEW_SUPERVISOR groupName supervisorId term".
+		sendToOtherGroup(new A3Message(Constants.WAIT_NEW_SUPERVISOR,
+				getGroupName() + Constants.A3_SEPARATOR + announcement), "wait");
+	}
+
+	/**
+	 * It sets the deputy supervisor and notifies the group with the message "Constants.NEW_DEPUTY".
+	 * The supervisor sends the state of its role to the new deputy as soon as it receives such message.
+	 * @param deputyId The address of the new deputy, or "" if there is none.
+	 */
+	public void setDeputyId(String deputyId){
+
+		String announcement;
+
+		synchronized(this){
+			if(this.deputyId.equals(deputyId))
+				return;
+			this.deputyId = deputyId;
+			announcement = getDeputyAnnouncement();
+		}
+
+		//"Constants.NEW_DEPUTY deputyId term".
+		handleBroadcastMessage(new A3Message(Constants.NEW_DEPUTY, announcement));
+	}
+
+	public synchronized String getDeputyId(){
+		return deputyId;
+	}
+
+	/**
+	 * @return The string representation of the current deputy and term, like "deputyId term" or " term".
+	 */
+	private synchronized String getDeputyAnnouncement(){
+		return deputyId + Constants.A3_SEPARATOR + term;
+	}
+
+	/**
+	 * @return The duration of the last failover, in milliseconds, or -1 if no failover happened.
+	 */
+	public synchronized long getLastFailoverTime(){
+		return lastFailoverTime;
+	}
+
+	/**
+	 * @return The string representation of the current supervisor and term, like "supervisorId term".
+	 */
+	private synchronized String getSupervisorAnnouncement(){
+		String announcement = supervisorId + Constants.A3_SEPARATOR + term;
+
+		if(!handoffFrom.equals(""))
+			announcement = announcement + Constants.A3_SEPARATOR + handoffFrom;
+		return announcement;
+	}
+
+	/**
+	 * It forwards the state handed off by the old supervisor to the new one.
+	 * @param address The address of the old supervisor.
+	 * @param handoff The string "term state", where "term" is the one in which the new supervisor was elected.
+	 */
+	private void forwardHandoff(String address, String handoff){
+
+		String[] splittedHandoff = handoff.split(Constants.A3_SEPARATOR, 2);
+		String destination;
+
+		synchronized(this){
+			//The handoff is stale if another supervisor was set meanwhile.
+			if(!address.equals(handoffFrom) || Integer.valueOf(splittedHandoff[0]) != term)
+				return;
+			handoffFrom = "";
+			destination = supervisorId;
 		}
+		handleUnicastMessage(new A3Message(Constants.HANDOFF_STATE,
+				splittedHandoff.length > 1 ? splittedHandoff[1] : ""), destination);
+	}
+
+	@Override
+	@BusMethod(replySignature = "i")
+	public synchronized int getTerm() {
+		return term;
 	}
 
 	public synchronized String getSupervisorId() {
@@ -631,12 +1847,61 @@ public class Service extends HandlerThread implements BusObject, A3ServiceInterf
 	public void timerFired(int reason) {
 		// TODO Auto-generated method stub
 
-		// I can only have a supervisor election, so I don't check the value of reason.
-		try {
-			setSupervisorId(fitnessFunctionManager.getBest(1)[0]);
-		} catch (Exception e) {
-			// No result is arrived: no one can be the supervisor, so I disconnect.
+		//My channels moved to the surviving duplicate of my group.
+		if(reason == Constants.DUPLICATE_GROUP){
 			disconnect();
+			return;
+		}
+
+		//The pending channels are admitted by the thread of this Service.
+		if(reason == Constants.JOIN_ADMISSION){
+			Message msg = obtainMessage();
+			msg.arg1 = Constants.JOIN_ADMISSION;
+			msg.arg2 = ADMIT;
+			sendMessage(msg);
+			return;
+		}
+
+		//The load is measured by the thread of this Service.
+		if(reason == Constants.LOAD_REPORT){
+			Message msg = obtainMessage();
+			msg.arg2 = LOAD;
+			sendMessage(msg);
+			return;
+		}
+
+		//Some channels didn't reply in time: the timeout was too short for this group.
+		if(!fitnessFunctionManager.hasAllVoters())
+			roundTripEstimator.onTimeout();
+		
+		String[] best;
+		
+		switch(reason){
+		
+		case Constants.NEW_DEPUTY:
+			//The best channel of the group which is not the supervisor is the new deputy.
+			try {
+				best = fitnessFunctionManager.getBest(2);
+				for(int i = 0; i < best.length; i++){
+					if(!best[i].equals(getSupervisorId()) && view.isInView(best[i])){
+						setDeputyId(best[i]);
+						break;
+					}
+				}
+			} catch (Exception e) {}
+			break;
+		
+		default:
+			//Supervisor election: the best channel is the supervisor, the second one is the deputy.
+			try {
+				best = fitnessFunctionManager.getBest(2);
+				setSupervisorId(best[0]);
+				setDeputyId(best.length > 1 && view.isInView(best[1]) ? best[1] : "");
+			} catch (Exception e) {
+				// No result is arrived: no one can be the supervisor, so I disconnect.
+				disconnect();
+			}
+			break;
 		}
 	}
 
@@ -0,0 +1,109 @@
+package a3.a3droid;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Random;
+
+/**This class resides on a Service.
+ * It keeps the session tokens issued to the channels of the group.
+ * A channel which lost its session for a short time presents its token when it joins again:
+ * if the token is still valid, the Service knows that the channel was already in the group,
+ * so the channel can resume its session in one round trip, without the full handshake.
+ * A token is valid until it is presented, or until "RESUME_TIME" after its channel left the group.
+ */
+public class SessionTokens {
+
+	/**The time a channel which left the group can resume its session, in milliseconds.*/
+	public static final int RESUME_TIME = 30000;
+
+	/**For each token, the session it was issued for.*/
+	private HashMap<String, Session> sessions;
+
+	private Random random;
+
+	public SessionTokens(){
+		sessions = new HashMap<String, Session>();
+		random = new Random();
+	}
+
+	/**It issues a new token for a channel.
+	 *
+	 * @param address The address of the channel.
+	 * @return The new token.
+	 */
+	public synchronized String issue(String address){
+
+		String token;
+
+		removeExpired();
+
+		//A channel has only one token: the one issued last.
+		Iterator<Session> iterator = sessions.values().iterator();
+		while(iterator.hasNext()){
+			if(iterator.next().address.equals(address))
+				iterator.remove();
+		}
+
+		do{
+			token = Long.toHexString(random.nextLong());
+		}while(sessions.containsKey(token));
+
+		sessions.put(token, new Session(address));
+		return token;
+	}
+
+	/**It invalidates a token, because its channel presented it.
+	 *
+	 * @param token The token presented by the channel.
+	 * @return The address the channel had when the token was issued, or null if the token isn't valid.
+	 */
+	public synchronized String take(String token){
+
+		Session session = sessions.remove(token);
+
+		if(session == null || session.isExpired(System.currentTimeMillis()))
+			return null;
+		return session.address;
+	}
+
+	/**It starts the expiration of the tokens of a channel, because it left the group.
+	 *
+	 * @param address The address of the channel.
+	 */
+	public synchronized void onMemberRemoved(String address){
+
+		long now = System.currentTimeMillis();
+
+		for(Session session : sessions.values()){
+			if(session.address.equals(address) && session.leftAt == 0)
+				session.leftAt = now;
+		}
+	}
+
+	/**It removes the tokens which can't be presented anymore.*/
+	private void removeExpired(){
+
+		long now = System.currentTimeMillis();
+		Iterator<Session> iterator = sessions.values().iterator();
+
+		while(iterator.hasNext()){
+			if(iterator.next().isExpired(now))
+				iterator.remove();
+		}
+	}
+
+	/**The session of a channel: its address and the time it left the group, or 0 if it didn't leave it.*/
+	private class Session{
+		private String address;
+		private long leftAt;
+
+		private Session(String address){
+			this.address = address;
+			leftAt = 0;
+		}
+
+		private boolean isExpired(long now){
+			return leftAt != 0 && now - leftAt > RESUME_TIME;
+		}
+	}
+}
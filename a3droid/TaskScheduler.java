@@ -0,0 +1,307 @@
+package a3.a3droid;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+
+/**This class resides on A3SupervisorRole and it distributes the tasks submitted by the supervisor among the followers.
+ * Each follower has a queue of tasks on the supervisor, and at most "PREFETCH" tasks dispatched to it at a time:
+ * a new task goes to the queue of the follower with the least work for its fitness,
+ * where the fitness is the value of GroupDescriptor.getTaskFitnessFunction() the follower sent with its last acknowledgement.
+ * When a follower finishes a task and its queue is empty, it steals the last task of the longest queue of the other followers.
+ * The queues are kept on the supervisor, so a steal costs no round trip with the busy follower.
+ *
+ * A follower acknowledges a task as soon as it receives it:
+ * if the acknowledgement doesn't arrive in time, the task is assigned again.
+ * The timeout of the acknowledgements has its own estimate, and not the one of the group,
+ * so that slow followers don't back off the timeouts of the elections and of the splits.
+ * The members of the group are the ones of the consistent hashing ring (see HashRing):
+ * the tasks of a follower which left the group are assigned to the others.
+ */
+public class TaskScheduler implements TimerInterface {
+
+	/**The highest number of tasks dispatched to a follower and not finished yet.*/
+	public static final int PREFETCH = 2;
+
+	/**The role this scheduler belongs to.*/
+	private A3SupervisorRole role;
+
+	/**The tasks which didn't end, by id.*/
+	private HashMap<Integer, GroupTask> tasks;
+
+	/**The tasks which are assigned to no follower, because the group has none.*/
+	private LinkedList<GroupTask> unassigned;
+
+	/**The queued tasks of each follower, by address.*/
+	private HashMap<String, LinkedList<GroupTask>> queues;
+
+	/**The dispatched tasks of each follower, by address.*/
+	private HashMap<String, ArrayList<GroupTask>> dispatched;
+
+	/**The last task fitness function value of each follower, by address.*/
+	private HashMap<String, Integer> fitness;
+
+	/**The dispatched tasks waiting for an acknowledgement, by the reason of their timer.*/
+	private HashMap<Integer, GroupTask> acknowledgements;
+
+	/**The id of the last submitted task.*/
+	private int lastTaskId;
+
+	/**The reason of the last timer started to wait for an acknowledgement.*/
+	private int lastTimer;
+
+	/**The estimate of the time between the dispatch of a task and its acknowledgement.*/
+	private RoundTripEstimator ackEstimator;
+
+	/**
+	 * @param role The role this scheduler belongs to.
+	 */
+	public TaskScheduler(A3SupervisorRole role){
+		this.role = role;
+		tasks = new HashMap<Integer, GroupTask>();
+		unassigned = new LinkedList<GroupTask>();
+		queues = new HashMap<String, LinkedList<GroupTask>>();
+		dispatched = new HashMap<String, ArrayList<GroupTask>>();
+		fitness = new HashMap<String, Integer>();
+		acknowledgements = new HashMap<Integer, GroupTask>();
+		lastTaskId = 0;
+		lastTimer = 0;
+		ackEstimator = new RoundTripEstimator(50, 10000);
+	}
+
+	/**It queues a task on a follower, and it dispatches it if the follower can take it.
+	 *
+	 * @param reason The kind of the task.
+	 * @param object The content of the task.
+	 * @return The submitted task.
+	 */
+	public GroupTask submit(int reason, String object){
+
+		final GroupTask task;
+
+		synchronized(this){
+			lastTaskId ++;
+			task = new GroupTask(lastTaskId, reason, object);
+			tasks.put(task.getId(), task);
+		}
+
+		//A cancelled task is not dispatched anymore.
+		task.whenDone(new Runnable() {
+
+			@Override
+			public void run() {
+				remove(task);
+			}
+		});
+
+		updateMembers();
+		assign(task, false);
+		dispatchAll();
+		return task;
+	}
+
+	/**It aligns the followers with the members of the ring: the tasks of the followers which left are assigned again.*/
+	public void updateMembers(){
+
+		ArrayList<String> members = role.channel.getRing().getMembers();
+		ArrayList<GroupTask> orphans = new ArrayList<GroupTask>();
+
+		members.remove(role.channel.getChannelId());
+
+		synchronized(this){
+			for(String address : new ArrayList<String>(queues.keySet())){
+				if(!members.contains(address)){
+					orphans.addAll(dispatched.remove(address));
+					orphans.addAll(queues.remove(address));
+					fitness.remove(address);
+				}
+			}
+
+			for(String address : members){
+				if(!queues.containsKey(address)){
+					queues.put(address, new LinkedList<GroupTask>());
+					dispatched.put(address, new ArrayList<GroupTask>());
+				}
+			}
+
+			//The tasks waiting for a follower are assigned as soon as there is one.
+			if(!queues.isEmpty()){
+				orphans.addAll(unassigned);
+				unassigned.clear();
+			}
+		}
+
+		for(GroupTask task : orphans)
+			assign(task, true);
+		dispatchAll();
+	}
+
+	/**It puts a task in the queue of the follower with the least work for its fitness.
+	 *
+	 * @param task The task.
+	 * @param first true if the task must be the next one of its follower, because it was already assigned, false otherwise.
+	 */
+	private synchronized void assign(GroupTask task, boolean first){
+
+		String best = null;
+		double bestWork = 0;
+
+		if(task.isDone())
+			return;
+
+		for(String address : queues.keySet()){
+			double work = (queues.get(address).size() + dispatched.get(address).size() + 1) / (double) getFitness(address);
+			if(best == null || work < bestWork){
+				best = address;
+				bestWork = work;
+			}
+		}
+
+		task.assign(best);
+		LinkedList<GroupTask> queue = best == null ? unassigned : queues.get(best);
+		if(first)
+			queue.addFirst(task);
+		else
+			queue.addLast(task);
+	}
+
+	/**
+	 * @param address The address of a follower.
+	 * @return Its last task fitness function value, or 1 if it didn't send any, but never less than 1.
+	 */
+	private synchronized int getFitness(String address){
+		Integer value = fitness.get(address);
+		return value == null ? 1 : Math.max(value, 1);
+	}
+
+	/**It dispatches tasks to all the followers which can take them, stealing them from the busiest followers if needed.*/
+	private void dispatchAll(){
+
+		ArrayList<GroupTask> toDispatch = new ArrayList<GroupTask>();
+
+		synchronized(this){
+			for(String address : queues.keySet()){
+				GroupTask task;
+				while(dispatched.get(address).size() < PREFETCH && (task = next(address)) != null){
+					dispatched.get(address).add(task);
+					task.setDispatched();
+					toDispatch.add(task);
+				}
+			}
+		}
+
+		int timeout = ackEstimator.getTimeout();
+
+		for(GroupTask task : toDispatch){
+			int timer;
+			synchronized(this){
+				lastTimer ++;
+				timer = lastTimer;
+				acknowledgements.put(timer, task);
+			}
+			role.channel.sendUnicast(task.getMessage(), task.getAssignee());
+			new Timer(this, timer, timeout).start();
+		}
+	}
+
+	/**
+	 * @param address The address of a follower.
+	 * @return The first task of its queue, or the last task of the longest queue of the other followers, or null if there is none.
+	 */
+	private synchronized GroupTask next(String address){
+
+		if(!queues.get(address).isEmpty())
+			return queues.get(address).removeFirst();
+
+		String victim = null;
+		for(String other : queues.keySet()){
+			if(victim == null || queues.get(other).size() > queues.get(victim).size())
+				victim = other;
+		}
+
+		if(victim == null || queues.get(victim).isEmpty())
+			return null;
+
+		GroupTask task = queues.get(victim).removeLast();
+		task.assign(address);
+		return task;
+	}
+
+	/**A follower acknowledged a task.
+	 *
+	 * @param address The address of the follower.
+	 * @param taskId The id of the task.
+	 * @param taskFitness The task fitness function value of the follower.
+	 */
+	public synchronized void onAcknowledgement(String address, int taskId, int taskFitness){
+
+		GroupTask task = tasks.get(taskId);
+
+		fitness.put(address, taskFitness);
+		if(task != null && address.equals(task.getAssignee()) && task.isDispatched() && !task.isAcknowledged()){
+			ackEstimator.addSample(System.currentTimeMillis() - task.getDispatchTime());
+			task.setAcknowledged();
+		}
+	}
+
+	/**A follower finished a task: it takes the next one.
+	 *
+	 * @param address The address of the follower.
+	 * @param taskId The id of the task.
+	 * @param result The result of the task, or null if the follower declined it.
+	 */
+	public void onResult(String address, int taskId, String result){
+
+		GroupTask task;
+
+		synchronized(this){
+			task = tasks.get(taskId);
+		}
+
+		//A task assigned again may be executed twice: the first result counts.
+		if(task != null)
+			task.end(result);
+		dispatchAll();
+	}
+
+	/**It forgets a task which ended.*/
+	private synchronized void remove(GroupTask task){
+
+		String address = task.getAssignee();
+
+		tasks.remove(task.getId());
+		unassigned.remove(task);
+		if(address != null && queues.containsKey(address)){
+			queues.get(address).remove(task);
+			dispatched.get(address).remove(task);
+		}
+	}
+
+	/**The acknowledgement of a dispatched task didn't arrive in time: the task is assigned again.*/
+	@Override
+	public void timerFired(int reason) {
+
+		GroupTask task;
+
+		synchronized(this){
+			task = acknowledgements.remove(reason);
+
+			if(task == null || task.isAcknowledged() || task.isDone())
+				return;
+
+			String address = task.getAssignee();
+			if(address != null && dispatched.containsKey(address))
+				dispatched.get(address).remove(task);
+		}
+
+		ackEstimator.onTimeout();
+		assign(task, true);
+		dispatchAll();
+	}
+
+	@Override
+	public synchronized String toString(){
+		return tasks.size() + " tasks, " + unassigned.size() + " unassigned, queues " + queues + ", dispatched " + dispatched +
+				", acknowledgements " + ackEstimator;
+	}
+}
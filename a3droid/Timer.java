@@ -1,7 +1,8 @@
 package a3.a3droid;
 
 /**This class is used in A3Channel and in Service, which implement the interface "TimerInterface".
- * After a 2 seconds timeout, it calls TimerInterface.timerFired(int), to notify the timeout fired.
+ * After a timeout (2 seconds by default), it calls TimerInterface.timerFired(int), to notify the timeout fired.
+ * If it is interrupted before the timeout fires, it notifies nothing.
  * @author Francesco
  *
  */
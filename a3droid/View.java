@@ -105,11 +105,14 @@ public class View extends HandlerThread implements TimerInterface{
 		}
 		numberOfNodes = numberOfNodes + 1;
 		service.showOnScreen("View: " + getView());
+
+		//The channel takes its part of the keys of the group.
+		service.onMemberAdded(memberName);
 	}
 
 	/**
 	 * It removes the channel "memberName" from the list of the group members, because it left the group.
-	 * It triggers a supervisor election if "memberName" was the supervisor of the group,
+	 * It triggers the promotion of the deputy or a supervisor election if "memberName" was the supervisor of the group,
 	 * or the group destruction if no nodes are present in the group anymore.
 	 * If a view update is ongoing, the channel is removed from the temporary view too.
 	 * @param memberName The address of the channel which left the group.
@@ -130,11 +133,8 @@ public class View extends HandlerThread implements TimerInterface{
 
 		service.showOnScreen("View: " + getView());
 
-		// If the old supervisor left, then I must elect a new one.
-		if(service.getSupervisorId().equals(memberName)){
-			service.setSupervisorId("?");
-			service.supervisorElection();
-		}
+		// If the old supervisor left, then the deputy replaces it or I must elect a new one.
+		service.onMemberRemoved(memberName);
 	}
 
 	/**
@@ -145,6 +145,15 @@ public class View extends HandlerThread implements TimerInterface{
 		return groupMembers.toString();
 	}
 
+	/**
+	 * @return A copy of the list of the group members.
+	 */
+	public ArrayList<String> getMembers(){
+		synchronized(groupMembers){
+			return new ArrayList<String>(groupMembers);
+		}
+	}
+
 	/**
 	 * It determines if the specified channel is currently in the list of the group members or not.
 	 * If a view update is ongoing, the check is performed on the temporary view too.